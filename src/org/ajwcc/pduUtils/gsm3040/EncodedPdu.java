@@ -0,0 +1,74 @@
+package org.ajwcc.pduUtils.gsm3040;
+
+//PduUtils Library - A Java library for generating GSM 3040 Protocol Data Units (PDUs)
+//
+//Copyright (C) 2008, Ateneo Java Wireless Competency Center/Blueblade Technologies, Philippines.
+//PduUtils is distributed under the terms of the Apache License version 2.0
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+public class EncodedPdu
+{
+	private final byte[] bytes;
+
+	private final int partNo;
+
+	private final int maxPartNo;
+
+	private String pduString;
+
+	public EncodedPdu(byte[] bytes, int partNo, int maxPartNo)
+	{
+		this.bytes = bytes;
+		this.partNo = partNo;
+		this.maxPartNo = maxPartNo;
+	}
+
+	public byte[] getBytes()
+	{
+		return bytes;
+	}
+
+	// the hex string sent to the modem, SMSC info included
+	public String getPduString()
+	{
+		if (pduString == null)
+		{
+			pduString = PduUtils.bytesToPdu(bytes);
+		}
+		return pduString;
+	}
+
+	// the octet count of the TPDU alone, as expected by AT+CMGS
+	// the SMSC info is its length octet plus as many octets as it states
+	public int getTpduLength()
+	{
+		return bytes.length - 1 - (bytes[0] & 0xFF);
+	}
+
+	// 1-based, 1 for messages that are not concatenated
+	public int getPartNo()
+	{
+		return partNo;
+	}
+
+	public int getMaxPartNo()
+	{
+		return maxPartNo;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getPduString();
+	}
+}
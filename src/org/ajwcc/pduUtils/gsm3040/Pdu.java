@@ -554,14 +554,36 @@ public abstract class Pdu
 	// PDU MANAGEMENT
 	private String rawPdu;
 
+	private byte[] rawPduBytes;
+
 	public String getRawPdu()
 	{
+		if ((rawPdu == null) && (rawPduBytes != null))
+		{
+			rawPdu = PduUtils.bytesToPdu(rawPduBytes);
+		}
 		return rawPdu;
 	}
 
 	public void setRawPdu(String rawPdu)
 	{
 		this.rawPdu = rawPdu;
+		this.rawPduBytes = null;
+	}
+
+	public byte[] getRawPduBytes()
+	{
+		if ((rawPduBytes == null) && (rawPdu != null))
+		{
+			rawPduBytes = PduUtils.pduToBytes(rawPdu);
+		}
+		return rawPduBytes;
+	}
+
+	public void setRawPdu(byte[] rawPdu)
+	{
+		this.rawPduBytes = rawPdu;
+		this.rawPdu = null;
 	}
 
 	@Override
@@ -572,7 +594,7 @@ public abstract class Pdu
 		sb.append("<< " + getClass().getSimpleName() + " >>");
 		sb.append("\n");
 		sb.append("Raw Pdu: ");
-		sb.append(rawPdu);
+		sb.append(getRawPdu());
 		sb.append("\n");
 		sb.append("\n");
 		// smsc info        
@@ -21,9 +21,26 @@ import org.ajwcc.pduUtils.gsm3040.ie.*;
 //WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
 //See the License for the specific language governing permissions and
 //limitations under the License.
+// An instance keeps its buffers from one PDU to the next, so that a caller
+// generating many PDUs should hold on to one; it must not be used by several
+// threads at once.
 public class PduGenerator
 {
-	private ByteArrayOutputStream baos;
+	private final Buffer baos = new Buffer(256);
+
+	private final Buffer udhBaos = new Buffer(32);
+
+	// septets of the text last encoded, reused for its other parts
+	private String septetText;
+
+	private byte[] septets = new byte[320];
+
+	private int septetCount;
+
+	// UDH and text septets of the current 7-bit part, and the same packed
+	private byte[] udSeptets = new byte[320];
+
+	private byte[] udOctets = new byte[280];
 
 	private int firstOctetPosition = -1;
 
@@ -203,11 +220,11 @@ public class PduGenerator
 		int maxParts = 1;
 		if (!pdu.isBinary())
 		{
-			maxParts = pdu.getDecodedText().length() / maxMessageLength + 1;
+			maxParts = SegmentInfo.getNumParts(pdu.getDecodedText().length(), maxMessageLength);
 		}
 		else
 		{
-			maxParts = pdu.getDataBytes().length / maxMessageLength + 1;
+			maxParts = SegmentInfo.getNumParts(pdu.getDataBytes().length, maxMessageLength);
 		}
 		if (pdu.hasTpUdhi())
 		{
@@ -279,16 +296,15 @@ public class PduGenerator
 
 	protected void writeUDData7bit(Pdu pdu, int mpRefNo, int partNo) throws Exception
 	{
-		String decodedText = pdu.getDecodedText();
 		// partNo states what part of the unencoded text will be used
 		//      - max length is based on the size of the UDH
 		//        for 7bit => maxLength = 160 - total UDH septets
 		// check if this message needs a concat
-		byte[] textSeptetsForDecodedText = PduUtils.stringToUnencodedSeptets(decodedText);
+		int textSeptetCount = encodeSeptets(pdu.getDecodedText());
 		int potentialUdhLength = PduUtils.getNumSeptetsForOctets(computePotentialUdhLength(pdu));
 
 		checkForConcat(pdu, 
-                       textSeptetsForDecodedText.length, 
+                       textSeptetCount, 
                        160 - PduUtils.getNumSeptetsForOctets(pdu.getTotalUDHLength()), // CHANGED
                        160 - potentialUdhLength, 
                        mpRefNo, 
@@ -300,40 +316,55 @@ public class PduGenerator
 		int maxMessageLength = 160 - PduUtils.getNumSeptetsForOctets(totalUDHLength);
 		
 		// get septets for part
-		byte[] textSeptets = getUnencodedSeptetsForPart(pdu, maxMessageLength, partNo);
+		int offset = computeSeptetOffset(pdu, textSeptetCount, maxMessageLength, partNo);
+		int partSeptetCount = Math.min(maxMessageLength, textSeptetCount - offset);
 
 		// udlength is the sum of udh septet length and the text septet length
-		int udLength = PduUtils.getNumSeptetsForOctets(totalUDHLength) + textSeptets.length;
+		int udLength = PduUtils.getNumSeptetsForOctets(totalUDHLength) + partSeptetCount;
 		baos.write(udLength);
-		// generate UDH byte[]
-		// UDHL (sum of all IE lengths)
-		// IE list        
-		byte[] udhBytes = null;
+		// UDH and text have to be encoded together in a single pass
+		// the UDH octets are converted to unencoded septets in order
+		// to properly pad the data
+		// NOTE: DO NOT DISCARD THE LAST SEPTET IF IT IS ZERO
+		int udhSeptetCount = 0;
 		if (pdu.hasTpUdhi())
 		{
-			ByteArrayOutputStream udhBaos = new ByteArrayOutputStream();
+			udhBaos.reset();
 			writeUDH(pdu, udhBaos);
-			// buffer the udh since this needs to be 7-bit encoded with the text
-			udhBytes = udhBaos.toByteArray();
+			udSeptets = ensureCapacity(udSeptets, PduUtils.getNumSeptetsForOctets(udhBaos.size()) + partSeptetCount);
+			udhSeptetCount = PduUtils.encodedSeptetsToUnencodedSeptets(udhBaos.array(), 0, udhBaos.size(), udSeptets, 0);
+		}
+		else
+		{
+			udSeptets = ensureCapacity(udSeptets, partSeptetCount);
 		}
-		// encode both as one unit        
-		byte[] udBytes = PduUtils.encode7bitUserData(udhBytes, textSeptets);
-		// write combined encoded array
-		baos.write(udBytes);
+		System.arraycopy(septets, offset, udSeptets, udhSeptetCount, partSeptetCount);
+		// encode both as one unit and write the combined array
+		udOctets = ensureCapacity(udOctets, PduUtils.getNumOctetsForSeptets(udhSeptetCount + partSeptetCount));
+		int udOctetCount = PduUtils.unencodedSeptetsToEncodedSeptets(udSeptets, 0, udhSeptetCount + partSeptetCount, udOctets, 0);
+		baos.write(udOctets, 0, udOctetCount);
 	}
 
-	private byte[] getUnencodedSeptetsForPart(Pdu pdu, int maxMessageLength, int partNo)
+	// encodes the text into septets, unless it was the text last encoded
+	// returns the number of septets
+	private int encodeSeptets(String text)
+	{
+		if (text != septetText)
+		{
+			septets = ensureCapacity(septets, text.length() * 2);
+			septetCount = PduUtils.stringToUnencodedSeptets(text, septets, 0);
+			septetText = text;
+		}
+		return septetCount;
+	}
+
+	private int computeSeptetOffset(Pdu pdu, int textSeptetCount, int maxMessageLength, int partNo)
 	{
         // computes offset to which part of the string is to be encoded into the PDU
         // also sets the MpMaxNo field of the concatInfo if message is multi-part
-        int offset;
-        int maxParts = 1;
-        
         // must use the unencoded septets not the actual string since
         // it is possible that some special characters in string are multi-septet
-        byte[] unencodedSeptets = PduUtils.stringToUnencodedSeptets(pdu.getDecodedText());
-        
-        maxParts = (unencodedSeptets.length / maxMessageLength) + 1;
+        int maxParts = SegmentInfo.getNumParts(textSeptetCount, maxMessageLength);
  
         if (pdu.hasTpUdhi())
         {
@@ -350,19 +381,15 @@ public class PduGenerator
             //      - if partNo > maxParts
             //          - error
             if (partNo > maxParts) { throw new RuntimeException("Invalid partNo: " + partNo + ", maxParts=" + maxParts); }
-            offset = ((partNo - 1) * maxMessageLength);
-        }
-        else
-        {
-            // just get from the start
-            offset = 0;
+            return ((partNo - 1) * maxMessageLength);
         }
+        // just get from the start
+        return 0;
+	}
 
-        // copy the portion of the full unencoded septet array for this part
-        byte[] septetsForPart = new byte[Math.min(maxMessageLength, unencodedSeptets.length-offset)];
-        System.arraycopy(unencodedSeptets, offset, septetsForPart, 0, septetsForPart.length);
-        
-        return septetsForPart; 
+	private static byte[] ensureCapacity(byte[] buffer, int size)
+	{
+		return (buffer.length >= size ? buffer : new byte[Math.max(size, buffer.length * 2)]);
 	}
 	
 	protected void writeUDData8bit(Pdu pdu, int mpRefNo, int partNo) throws Exception
@@ -399,12 +426,11 @@ public class PduGenerator
 		int maxMessageLength = 140 - totalUDHLength;
 		// compute which portion of the message will be part of the message
 		int offset = computeOffset(pdu, maxMessageLength, partNo);
-		byte[] dataToWrite = new byte[Math.min(maxMessageLength, data.length - offset)];
-		System.arraycopy(data, offset, dataToWrite, 0, dataToWrite.length);
+		int lengthToWrite = Math.min(maxMessageLength, data.length - offset);
 		// generate udlength
 		// based on partNo
 		// udLength is an octet count for 8bit/ucs2
-		int udLength = totalUDHLength + dataToWrite.length;
+		int udLength = totalUDHLength + lengthToWrite;
 		// write udlength
 		baos.write(udLength);
 		// write UDH to the stream directly
@@ -413,7 +439,7 @@ public class PduGenerator
 			writeUDH(pdu, baos);
 		}
 		// write data
-		baos.write(dataToWrite);
+		baos.write(data, offset, lengthToWrite);
 	}
 
 	protected void writeUDDataUCS2(Pdu pdu, int mpRefNo, int partNo) throws Exception
@@ -468,8 +494,9 @@ public class PduGenerator
 	{
 		// generate all required PDUs for a given message
 		// mpRefNo comes from the ModemGateway
-		ArrayList<String> pduList = new ArrayList<String>();
-		for (int i = 1; i <= pdu.getMpMaxNo(); i++)
+		int parts = SegmentInfo.forPdu(pdu).getParts();
+		ArrayList<String> pduList = new ArrayList<String>(parts);
+		for (int i = 1; i <= parts; i++)
 		{
 			String pduString = generatePduString(pdu, mpRefNo, i);
 			pduList.add(pduString);
@@ -477,6 +504,19 @@ public class PduGenerator
 		return pduList;
 	}
 
+	// same as generatePduList() but the PDUs come with their TPDU lengths
+	// and part numbers, so nothing needs to parse them again
+	public List<EncodedPdu> generateEncodedPduList(Pdu pdu, int mpRefNo)
+	{
+		int parts = SegmentInfo.forPdu(pdu).getParts();
+		ArrayList<EncodedPdu> pduList = new ArrayList<EncodedPdu>(parts);
+		for (int i = 1; i <= parts; i++)
+		{
+			pduList.add(new EncodedPdu(generatePduBytes(pdu, mpRefNo, i), i, parts));
+		}
+		return pduList;
+	}
+
 	public String generatePduString(Pdu pdu)
 	{
 		return generatePduString(pdu, -1, -1);
@@ -486,10 +526,21 @@ public class PduGenerator
 	//       assuming that the message is multipart, this will be ignored if the
 	//       message is not a concat message
 	public String generatePduString(Pdu pdu, int mpRefNo, int partNo)
+	{
+		return PduUtils.bytesToPdu(generatePduBytes(pdu, mpRefNo, partNo));
+	}
+
+	public byte[] generatePduBytes(Pdu pdu)
+	{
+		return generatePduBytes(pdu, -1, -1);
+	}
+
+	// same as generatePduString(), without the conversion to hex
+	public byte[] generatePduBytes(Pdu pdu, int mpRefNo, int partNo)
 	{
 		try
 		{
-			baos = new ByteArrayOutputStream();
+			baos.reset();
 			firstOctetPosition = -1;
 			updateFirstOctet = false;
 			// process the PDU
@@ -513,7 +564,7 @@ public class PduGenerator
 			{
 				pduBytes[firstOctetPosition] = (byte) (pdu.getFirstOctet() & 0xFF);
 			}
-			return PduUtils.bytesToPdu(pduBytes);
+			return pduBytes;
 		}
 		catch (Exception e)
 		{
@@ -588,4 +639,18 @@ public class PduGenerator
 		// status
 		writeByte(pdu.getStatus());
 	}
+
+	// exposes the written bytes without copying them
+	private static class Buffer extends ByteArrayOutputStream
+	{
+		Buffer(int size)
+		{
+			super(size);
+		}
+
+		byte[] array()
+		{
+			return buf;
+		}
+	}
 }
@@ -1,6 +1,7 @@
 
 package org.ajwcc.pduUtils.gsm3040;
 
+import java.nio.*;
 import java.util.*;
 import org.ajwcc.pduUtils.gsm3040.ie.*;
 
@@ -20,6 +21,8 @@ import org.ajwcc.pduUtils.gsm3040.ie.*;
 //WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
 //See the License for the specific language governing permissions and
 //limitations under the License.
+// An instance can parse any number of PDUs, one at a time; it must not be
+// used by several threads at once.
 public class PduParser
 {
 	// ==================================================
@@ -30,6 +33,12 @@ public class PduParser
 
 	private byte[] pduByteArray;
 
+	// reused for the digits of BCD addresses
+	private final StringBuilder digits = new StringBuilder(24);
+
+	// time zones met so far, by sign (bit 7) and quarter hours (bits 0-6)
+	private final TimeZone[] timeZones = new TimeZone[256];
+
 	// possible types of data
 	// BCD digits
 	// byte
@@ -70,35 +79,23 @@ public class PduParser
 		boolean negative = (timestamp & 0x08) == 0x08; // check bit 3
 		int timezone = PduUtils.swapNibbles(timestamp) & 0x7F; // remove last bit since this is just a sign
 		// time zone computation
-		TimeZone tz = null;
-		if (negative)
-		{
-			// bit 3 of unswapped value represents the sign (1 == negative, 0 == positive)
-			// when swapped this will now be bit 7 (128)
-			int bcdTimeZone = 0;
-			bcdTimeZone += (((timezone >>> 4) & 0xF) * 10);
-			bcdTimeZone += ((timezone & 0xF));
-			timezone = bcdTimeZone;
-			int totalMinutes = timezone * 15;
-			int hours = totalMinutes / 60;
-			int minutes = totalMinutes % 60;
-			String gmtString = "GMT-" + hours + ":" + (minutes < 10 ? "0" : "") + minutes;
-			//System.out.println(gmtString);
-			tz = TimeZone.getTimeZone(gmtString);
-		}
-		else
+		// bit 3 of unswapped value represents the sign (1 == negative, 0 == positive)
+		int bcdTimeZone = 0;
+		bcdTimeZone += (((timezone >>> 4) & 0xF) * 10);
+		bcdTimeZone += ((timezone & 0xF));
+		int index = (negative ? 0x80 : 0) | bcdTimeZone;
+		TimeZone tz = timeZones[index];
+		if (tz == null)
 		{
-			int bcdTimeZone = 0;
-			bcdTimeZone += ((timezone >>> 4) & 0xF) * 10;
-			bcdTimeZone += ((timezone & 0xF));
-			timezone = bcdTimeZone;
-			int totalMinutes = timezone * 15;
+			int totalMinutes = bcdTimeZone * 15;
 			int hours = totalMinutes / 60;
 			int minutes = totalMinutes % 60;
-			String gmtString = "GMT+" + hours + ":" + (minutes < 10 ? "0" : "") + minutes;
-			//System.out.println(gmtString);            
+			String gmtString = (negative ? "GMT-" : "GMT+") + hours + ":" + (minutes < 10 ? "0" : "") + minutes;
 			tz = TimeZone.getTimeZone(gmtString);
+			timeZones[index] = tz;
 		}
+		// the calendar keeps the zone it is given, so hand it a copy
+		tz = (TimeZone) tz.clone();
 		Calendar cal = Calendar.getInstance(tz);
 		cal.set(Calendar.YEAR, year + 2000);
 		cal.set(Calendar.MONTH, month - 1);
@@ -118,13 +115,13 @@ public class PduParser
 		{
 			// length is a semi-octet count
 			int addressDataOctetLength = addressLength / 2 + ((addressLength % 2 == 1) ? 1 : 0);
-			// extract data and increment position
-			byte[] addressData = new byte[addressDataOctetLength];
-			System.arraycopy(pduByteArray, position, addressData, 0, addressDataOctetLength);
-			position = position + addressDataOctetLength;
 			switch (PduUtils.extractAddressType(addressType))
 			{
 				case PduUtils.ADDRESS_TYPE_ALPHANUMERIC:
+					// extract data and increment position
+					byte[] addressData = new byte[addressDataOctetLength];
+					System.arraycopy(pduByteArray, position, addressData, 0, addressDataOctetLength);
+					position = position + addressDataOctetLength;
 					// extract and process encoded bytes 
 					byte[] uncompressed = PduUtils.encodedSeptetsToUnencodedSeptets(addressData);
 					int septets = addressLength * 4 / 7;
@@ -133,7 +130,19 @@ public class PduParser
 					return PduUtils.unencodedSeptetsToString(choppedAddressData);
 				default:
 					// process BCD style data any other
-					return PduUtils.readBCDNumbers(addressLength, addressData);
+					// same as PduUtils.readBCDNumbers(), straight from the PDU
+					digits.setLength(0);
+					for (int i = 0; i < addressDataOctetLength; i++)
+					{
+						int b = pduByteArray[position++];
+						digits.append(b & 0x0F);
+						if (((b >>> 4) & 0x0F) != 0x0F)
+						{
+							// check if fillbits
+							digits.append((b >>> 4) & 0x0F);
+						}
+					}
+					return digits.toString();
 			}
 		}
 		return null;
@@ -170,7 +179,24 @@ public class PduParser
 	public Pdu parsePdu(String rawPdu)
 	{
 		// encode pdu to byte[] for easier processing
-		pduByteArray = PduUtils.pduToBytes(rawPdu);
+		Pdu pdu = parsePdu(PduUtils.pduToBytes(rawPdu));
+		pdu.setRawPdu(rawPdu);
+		return pdu;
+	}
+
+	// takes the remaining bytes of the buffer
+	public Pdu parsePdu(ByteBuffer rawPdu)
+	{
+		byte[] bytes = new byte[rawPdu.remaining()];
+		rawPdu.get(bytes);
+		return parsePdu(bytes);
+	}
+
+	// the array is kept by the Pdu as its raw form and must not be changed
+	// afterwards; the hex string is only built if asked for
+	public Pdu parsePdu(byte[] rawPdu)
+	{
+		pduByteArray = rawPdu;
 		position = 0;
 		// parse start and determine what type of pdu it is
 		Pdu pdu = parseStart();
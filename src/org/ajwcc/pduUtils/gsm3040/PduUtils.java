@@ -296,6 +296,48 @@ public class PduUtils
 			'\u00E0', // LATIN SMALL LETTER A WITH GRAVE
 	};
 
+	// Septet code for each character: its index in stdAlphabet, 0x1bXX for
+	// the extension table (escape, then XX), or -1 if GSM has no equivalent.
+	// The table runs up to the highest character of the alphabets (the euro
+	// sign), so that every lookup is a single array access.
+	private static final short[] septetCodes = new short[maxAlphabetChar() + 1];
+
+	static
+	{
+		Arrays.fill(septetCodes, (short) -1);
+		// walk backwards so that the first occurrence of a character wins
+		for (int i = stdAlphabet.length - 1; i >= 0; i--)
+			setSeptetCode(stdAlphabet[i], (short) i);
+		for (int i = 0; i < extAlphabet.length; i++)
+			setSeptetCode(extAlphabet[i], (short) Integer.parseInt(extBytes[i], 16));
+		for (int i = 0; i < grcAlphabetRemapping.length; i++)
+			if (getSeptetCode(grcAlphabetRemapping[i][0]) == -1) setSeptetCode(grcAlphabetRemapping[i][0], getSeptetCode(grcAlphabetRemapping[i][1]));
+		// LATIN CAPITAL LETTER C WITH CEDILLA is sent as the small letter
+		setSeptetCode('\u00C7', getSeptetCode('\u00E7'));
+	}
+
+	private static int maxAlphabetChar()
+	{
+		int max = 0;
+		for (char c : stdAlphabet)
+			max = Math.max(max, c);
+		for (char c : extAlphabet)
+			max = Math.max(max, c);
+		for (char[] remapping : grcAlphabetRemapping)
+			max = Math.max(max, remapping[0]);
+		return max;
+	}
+
+	private static void setSeptetCode(char c, short code)
+	{
+		septetCodes[c] = code;
+	}
+
+	static short getSeptetCode(char c)
+	{
+		return (c < septetCodes.length ? septetCodes[c] : -1);
+	}
+
 	// ==================================================
 	// FIRST OCTET CONSTANTS
 	// ==================================================
@@ -792,93 +834,83 @@ public class PduUtils
 	// from Java String to uncompressed septets (GSM characters)
 	public static byte[] stringToUnencodedSeptets(String s)
 	{
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		int i, j, index;
-		char ch;
-		s = s.replace('\u00C7', // LATIN CAPITAL LETTER C WITH CEDILLA
-				'\u00E7' // LATIN SMALL LETTER C WITH CEDILLA
-		);
-		for (i = 0; i < s.length(); i++)
+		byte[] septets = new byte[s.length() * 2];
+		int length = stringToUnencodedSeptets(s, septets, 0);
+		return (length == septets.length ? septets : Arrays.copyOf(septets, length));
+	}
+
+	// same as above, writing into dest starting at offset
+	// dest needs room for two bytes per character in the worst case
+	// returns the number of bytes written
+	public static int stringToUnencodedSeptets(String s, byte[] dest, int offset)
+	{
+		int pos = offset;
+		for (int i = 0; i < s.length(); i++)
 		{
-			ch = s.charAt(i);
-			index = -1;
-			for (j = 0; j < extAlphabet.length; j++)
-				if (extAlphabet[j] == ch)
-				{
-					index = j;
-					break;
-				}
-			if (index != -1) // An extended char...
+			short code = getSeptetCode(s.charAt(i));
+			if (code < 0)
 			{
-				baos.write((byte) Integer.parseInt(extBytes[index].substring(0, 2), 16));
-				baos.write((byte) Integer.parseInt(extBytes[index].substring(2, 4), 16));
+				// Unknown char replacement...
+				dest[pos++] = (byte) ' ';
 			}
 			else
-			// Maybe a standard char...
 			{
-				index = -1;
-				for (j = 0; j < stdAlphabet.length; j++)
-					if (stdAlphabet[j] == ch)
-					{
-						index = j;
-						baos.write((byte) j);
-						break;
-					}
-				if (index == -1) // Maybe a Greek Char...
-				{
-					for (j = 0; j < grcAlphabetRemapping.length; j++)
-						if (grcAlphabetRemapping[j][0] == ch)
-						{
-							index = j;
-							ch = grcAlphabetRemapping[j][1];
-							break;
-						}
-					if (index != -1)
-					{
-						for (j = 0; j < stdAlphabet.length; j++)
-							if (stdAlphabet[j] == ch)
-							{
-								index = j;
-								baos.write((byte) j);
-								break;
-							}
-					}
-					else
-					// Unknown char replacement...
-					{
-						baos.write((byte) ' ');
-					}
-				}
+				// An extended char goes out as the escape and its code
+				if (code > 0x7f) dest[pos++] = 0x1b;
+				dest[pos++] = (byte) code;
 			}
 		}
-		return baos.toByteArray();
+		return pos - offset;
 	}
 
 	// from compress unencoded septets
 	public static byte[] unencodedSeptetsToEncodedSeptets(byte[] septetBytes)
 	{
-		byte[] txtBytes;
-		byte[] txtSeptets;
-		int txtBytesLen;
-		BitSet bits;
-		int i, j;
-		txtBytes = septetBytes;
-		txtBytesLen = txtBytes.length;
-		bits = new BitSet();
-		for (i = 0; i < txtBytesLen; i++)
-			for (j = 0; j < 7; j++)
-				if ((txtBytes[i] & (1 << j)) != 0) bits.set((i * 7) + j);
-		// big diff here
-		int encodedSeptetByteArrayLength = txtBytesLen * 7 / 8 + ((txtBytesLen * 7 % 8 != 0) ? 1 : 0);
-		txtSeptets = new byte[encodedSeptetByteArrayLength];
-		for (i = 0; i < encodedSeptetByteArrayLength; i++)
+		byte[] txtSeptets = new byte[getNumOctetsForSeptets(septetBytes.length)];
+		unencodedSeptetsToEncodedSeptets(septetBytes, 0, septetBytes.length, txtSeptets, 0);
+		return txtSeptets;
+	}
+
+	// packs len septets (the low 7 bits of each byte) from septets[off] on
+	// into dest from destOff on, eight septets to seven octets at a time
+	// returns the number of octets written
+	public static int unencodedSeptetsToEncodedSeptets(byte[] septets, int off, int len, byte[] dest, int destOff)
+	{
+		int in = off;
+		int out = destOff;
+		int end = off + len;
+		while (end - in >= 8)
 		{
-			for (j = 0; j < 8; j++)
+			long word = 0;
+			for (int j = 0; j < 8; j++)
+				word |= (long) (septets[in++] & 0x7f) << (j * 7);
+			for (int j = 0; j < 7; j++)
 			{
-				txtSeptets[i] |= (byte) ((bits.get((i * 8) + j) ? 1 : 0) << j);
+				dest[out++] = (byte) word;
+				word >>>= 8;
 			}
 		}
-		return txtSeptets;
+		// fewer than eight septets left, i.e. less than a whole word
+		int word = 0;
+		int bits = 0;
+		while (in < end)
+		{
+			word |= (septets[in++] & 0x7f) << bits;
+			bits += 7;
+			if (bits >= 8)
+			{
+				dest[out++] = (byte) word;
+				word >>>= 8;
+				bits -= 8;
+			}
+		}
+		if (bits > 0) dest[out++] = (byte) word;
+		return out - destOff;
+	}
+
+	public static int getNumOctetsForSeptets(int numSeptets)
+	{
+		return (numSeptets * 7 + 7) / 8;
 	}
 
 	public static int getNumMultiCharsInSeptets(byte[] bytes)
@@ -944,37 +976,9 @@ public class PduUtils
 
 	public static byte[] encodedSeptetsToUnencodedSeptets(byte[] octetBytes, boolean discardLast)
 	{
-		byte newBytes[];
-		BitSet bitSet;
-		int i, j, value1, value2;
-		bitSet = new BitSet(octetBytes.length * 8);
-		value1 = 0;
-		for (i = 0; i < octetBytes.length; i++)
-			for (j = 0; j < 8; j++)
-			{
-				value1 = (i * 8) + j;
-				if ((octetBytes[i] & (1 << j)) != 0) bitSet.set(value1);
-			}
-		value1++;
-		// this is a bit count NOT a byte count
-		value2 = value1 / 7 + ((value1 % 7 != 0) ? 1 : 0); // big diff here
-		//System.out.println(octetBytes.length);
-		//System.out.println(value1+" --> "+value2);
-		if (value2 == 0) value2++;
-		newBytes = new byte[value2];
-		for (i = 0; i < value2; i++)
-		{
-			for (j = 0; j < 7; j++)
-			{
-				if ((value1 + 1) > (i * 7 + j))
-				{
-					if (bitSet.get(i * 7 + j))
-					{
-						newBytes[i] |= (byte) (1 << j);
-					}
-				}
-			}
-		}
+		// an empty input still yields a single (zero) septet
+		byte[] newBytes = new byte[Math.max(1, (octetBytes.length * 8 + 6) / 7)];
+		encodedSeptetsToUnencodedSeptets(octetBytes, 0, octetBytes.length, newBytes, 0);
 		if (discardLast && octetBytes.length * 8 % 7 > 0)
 		{
 			// when decoding a 7bit encoded string 
@@ -993,13 +997,74 @@ public class PduUtils
 		return newBytes;
 	}
 
+	// unpacks len octets from octets[off] on into septets written to dest
+	// from destOff on, seven octets to eight septets at a time; trailing
+	// bits that do not make up a whole septet become a last, partial one
+	// returns the number of septets written
+	public static int encodedSeptetsToUnencodedSeptets(byte[] octets, int off, int len, byte[] dest, int destOff)
+	{
+		int in = off;
+		int out = destOff;
+		int end = off + len;
+		while (end - in >= 7)
+		{
+			long word = 0;
+			for (int j = 0; j < 7; j++)
+				word |= (long) (octets[in++] & 0xff) << (j * 8);
+			for (int j = 0; j < 8; j++)
+			{
+				dest[out++] = (byte) (word & 0x7f);
+				word >>>= 7;
+			}
+		}
+		// fewer than seven octets left, i.e. less than a whole word
+		int word = 0;
+		int bits = 0;
+		while (in < end)
+		{
+			word |= (octets[in++] & 0xff) << bits;
+			bits += 8;
+			while (bits >= 7)
+			{
+				dest[out++] = (byte) (word & 0x7f);
+				word >>>= 7;
+				bits -= 7;
+			}
+		}
+		if (bits > 0) dest[out++] = (byte) (word & 0x7f);
+		return out - destOff;
+	}
+
+	// hex digit for each nibble value, as used in PDU style strings
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	// nibble value for each hex digit character, -1 for any other character
+	private static final byte[] HEX_VALUES = new byte[128];
+	static
+	{
+		Arrays.fill(HEX_VALUES, (byte) -1);
+		for (int i = 0; i < 16; i++)
+		{
+			HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+			HEX_VALUES[Character.toLowerCase(HEX_DIGITS[i])] = (byte) i;
+		}
+	}
+
+	private static int hexValue(char c)
+	{
+		int value = (c < HEX_VALUES.length ? HEX_VALUES[c] : -1);
+		if (value < 0) throw new NumberFormatException("Invalid hex digit: " + c);
+		return value;
+	}
+
 	// converts a PDU style string to a byte array
 	public static byte[] pduToBytes(String s)
 	{
+		if (s.length() % 2 != 0) throw new NumberFormatException("Odd number of hex digits: " + s);
 		byte[] bytes = new byte[s.length() / 2];
-		for (int i = 0; i < s.length(); i += 2)
+		for (int i = 0; i < bytes.length; i++)
 		{
-			bytes[i / 2] = (byte) (Integer.parseInt(s.substring(i, i + 2), 16));
+			bytes[i] = (byte) ((hexValue(s.charAt(i * 2)) << 4) | hexValue(s.charAt(i * 2 + 1)));
 		}
 		return bytes;
 	}
@@ -1013,12 +1078,19 @@ public class PduUtils
 	// converts a byte array to PDU style string
 	public static String bytesToPdu(byte[] bytes)
 	{
-		StringBuffer sb = new StringBuffer();
-		for (int i = 0; i < bytes.length; i++)
+		return bytesToPdu(bytes, 0, bytes.length);
+	}
+
+	public static String bytesToPdu(byte[] bytes, int offset, int length)
+	{
+		char[] chars = new char[length * 2];
+		for (int i = 0; i < length; i++)
 		{
-			sb.append(byteToPdu(bytes[i] & 0xFF));
+			int b = bytes[offset + i];
+			chars[i * 2] = HEX_DIGITS[(b >> 4) & 0x0F];
+			chars[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
 		}
-		return sb.toString();
+		return new String(chars);
 	}
 
 	// converts a byte array to a bit string
@@ -1053,13 +1125,6 @@ public class PduUtils
 
 	public static String byteToPdu(int b)
 	{
-		StringBuffer sb = new StringBuffer();
-		String s = Integer.toHexString(b & 0xFF);
-		if (s.length() == 1)
-		{
-			sb.append("0");
-		}
-		sb.append(s);
-		return sb.toString().toUpperCase();
+		return new String(new char[] { HEX_DIGITS[(b >> 4) & 0x0F], HEX_DIGITS[b & 0x0F] });
 	}
 }
@@ -0,0 +1,208 @@
+package org.ajwcc.pduUtils.gsm3040;
+
+import org.ajwcc.pduUtils.gsm3040.ie.*;
+
+//PduUtils Library - A Java library for generating GSM 3040 Protocol Data Units (PDUs)
+//
+//Copyright (C) 2008, Ateneo Java Wireless Competency Center/Blueblade Technologies, Philippines.
+//PduUtils is distributed under the terms of the Apache License version 2.0
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+// Encoding, user data length and number of parts of a message, worked out
+// in a single pass over the text without encoding it
+// the part count is the one PduGenerator splits the message into
+public class SegmentInfo
+{
+	// user data octets in a single PDU
+	private static final int MAX_OCTETS = 140;
+
+	// user data septets in a single PDU
+	private static final int MAX_SEPTETS = 160;
+
+	private final int encoding;
+
+	private final boolean extended;
+
+	private final boolean replaced;
+
+	private final int length;
+
+	private final int maxLengthPerPart;
+
+	private final int parts;
+
+	private final int udhLength;
+
+	// picks 7-bit unless the text has characters GSM 7-bit cannot carry,
+	// in which case UCS2 is used
+	public static SegmentInfo forText(String text)
+	{
+		return forText(text, -1, 0, false);
+	}
+
+	// udhLength is the total length of the UDH already present (port
+	// information for instance), including its length octet, 0 if none
+	public static SegmentInfo forText(String text, int encoding, int udhLength)
+	{
+		return forText(text, encoding, udhLength, false);
+	}
+
+	// binary data, sent 8-bit
+	public static SegmentInfo forData(int dataLength, int udhLength)
+	{
+		return new SegmentInfo(PduUtils.DCS_ENCODING_8BIT, false, false, dataLength, udhLength, false);
+	}
+
+	// the same figures PduGenerator arrives at for this PDU
+	public static SegmentInfo forPdu(Pdu pdu)
+	{
+		int encoding = PduUtils.extractDcsEncoding(pdu.getDataCodingScheme());
+		boolean hasConcat = (pdu.getConcatInfo() != null);
+		// status reports carry no user data
+		if (pdu instanceof SmsStatusReportPdu) { return new SegmentInfo(encoding, false, false, 0, 0, hasConcat); }
+		if ((encoding == PduUtils.DCS_ENCODING_8BIT) && (pdu.isBinary())) { return new SegmentInfo(encoding, false, false, pdu.getDataBytes().length, pdu.getTotalUDHLength(), hasConcat); }
+		return forText(pdu.getDecodedText(), encoding, pdu.getTotalUDHLength(), hasConcat);
+	}
+
+	private static SegmentInfo forText(String text, int encoding, int udhLength, boolean hasConcat)
+	{
+		if ((encoding == PduUtils.DCS_ENCODING_8BIT) || (encoding == PduUtils.DCS_ENCODING_UCS2)) { return new SegmentInfo(encoding, false, false, text.length(), udhLength, hasConcat); }
+		// count the septets the way PduUtils.stringToUnencodedSeptets() writes them
+		int septets = 0;
+		boolean extended = false;
+		boolean replaced = false;
+		for (int i = 0; i < text.length(); i++)
+		{
+			short code = PduUtils.getSeptetCode(text.charAt(i));
+			if (code < 0)
+			{
+				// sent as a blank
+				replaced = true;
+				septets++;
+			}
+			else if (code > 0x7f)
+			{
+				// escape plus the extension code
+				extended = true;
+				septets += 2;
+			}
+			else
+			{
+				septets++;
+			}
+		}
+		if ((encoding < 0) && (replaced)) { return new SegmentInfo(PduUtils.DCS_ENCODING_UCS2, false, false, text.length(), udhLength, hasConcat); }
+		return new SegmentInfo(PduUtils.DCS_ENCODING_7BIT, extended, replaced, septets, udhLength, hasConcat);
+	}
+
+	// length is in septets for 7-bit, in octets for 8-bit and in characters for UCS2
+	private SegmentInfo(int encoding, boolean extended, boolean replaced, int length, int udhLength, boolean hasConcat)
+	{
+		this.encoding = encoding;
+		this.extended = extended;
+		this.replaced = replaced;
+		this.udhLength = udhLength;
+		int maxLength = getMaxLength(encoding, udhLength);
+		if ((length > maxLength) && (!hasConcat))
+		{
+			// a concat IE is added to each part, along with the UDH length octet if there was no UDH
+			maxLength = getMaxLength(encoding, udhLength + ConcatInformationElement.getDefaultConcatLength() + (udhLength == 0 ? 1 : 0));
+		}
+		this.parts = getNumParts(length, maxLength);
+		if (encoding == PduUtils.DCS_ENCODING_UCS2)
+		{
+			this.length = length * 2;
+			this.maxLengthPerPart = maxLength * 2;
+		}
+		else
+		{
+			this.length = length;
+			this.maxLengthPerPart = maxLength;
+		}
+	}
+
+	private static int getMaxLength(int encoding, int udhLength)
+	{
+		switch (encoding)
+		{
+			case PduUtils.DCS_ENCODING_7BIT:
+				return MAX_SEPTETS - PduUtils.getNumSeptetsForOctets(udhLength);
+			case PduUtils.DCS_ENCODING_UCS2:
+				return (MAX_OCTETS - udhLength) / 2;
+			default:
+				return MAX_OCTETS - udhLength;
+		}
+	}
+
+	// number of parts needed for length units, maxLength to a part
+	// at least one, as an empty message still takes a PDU
+	static int getNumParts(int length, int maxLength)
+	{
+		if (length <= maxLength) return 1;
+		return (length + maxLength - 1) / maxLength;
+	}
+
+	// PduUtils.DCS_ENCODING_7BIT, DCS_ENCODING_8BIT or DCS_ENCODING_UCS2
+	public int getEncoding()
+	{
+		return encoding;
+	}
+
+	// true if the 7-bit text uses the extension table, i.e. some characters take two septets
+	public boolean isExtended()
+	{
+		return extended;
+	}
+
+	// true if the 7-bit text has characters GSM 7-bit cannot carry, which are sent as blanks
+	public boolean hasReplacedChars()
+	{
+		return replaced;
+	}
+
+	// user data length without the UDH, in septets for 7-bit and octets otherwise
+	public int getLength()
+	{
+		return length;
+	}
+
+	// user data that fits in each part, same unit as getLength()
+	public int getMaxLengthPerPart()
+	{
+		return maxLengthPerPart;
+	}
+
+	public int getParts()
+	{
+		return parts;
+	}
+
+	// room left in the last part, same unit as getLength()
+	public int getRemaining()
+	{
+		return parts * maxLengthPerPart - length;
+	}
+
+	// the UDH present before any concat IE is added, length octet included
+	public int getUdhLength()
+	{
+		return udhLength;
+	}
+
+	@Override
+	public String toString()
+	{
+		String encodingName = (encoding == PduUtils.DCS_ENCODING_7BIT ? (extended ? "7-bit (extended)" : "7-bit") : (encoding == PduUtils.DCS_ENCODING_8BIT ? "8-bit" : "UCS2"));
+		return encodingName + ", length " + length + ", " + parts + " part(s) of " + maxLengthPerPart;
+	}
+}
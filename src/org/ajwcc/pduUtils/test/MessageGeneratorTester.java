@@ -74,6 +74,7 @@ public class MessageGeneratorTester
                         }
                         System.out.println("EXPECTED PDUs   : "+expectedPdus.size());
                         System.out.println("GENERATED PDUs  : "+pdus.size());
+                        System.out.println("ANALYSED PDUs   : "+((OutboundMessage) message).getSegmentInfo().getParts());
                         
                         if (message instanceof OutboundBinaryMessage)
                         {
@@ -0,0 +1,86 @@
+package org.ajwcc.pduUtils.test;
+
+import java.lang.management.*;
+import java.util.*;
+import org.ajwcc.pduUtils.gsm3040.*;
+
+//PduUtils Library - A Java library for generating GSM 3040 Protocol Data Units (PDUs)
+//
+//Copyright (C) 2008, Ateneo Java Wireless Competency Center/Blueblade Technologies, Philippines.
+//PduUtils is distributed under the terms of the Apache License version 2.0
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+// Reports the bytes allocated per decoded and per encoded PDU by a parser and
+// a generator that are reused across messages, as a gateway uses them.
+// Needs a JVM whose ThreadMXBean reports allocated bytes (HotSpot does).
+public class PduAllocationBenchmark
+{
+	private static final String DELIVER_PDU = "07914477000000000414D0E10D6FE3DBA036A94D190000217050321314042030D82C2703B540F4F29C1E83815AA0A73C7D4EBBC3F4B71C442DCFE9";
+
+	private static final String LONG_TEXT = "This text is long enough to be sent as three concatenated parts, which is where most of the generator's work goes. It repeats itself to get there: this text is long enough to be sent as three concatenated parts, which is where most of the generator's work goes. And once more, as two parts would still hold it otherwise: this text is long enough to be sent as three concatenated parts, which is where most of the generator's work goes. [end]";
+
+	private static final int WARMUP = 50000;
+
+	private static final int ITERATIONS = 200000;
+
+	public static void main(String[] args)
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		byte[] deliverBytes = PduUtils.pduToBytes(DELIVER_PDU);
+		PduParser parser = new PduParser();
+		PduGenerator generator = new PduGenerator();
+		int sink = 0;
+		for (int i = 0; i < WARMUP; i++)
+		{
+			sink += parser.parsePdu(deliverBytes).getUDLength();
+			sink += generator.generateEncodedPduList(newSubmitPdu(), 1).size();
+		}
+		long start = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < ITERATIONS; i++)
+			sink += parser.parsePdu(deliverBytes).getUDLength();
+		long parsing = threads.getThreadAllocatedBytes(thread) - start;
+		start = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < ITERATIONS; i++)
+			sink += newSubmitPdu().getDataCodingScheme();
+		long creating = threads.getThreadAllocatedBytes(thread) - start;
+		int parts = 0;
+		int octets = 0;
+		start = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < ITERATIONS; i++)
+		{
+			List<EncodedPdu> pdus = generator.generateEncodedPduList(newSubmitPdu(), 1);
+			parts = pdus.size();
+			octets = 0;
+			for (EncodedPdu pdu : pdus)
+				octets += pdu.getBytes().length;
+		}
+		long generating = threads.getThreadAllocatedBytes(thread) - start - creating;
+		System.out.println("parse, 7-bit deliver PDU (" + deliverBytes.length + " octets): " + (parsing / ITERATIONS) + " bytes allocated/PDU");
+		System.out.println("generate, 7-bit message in " + parts + " parts (" + octets + " octets out): " + (generating / ITERATIONS) + " bytes allocated/message");
+		System.out.println("(" + sink + ")");
+	}
+
+	private static SmsSubmitPdu newSubmitPdu()
+	{
+		SmsSubmitPdu pdu = PduFactory.newSmsSubmitPdu();
+		pdu.setSmscInfoLength(0);
+		pdu.setAddressType(PduUtils.ADDRESS_TYPE_INTERNATIONAL | PduUtils.ADDRESS_NUMBER_PLAN_ID_TELEPHONE);
+		pdu.setAddress("639170000240");
+		pdu.setProtocolIdentifier(0);
+		pdu.setDataCodingScheme(PduUtils.DCS_ENCODING_7BIT);
+		pdu.setValidityPeriod(8);
+		pdu.setDecodedText(LONG_TEXT);
+		return pdu;
+	}
+}
@@ -0,0 +1,52 @@
+package org.ajwcc.pduUtils.test;
+
+import org.ajwcc.pduUtils.gsm3040.*;
+
+//PduUtils Library - A Java library for generating GSM 3040 Protocol Data Units (PDUs)
+//
+//Copyright (C) 2008, Ateneo Java Wireless Competency Center/Blueblade Technologies, Philippines.
+//PduUtils is distributed under the terms of the Apache License version 2.0
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+public class SeptetEncodingBenchmark
+{
+	private static final String[][] TEXTS = { { "GSM-7", "Your verification code is 482913. It expires in 10 minutes. Do not share it with anyone @ any time!" }, { "extended", "Price: 25\u20ac {incl. VAT} [ref ~A|B] path C:\\tmp\\x ^ok^ - totals {12\u20ac} [3] ~4~ | done" }, { "Greek", "\u0386\u03A9\u0388 \u0393\u0394\u0398\u039B\u039E\u03A0\u03A3\u03A6\u03A8\u03A9 \u03CC\u03CD\u03CE \u0393\u0394\u0398\u039B\u039E\u03A0\u03A3\u03A6\u03A8\u03A9 \u0386\u0388 ABC 123" } };
+
+	private static final int WARMUP = 200000;
+
+	private static final int ITERATIONS = 2000000;
+
+	public static void main(String[] args)
+	{
+		byte[] dest = new byte[320];
+		int sink = 0;
+		for (String[] text : TEXTS)
+		{
+			for (int i = 0; i < WARMUP; i++)
+			{
+				sink += PduUtils.stringToUnencodedSeptets(text[1]).length;
+				sink += PduUtils.stringToUnencodedSeptets(text[1], dest, 0);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				sink += PduUtils.stringToUnencodedSeptets(text[1]).length;
+			long allocating = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				sink += PduUtils.stringToUnencodedSeptets(text[1], dest, 0);
+			long reusing = System.nanoTime() - start;
+			System.out.println(text[0] + " (" + text[1].length() + " chars): " + (allocating / ITERATIONS) + " ns/message new array, " + (reusing / ITERATIONS) + " ns/message caller array");
+		}
+		System.out.println("(" + sink + ")");
+	}
+}
@@ -22,6 +22,7 @@ package org.smslib;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import org.smslib.InboundMessage.MessageClasses;
 import org.smslib.OutboundMessage.FailureCauses;
 import org.smslib.OutboundMessage.MessageStatuses;
@@ -98,7 +99,7 @@ public abstract class AGateway
 
 	private int deliveryErrorCode;
 
-	protected GatewayStatuses status;
+	protected volatile GatewayStatuses status;
 
 	protected int restartCount;
 
@@ -175,7 +176,11 @@ public abstract class AGateway
 	 */
 	public void setOutbound(boolean value)
 	{
-		if ((this.attributes & GatewayAttributes.SEND) != 0) this.outbound = value;
+		if ((this.attributes & GatewayAttributes.SEND) != 0)
+		{
+			this.outbound = value;
+			Service.getInstance().updateRoutingTable();
+		}
 	}
 
 	/**
@@ -236,6 +241,9 @@ public abstract class AGateway
 	{
 		Service.getInstance().getNotifyQueueManager().getNotifyQueue().add(new GatewayStatusNotification(getMyself(), getStatus(), myStatus));
 		this.status = myStatus;
+		Service.getInstance().updateRoutingTable();
+		if ((myStatus == GatewayStatuses.STARTED) && (this.queueManager != null)) this.queueManager.wakeUp();
+		else if (myStatus == GatewayStatuses.RESTART) Service.getInstance().wakeUpWatchDog();
 	}
 
 	/**
@@ -296,7 +304,7 @@ public abstract class AGateway
 	public void startGateway() throws TimeoutException, GatewayException, IOException, InterruptedException
 	{
 		setStatus(GatewayStatuses.STARTING);
-		this.queueManager = new QueueManager("QueueManager [" + this.gatewayId + "]", getQueueSchedulingInterval());
+		this.queueManager = new QueueManager("QueueManager [" + this.gatewayId + "]");
 		this.restartCount++;
 		setStatus(GatewayStatuses.STARTED);
 	}
@@ -327,6 +335,35 @@ public abstract class AGateway
 		throw new GatewayException("Feature not supported.");
 	}
 
+	/**
+	 * Sends the message and reports how long it took, and whether it was
+	 * sent, to the Service's load balancer.
+	 */
+	boolean sendMessageAndReport(OutboundMessage msg) throws TimeoutException, GatewayException, IOException, InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		boolean sent = false;
+		try
+		{
+			sent = sendMessage(msg);
+			return sent;
+		}
+		finally
+		{
+			Service.getInstance().getLoadBalancer().sendCompleted(this, msg, System.currentTimeMillis() - start, sent);
+		}
+	}
+
+	/**
+	 * Runs several sends through this gateway as one batch. Gateways able to
+	 * keep their link set up across messages override this to do so around
+	 * the whole batch; by default the sends are simply run.
+	 */
+	protected void sendBatch(Runnable sends) throws TimeoutException, GatewayException, IOException, InterruptedException
+	{
+		sends.run();
+	}
+
 	public int sendMessages(Collection<OutboundMessage> msgList) throws TimeoutException, GatewayException, IOException, InterruptedException
 	{
 		int cnt = 0;
@@ -481,63 +518,148 @@ public abstract class AGateway
 
 	private class QueueManager extends AServiceThread
 	{
-		public QueueManager(String name, int delay)
+		/**
+		 * A message claimed from the queue but not yet handed to dispatch().
+		 */
+		private OutboundMessage claimed;
+
+		public QueueManager(String name)
 		{
-			super(name, delay, 0, true);
+			// No delay between runs: process() itself waits on the queue.
+			super(name, 0, 0, true);
 		}
 
 		@Override
 		public void process() throws Exception
 		{
-			OutboundMessage msg = null;
+			if (getStatus() != GatewayStatuses.STARTED)
+			{
+				// setStatus() wakes us up once the gateway is started.
+				idle(getQueueSchedulingInterval());
+				return;
+			}
+			this.claimed = Service.getInstance().getQueueManager().claimPendingMessage(getGatewayId(), getQueueSchedulingInterval());
+			if (this.claimed == null) return;
 			try
 			{
-				if (getStatus() == GatewayStatuses.STARTED)
+				sendBatch(new Runnable()
 				{
-					msg = Service.getInstance().getQueueManager().pollPendingMessage(getGatewayId());
-					if (msg != null)
+					@Override
+					public void run()
 					{
-						if (Service.getInstance().getQueueSendingNotification() != null) Service.getInstance().getQueueSendingNotification().process(getMyself(), msg);
-						try
+						dispatchBatch();
+					}
+				});
+			}
+			catch (InterruptedException e)
+			{
+				requeueClaimed();
+				Logger.getInstance().logInfo("QueueManager interrupted.", e, getGatewayId());
+			}
+			catch (Exception e)
+			{
+				// Setting up the batch failed before anything was sent.
+				requeueClaimed();
+				Logger.getInstance().logWarn("Queue exception, marking gateway for reset.", e, getGatewayId());
+				setStatus(GatewayStatuses.RESTART);
+			}
+		}
+
+		/**
+		 * Sends the claimed message, then up to QUEUE_BATCH_SIZE - 1 more. Each
+		 * further message is only taken from the queue right before it is
+		 * sent, so messages still waiting can be cancelled, and are sent in
+		 * priority order, until their turn comes.
+		 */
+		private void dispatchBatch()
+		{
+			int batchSize = Service.getInstance().getSettings().QUEUE_BATCH_SIZE;
+			for (int i = 0; i < batchSize; i++)
+			{
+				// Once the gateway is no longer ready, leave the rest in the queue.
+				if (getStatus() != GatewayStatuses.STARTED) break;
+				OutboundMessage msg = this.claimed;
+				this.claimed = null;
+				try
+				{
+					if (msg == null) msg = Service.getInstance().getQueueManager().claimPendingMessage(getGatewayId(), 0);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+				if ((msg == null) || (!dispatch(msg))) break;
+			}
+			requeueClaimed();
+		}
+
+		private void requeueClaimed()
+		{
+			if (this.claimed == null) return;
+			Service.getInstance().getQueueManager().queueMessage(this.claimed);
+			this.claimed = null;
+		}
+
+		/**
+		 * Sends a single queued message.
+		 * 
+		 * @return False if the gateway ran into trouble and the rest of the
+		 *         batch should not be attempted.
+		 */
+		private boolean dispatch(OutboundMessage msg)
+		{
+			// The stored copy is dropped once the message is done with, unless
+			// it was put back in the queue, which replaces it.
+			boolean requeued = false;
+			try
+			{
+				if (Service.getInstance().getQueueSendingNotification() != null) Service.getInstance().getQueueSendingNotification().process(getMyself(), msg);
+				try
+				{
+					if (!sendMessageAndReport(msg))
+					{
+						if (msg.getRetryCount() < Service.getInstance().getSettings().QUEUE_RETRIES)
 						{
-							if (!sendMessage(msg))
-							{
-								if (msg.getRetryCount() < Service.getInstance().getSettings().QUEUE_RETRIES)
-								{
-									Logger.getInstance().logInfo("Reinserting message to queue.", null, getGatewayId());
-									msg.incrementRetryCount();
-									Service.getInstance().getQueueManager().queueMessage(msg);
-								}
-								else
-								{
-									Logger.getInstance().logWarn("Maximum number of queue retries exceeded, message lost.", null, getGatewayId());
-									msg.setFailureCause(FailureCauses.UNKNOWN);
-									Service.getInstance().getNotifyQueueManager().getNotifyQueue().add(new OutboundMessageNotification(getMyself(), msg));
-								}
-							}
-							else
-							{
-								Service.getInstance().getNotifyQueueManager().getNotifyQueue().add(new OutboundMessageNotification(getMyself(), msg));
-							}
+							Logger.getInstance().logInfo("Reinserting message to queue.", null, getGatewayId());
+							msg.incrementRetryCount();
+							requeued = Service.getInstance().getQueueManager().queueMessage(msg);
 						}
-						catch (TimeoutException e)
+						else
 						{
-							Service.getInstance().getQueueManager().queueMessage(msg);
-							throw e;
+							Logger.getInstance().logWarn("Maximum number of queue retries exceeded, message lost.", null, getGatewayId());
+							msg.setFailureCause(FailureCauses.UNKNOWN);
+							Service.getInstance().getNotifyQueueManager().getNotifyQueue().add(new OutboundMessageNotification(getMyself(), msg));
 						}
 					}
+					else
+					{
+						Service.getInstance().getNotifyQueueManager().getNotifyQueue().add(new OutboundMessageNotification(getMyself(), msg));
+					}
 				}
+				catch (TimeoutException e)
+				{
+					requeued = Service.getInstance().getQueueManager().queueMessage(msg);
+					throw e;
+				}
+				return true;
 			}
 			catch (InterruptedException e)
 			{
-				if ((msg != null) && (msg.getMessageStatus() != MessageStatuses.SENT)) Service.getInstance().getQueueManager().queueMessage(msg);
+				if (msg.getMessageStatus() != MessageStatuses.SENT) requeued = Service.getInstance().getQueueManager().queueMessage(msg);
 				Logger.getInstance().logInfo("QueueManager interrupted.", e, getGatewayId());
+				return false;
 			}
 			catch (Exception e)
 			{
 				Logger.getInstance().logWarn("Queue exception, marking gateway for reset.", e, getGatewayId());
 				setStatus(GatewayStatuses.RESTART);
 				Service.getInstance().getNotifyQueueManager().getNotifyQueue().add(new OutboundMessageNotification(getMyself(), msg));
+				return false;
+			}
+			finally
+			{
+				if (!requeued) Service.getInstance().getQueueManager().acknowledgePendingMessage(msg);
 			}
 		}
 	}
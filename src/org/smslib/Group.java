@@ -22,20 +22,29 @@ package org.smslib;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Group class represent a group of destination numbers.
+ * <p>
+ * Numbers are kept in a concurrent hash set: a number is held at most once,
+ * membership checks take constant time, and the group can be iterated while
+ * numbers are being added or removed. Numbers are returned in no particular
+ * order.
  */
-public class Group
+public class Group implements Iterable<String>
 {
 	private String groupName;
 
-	private Collection<String> groupNumbers;
+	private Set<String> groupNumbers;
 
 	public Group(String myGroupName)
 	{
 		this.groupName = myGroupName;
-		this.groupNumbers = new ArrayList<String>();
+		this.groupNumbers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	}
 
 	/**
@@ -51,7 +60,8 @@ public class Group
 	/**
 	 * Returns the numbers associated with the group.
 	 * 
-	 * @return The numbers associated with the group.
+	 * @return A copy of the numbers associated with the group.
+	 * @see #iterator()
 	 */
 	public Collection<String> getNumbers()
 	{
@@ -59,7 +69,39 @@ public class Group
 	}
 
 	/**
-	 * Adds a number to the group.
+	 * Iterates over the numbers of the group without copying them. The
+	 * iteration reflects some or all of the changes made to the group while it
+	 * is in progress.
+	 */
+	@Override
+	public Iterator<String> iterator()
+	{
+		return Collections.unmodifiableSet(this.groupNumbers).iterator();
+	}
+
+	/**
+	 * Returns the number of numbers in the group.
+	 */
+	public int size()
+	{
+		return this.groupNumbers.size();
+	}
+
+	/**
+	 * Checks if a number belongs to the group.
+	 * 
+	 * @param number
+	 *            The number to search.
+	 * @return True if the number is found.
+	 */
+	public boolean containsNumber(String number)
+	{
+		return this.groupNumbers.contains(number);
+	}
+
+	/**
+	 * Adds a number to the group. Adding a number already in the group has no
+	 * effect.
 	 * 
 	 * @param number
 	 *            The number to add to the group.
@@ -420,4 +420,16 @@ public abstract class Message implements Serializable
 	public String getUuid() {
 		return uuid;
 	}
+
+	/**
+	 * Restores the UUID of a message. Only meant for rebuilding a message which
+	 * was persisted earlier (e.g. by a queue manager); new messages always get
+	 * a fresh random UUID.
+	 * 
+	 * @param uuid
+	 *            The UUID the message was created with.
+	 */
+	public void setUuid(String uuid) {
+		this.uuid = uuid;
+	}
 }
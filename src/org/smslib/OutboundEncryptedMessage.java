@@ -34,6 +34,15 @@ public class OutboundEncryptedMessage extends OutboundBinaryMessage
 {
 	private static final long serialVersionUID = 2L;
 
+	/**
+	 * Creates an empty encrypted message. Data bytes set afterwards via
+	 * setDataBytes() are taken as already encrypted.
+	 */
+	public OutboundEncryptedMessage()
+	{
+		super();
+	}
+
 	public OutboundEncryptedMessage(String myRecipient, byte[] dataBytes) throws SMSLibException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, NoSuchAlgorithmException
 	{
 		setRecipient(myRecipient);
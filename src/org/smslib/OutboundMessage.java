@@ -20,13 +20,16 @@
 
 package org.smslib;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import org.ajwcc.pduUtils.gsm3040.EncodedPdu;
 import org.ajwcc.pduUtils.gsm3040.Pdu;
 import org.ajwcc.pduUtils.gsm3040.PduFactory;
 import org.ajwcc.pduUtils.gsm3040.PduGenerator;
 import org.ajwcc.pduUtils.gsm3040.PduParser;
 import org.ajwcc.pduUtils.gsm3040.PduUtils;
+import org.ajwcc.pduUtils.gsm3040.SegmentInfo;
 import org.ajwcc.pduUtils.gsm3040.SmsSubmitPdu;
 import org.ajwcc.pduUtils.gsm3040.ie.InformationElementFactory;
 
@@ -515,10 +518,43 @@ public class OutboundMessage extends Message
 
 	public List<String> getPdus(String smscNumber, int mpRefNo)
 	{
-		PduGenerator pduGenerator = new PduGenerator();
+		List<EncodedPdu> encodedPdus = getEncodedPdus(smscNumber, mpRefNo);
+		List<String> pdus = new ArrayList<String>(encodedPdus.size());
+		for (EncodedPdu encodedPdu : encodedPdus)
+			pdus.add(encodedPdu.getPduString());
+		return pdus;
+	}
+
+	/**
+	 * Encodes the message into the PDUs to submit, along with the length and
+	 * part number of each, so that they need not be parsed again for sending.
+	 */
+	public List<EncodedPdu> getEncodedPdus(String smscNumber, int mpRefNo)
+	{
+		return getEncodedPdus(new PduGenerator(), smscNumber, mpRefNo);
+	}
+
+	/**
+	 * Same as <code>getEncodedPdus(String, int)</code>, reusing the given
+	 * generator, which must not be in use by another thread.
+	 */
+	public List<EncodedPdu> getEncodedPdus(PduGenerator pduGenerator, String smscNumber, int mpRefNo)
+	{
 		SmsSubmitPdu pdu = createPduObject();
 		initPduObject(pdu, smscNumber);
-		return pduGenerator.generatePduList(pdu, mpRefNo);
+		return pduGenerator.generateEncodedPduList(pdu, mpRefNo);
+	}
+
+	/**
+	 * Returns the encoding, user data length and number of parts of the
+	 * message, as <code>getPdus()</code> would send it, worked out without
+	 * encoding the message.
+	 */
+	public SegmentInfo getSegmentInfo()
+	{
+		SmsSubmitPdu pdu = createPduObject();
+		initPduObject(pdu, "");
+		return SegmentInfo.forPdu(pdu);
 	}
 
 	protected SmsSubmitPdu createPduObject()
@@ -630,14 +666,14 @@ public class OutboundMessage extends Message
 		// - if the user wishes to extract the UD per part, he would need to get all pduStrings
 		// using getPdus(String smscNumber, int mpRefNo), use a
 		// PduParser on each pduString in the returned list, then access the UD via the Pdu object
-		List<String> pdus = pduGenerator.generatePduList(pdu, 1);
+		List<EncodedPdu> pdus = pduGenerator.generateEncodedPduList(pdu, 1);
 		// my this point, pdu will be updated with concat info (in udhi), if present
 		if ((pdu.hasTpUdhi()) && (getEncoding() == MessageEncodings.ENC7BIT)) { throw new RuntimeException("getPduUserData() not supported for 7-bit messages with UDH"); }
 		// sum up the ud parts
 		StringBuffer ud = new StringBuffer();
-		for (String pduString : pdus)
+		for (EncodedPdu encodedPdu : pdus)
 		{
-			Pdu newPdu = new PduParser().parsePdu(pduString);
+			Pdu newPdu = new PduParser().parsePdu(encodedPdu.getBytes());
 			ud.append(PduUtils.bytesToPdu(newPdu.getUserDataAsBytes()));
 		}
 		return ud.toString();
@@ -654,8 +690,7 @@ public class OutboundMessage extends Message
 		// - if the user wishes to extract the UDH per part, he would need to get all pduStrings
 		// using getPdus(String smscNumber, int mpRefNo), use a
 		// PduParser on each pduString in the returned list, then access the UDH via the Pdu object
-		List<String> pdus = pduGenerator.generatePduList(pdu, 1);
-		Pdu newPdu = new PduParser().parsePdu(pdus.get(0));
+		Pdu newPdu = new PduParser().parsePdu(pduGenerator.generatePduBytes(pdu, 1, 1));
 		byte[] udh = newPdu.getUDHData();
 		if (udh != null) return PduUtils.bytesToPdu(udh);
 		return null;
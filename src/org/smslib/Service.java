@@ -24,8 +24,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.smslib.AGateway.GatewayStatuses;
 import org.smslib.InboundMessage.MessageClasses;
 import org.smslib.OutboundMessage.FailureCauses;
@@ -38,6 +42,7 @@ import org.smslib.notify.NotifyQueueManager;
 import org.smslib.queues.AbstractQueueManager;
 import org.smslib.queues.DefaultQueueManager;
 import org.smslib.routing.Router;
+import org.smslib.routing.RoutingTable;
 import org.smslib.threading.AServiceThread;
 
 /**
@@ -55,9 +60,13 @@ public class Service
 
 	private List<InboundMessage> msgList ;
 
-        private Router router;
+	private volatile Router router;
 
-	private LoadBalancer loadBalancer;
+	private volatile LoadBalancer loadBalancer;
+
+	private volatile RoutingTable routingTable;
+
+	private final Object routingTableLock = new Object();
 
 	private WatchDog watchDog;
 
@@ -79,7 +88,7 @@ public class Service
 
 	private long startMillis;
 
-	private Collection<Group> groups;
+	private ConcurrentHashMap<String, Group> groups;
 
 	private volatile ServiceStatus serviceStatus;
 
@@ -101,9 +110,10 @@ public class Service
 	{
 		this.startMillis = System.currentTimeMillis();
 		setServiceStatus(ServiceStatus.STOPPED);
-		this.groups = new ArrayList<Group>();
+		this.groups = new ConcurrentHashMap<String, Group>();
 		listSystemInformation();
 		this.gatewayList = new ArrayList<AGateway>();
+		updateRoutingTable();
 		this.keyManager = KeyManager.getInstance();
 		setRouter(new Router());
 		setLoadBalancer(new RoundRobinLoadBalancer());
@@ -139,6 +149,7 @@ public class Service
 	{
 		if (getServiceStatus() != ServiceStatus.STOPPED) throw new GatewayException("Cannot add gateways while Service is running!");
 		getGateways().add(gateway);
+		updateRoutingTable();
 	}
 
 	/**
@@ -156,7 +167,9 @@ public class Service
 	public boolean removeGateway(AGateway gateway) throws GatewayException
 	{
 		if (getServiceStatus() != ServiceStatus.STOPPED) throw new GatewayException("Cannot remove gateways while Service is running!");
-		return getGateways().remove(gateway);
+		boolean removed = getGateways().remove(gateway);
+		updateRoutingTable();
+		return removed;
 	}
 
 	/**
@@ -608,41 +621,46 @@ public class Service
 	{
 		if (getServiceStatus() != ServiceStatus.STARTED) return false;
 		AGateway gateway = routeMessage(msg);
-		if (gateway != null)
+		if (gateway == null) return false;
+		return sendRoutedMessage(msg, gateway);
+	}
+
+	/**
+	 * Sends a message through the gateway it has been routed to.
+	 */
+	private boolean sendRoutedMessage(OutboundMessage msg, AGateway gateway) throws TimeoutException, GatewayException, IOException, InterruptedException
+	{
+		try
 		{
-			try
+			Group group = getRecipientGroup(msg.getRecipient());
+			if (group == null) return gateway.sendMessageAndReport(msg);
+			List<OutboundMessage> groupMessages = new ArrayList<OutboundMessage>(group.size());
+			for (String to : group)
 			{
-				List<String> recipients = expandGroup(msg.getRecipient());
-				if (recipients.size() == 0) return gateway.sendMessage(msg);
-				List<OutboundMessage> groupMessages = new ArrayList<OutboundMessage>();
-				for (String to : recipients)
-				{
-					OutboundMessage newMessage = new OutboundMessage();
-					msg.copyTo(newMessage);
-					newMessage.setRecipient(to);
-					groupMessages.add(newMessage);
-				}
-				sendMessages(groupMessages);
-				return true;
-			}
-			catch (TimeoutException e)
-			{
-				Logger.getInstance().logWarn("sendMessage(): Gateway " + gateway.getGatewayId() + " does not respond, marking for restart.", null, null);
-				gateway.setStatus(GatewayStatuses.RESTART);
-				msg.setMessageStatus(MessageStatuses.FAILED);
-				msg.setFailureCause(FailureCauses.GATEWAY_FAILURE);
-				return false;
-			}
-			catch (IOException e)
-			{
-				Logger.getInstance().logWarn("sendMessage(): Gateway " + gateway.getGatewayId() + " throws IO errors, marking for restart.", null, null);
-				gateway.setStatus(GatewayStatuses.RESTART);
-				msg.setMessageStatus(MessageStatuses.FAILED);
-				msg.setFailureCause(FailureCauses.GATEWAY_FAILURE);
-				return false;
+				OutboundMessage newMessage = new OutboundMessage();
+				msg.copyTo(newMessage);
+				newMessage.setRecipient(to);
+				groupMessages.add(newMessage);
 			}
+			sendMessages(groupMessages);
+			return true;
+		}
+		catch (TimeoutException e)
+		{
+			Logger.getInstance().logWarn("sendMessage(): Gateway " + gateway.getGatewayId() + " does not respond, marking for restart.", null, null);
+			gateway.setStatus(GatewayStatuses.RESTART);
+			msg.setMessageStatus(MessageStatuses.FAILED);
+			msg.setFailureCause(FailureCauses.GATEWAY_FAILURE);
+			return false;
+		}
+		catch (IOException e)
+		{
+			Logger.getInstance().logWarn("sendMessage(): Gateway " + gateway.getGatewayId() + " throws IO errors, marking for restart.", null, null);
+			gateway.setStatus(GatewayStatuses.RESTART);
+			msg.setMessageStatus(MessageStatuses.FAILED);
+			msg.setFailureCause(FailureCauses.GATEWAY_FAILURE);
+			return false;
 		}
-		return false;
 	}
 
 	/**
@@ -689,12 +707,129 @@ public class Service
 	public int sendMessages(Collection<OutboundMessage> msgList) throws TimeoutException, GatewayException, IOException, InterruptedException
 	{
 		if (getServiceStatus() != ServiceStatus.STARTED) return 0;
+		if (getSettings().CONCURRENT_SEND) return sendMessagesConcurrently(msgList);
 		int counter = 0;
 		for (OutboundMessage msg : msgList)
 			if (sendMessage(msg)) counter++;
 		return counter;
 	}
 
+	/**
+	 * Sends a list of messages, driving every gateway in parallel. The
+	 * messages are routed first, then each gateway sends its share in order
+	 * on a thread of its own. The method blocks until all gateways are done;
+	 * the outcome of each message is found in its status and failure cause.
+	 * <p>
+	 * If a gateway throws, it stops sending its share while the others carry
+	 * on; the first exception is rethrown once all of them have finished.
+	 * 
+	 * @param msgList
+	 *            A list of OutboundMessage objects.
+	 * @return The number of messages sent.
+	 * @throws TimeoutException
+	 *             The gateway did not respond in a timely manner.
+	 * @throws GatewayException
+	 *             A Gateway error occurred.
+	 * @throws IOException
+	 *             An IO error occurred.
+	 * @throws InterruptedException
+	 *             The call was interrupted.
+	 * @see #sendMessages(Collection)
+	 * @see Settings#CONCURRENT_SEND
+	 */
+	public int sendMessagesConcurrently(Collection<OutboundMessage> msgList) throws TimeoutException, GatewayException, IOException, InterruptedException
+	{
+		class Sender extends Thread
+		{
+			AGateway gateway;
+
+			List<OutboundMessage> messages;
+
+			int counter;
+
+			Exception exception;
+
+			public Sender(AGateway gateway)
+			{
+				this.gateway = gateway;
+				this.messages = new ArrayList<OutboundMessage>();
+				setName("Sender [" + gateway.getGatewayId() + "]");
+			}
+
+			@Override
+			public void run()
+			{
+				try
+				{
+					this.gateway.sendBatch(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							try
+							{
+								for (OutboundMessage msg : Sender.this.messages)
+									if (sendRoutedMessage(msg, Sender.this.gateway)) Sender.this.counter++;
+							}
+							catch (Exception e)
+							{
+								Sender.this.exception = e;
+							}
+						}
+					});
+				}
+				catch (Exception e)
+				{
+					this.exception = e;
+				}
+			}
+		}
+		if (getServiceStatus() != ServiceStatus.STARTED) return 0;
+		Map<AGateway, Sender> senders = new LinkedHashMap<AGateway, Sender>();
+		for (OutboundMessage msg : msgList)
+		{
+			AGateway gateway = routeMessage(msg);
+			if (gateway == null) continue;
+			Sender sender = senders.get(gateway);
+			if (sender == null)
+			{
+				sender = new Sender(gateway);
+				senders.put(gateway, sender);
+			}
+			sender.messages.add(msg);
+		}
+		if (senders.size() == 1) senders.values().iterator().next().run();
+		else
+		{
+			for (Sender sender : senders.values())
+				sender.start();
+			try
+			{
+				for (Sender sender : senders.values())
+					sender.join();
+			}
+			catch (InterruptedException e)
+			{
+				for (Sender sender : senders.values())
+					sender.interrupt();
+				throw e;
+			}
+		}
+		int counter = 0;
+		Exception exception = null;
+		for (Sender sender : senders.values())
+		{
+			counter += sender.counter;
+			if (exception == null) exception = sender.exception;
+		}
+		if (exception instanceof TimeoutException) throw (TimeoutException) exception;
+		if (exception instanceof GatewayException) throw (GatewayException) exception;
+		if (exception instanceof IOException) throw (IOException) exception;
+		if (exception instanceof InterruptedException) throw (InterruptedException) exception;
+		if (exception instanceof RuntimeException) throw (RuntimeException) exception;
+		return counter;
+	}
+
 	/**
 	 * .NET bridge method.
 	 */
@@ -766,33 +901,30 @@ public class Service
 	public boolean queueMessage(OutboundMessage msg)
 	{
 		if (getServiceStatus() != ServiceStatus.STARTED) return false;
-		List<String> recipients = expandGroup(msg.getRecipient());
-		if (recipients.size() == 0)
-		{
-			if ("*".equals(msg.getGatewayId()))
-			{
-				AGateway gateway = routeMessage(msg);
-				if (gateway == null) { return false; }
-				msg.setGatewayId(gateway.getGatewayId());
-			}
-			return getQueueManager().queueMessage(msg);
-		}
-		for (String to : recipients)
+		Group group = getRecipientGroup(msg.getRecipient());
+		if (group == null) return routeAndQueueMessage(msg);
+		// Queue each member as we go rather than building all the messages up front.
+		for (String to : group)
 		{
 			OutboundMessage newMessage = new OutboundMessage();
 			msg.copyTo(newMessage);
 			newMessage.setRecipient(to);
-			if ("*".equals(msg.getGatewayId()))
-			{
-				AGateway gateway = routeMessage(msg);
-				if (gateway == null) { return false; }
-				msg.setGatewayId(gateway.getGatewayId());
-			}
-			getQueueManager().queueMessage(newMessage);
+			if (!routeAndQueueMessage(newMessage)) return false;
 		}
 		return true;
 	}
 
+	private boolean routeAndQueueMessage(OutboundMessage msg)
+	{
+		if ("*".equals(msg.getGatewayId()))
+		{
+			AGateway gateway = routeMessage(msg);
+			if (gateway == null) { return false; }
+			msg.setGatewayId(gateway.getGatewayId());
+		}
+		return getQueueManager().queueMessage(msg);
+	}
+
 	/**
 	 * Queues a message for sending from the specific gateway.
 	 * 
@@ -939,6 +1071,7 @@ public class Service
 	 * @param messageId
 	 *            The ID of the message to be removed.
 	 * @return true if the message was removed from the queue.
+	 * @see #removeMessageByUuid(String)
 	 */
 	public boolean removeMessage(String messageId)
 	{
@@ -946,6 +1079,22 @@ public class Service
 		return getQueueManager().removePendingMessage(messageId);
 	}
 
+	/**
+	 * Attempts to remove the message with the specified UUID from the
+	 * background queue. Unlike IDs, UUIDs are unique, and the default queue
+	 * manager finds them without going through the whole queue. Can only be
+	 * used for messages previously queued with the queueMessage() call.
+	 * 
+	 * @param messageUUID
+	 *            The UUID of the message to be removed (see Message.getUuid()).
+	 * @return true if the message was removed from the queue.
+	 */
+	public boolean removeMessageByUuid(String messageUUID)
+	{
+		if (getServiceStatus() != ServiceStatus.STARTED) return false;
+		return getQueueManager().removePendingMessageByUuid(messageUUID);
+	}
+
 	/**
 	 * Deletes the specified message. The operation is not supported by all
 	 * gateways.
@@ -1175,6 +1324,31 @@ public class Service
 		this.router = router;
 	}
 
+	/**
+	 * Returns the current routing table, the outbound gateways that are
+	 * started.
+	 * 
+	 * @return The routing table.
+	 * @see RoutingTable
+	 */
+	public RoutingTable getRoutingTable()
+	{
+		return this.routingTable;
+	}
+
+	/**
+	 * Rebuilds the routing table. Called whenever a gateway is added or
+	 * removed, or changes its status or outbound setting.
+	 */
+	void updateRoutingTable()
+	{
+		// Serialized so that the last table built sees every status change made before it.
+		synchronized (this.routingTableLock)
+		{
+			this.routingTable = new RoutingTable(getGateways());
+		}
+	}
+
 	/**
 	 * Find best suitable gateway to send specific message through Router and
 	 * Load Balancer.
@@ -1184,10 +1358,10 @@ public class Service
 	 * @return Reference to gateway or <code>null</code> if no suitable gateway
 	 *         is found.
 	 */
-	public synchronized AGateway routeMessage(OutboundMessage msg)
+	public AGateway routeMessage(OutboundMessage msg)
 	{
 		Collection<AGateway> gateways;
-		gateways = getRouter().route(msg, getGateways());
+		gateways = getRouter().route(msg, getRoutingTable());
 		if (gateways.size() > 0) return getLoadBalancer().balance(msg, gateways);
 		else
 		{
@@ -1418,13 +1592,44 @@ public class Service
 	 * 
 	 * @param groupName
 	 *            The group name.
-	 * @return True if the group creation succeded.
+	 * @return True if the group creation succeded. False if a group with the
+	 *         same name already exists.
 	 * @see #removeGroup(String)
 	 */
 	public boolean createGroup(String groupName)
 	{
-		this.groups.add(new Group(groupName));
-		return true;
+		return (this.groups.putIfAbsent(groupKey(groupName), new Group(groupName)) == null);
+	}
+
+	/**
+	 * Returns the group with the given name (case insensitive), or null if no
+	 * such group is defined.
+	 * 
+	 * @param groupName
+	 *            The group name.
+	 * @return The group.
+	 */
+	public Group getGroup(String groupName)
+	{
+		if (groupName == null) return null;
+		return this.groups.get(groupKey(groupName));
+	}
+
+	/**
+	 * Returns the group a message recipient expands to, or null if the
+	 * recipient is a plain number. As it always was, a message to a group
+	 * without members goes to the group name itself.
+	 */
+	private Group getRecipientGroup(String recipient)
+	{
+		Group group = getGroup(recipient);
+		if ((group == null) || (group.size() == 0)) return null;
+		return group;
+	}
+
+	private static String groupKey(String groupName)
+	{
+		return groupName.toLowerCase(Locale.ENGLISH);
 	}
 
 	/**
@@ -1437,16 +1642,10 @@ public class Service
 	 */
 	public boolean removeGroup(String groupName)
 	{
-		for (Group a : this.groups)
-		{
-			if (a.getName().equalsIgnoreCase(groupName))
-			{
-				a.clear();
-				this.groups.remove(a);
-				return true;
-			}
-		}
-		return false;
+		Group group = this.groups.remove(groupKey(groupName));
+		if (group == null) return false;
+		group.clear();
+		return true;
 	}
 
 	/**
@@ -1461,11 +1660,11 @@ public class Service
 	 */
 	public ArrayList<String> expandGroup(String groupName)
 	{
-		for (Group a : this.groups)
-		{
-			if (a.getName().equalsIgnoreCase(groupName)) { return new ArrayList<String>(a.getNumbers()); }
-		}
-		return new ArrayList<String>();
+		Group group = getGroup(groupName);
+		ArrayList<String> numbers = new ArrayList<String>(group == null ? 0 : group.size());
+		if (group != null) for (String number : group)
+			numbers.add(number);
+		return numbers;
 	}
 
 	/**
@@ -1481,15 +1680,10 @@ public class Service
 	 */
 	public boolean addToGroup(String groupName, String number)
 	{
-		for (Group a : this.groups)
-		{
-			if (a.getName().equalsIgnoreCase(groupName))
-			{
-				a.addNumber(number);
-				return true;
-			}
-		}
-		return false;
+		Group group = getGroup(groupName);
+		if (group == null) return false;
+		group.addNumber(number);
+		return true;
 	}
 
 	/**
@@ -1506,11 +1700,8 @@ public class Service
 	 */
 	public boolean removeFromGroup(String groupName, String number)
 	{
-		for (Group a : this.groups)
-		{
-			if (a.getName().equalsIgnoreCase(groupName)) { return a.removeNumber(number); }
-		}
-		return false;
+		Group group = getGroup(groupName);
+		return ((group != null) && group.removeNumber(number));
 	}
 
 	/**
@@ -1524,15 +1715,8 @@ public class Service
 	 */
 	public boolean checkInGroup(String groupName, String number)
 	{
-		for (Group a : this.groups)
-		{
-			if (a.getName().equalsIgnoreCase(groupName))
-			{
-				Collection<String> numbers = a.getNumbers();
-				return numbers.contains(number);
-			}
-		}
-		return false;
+		Group group = getGroup(groupName);
+		return ((group != null) && group.containsNumber(number));
 	}
 
 	public boolean setQueueManager(AbstractQueueManager myQueueManager)
@@ -1572,6 +1756,17 @@ public class Service
 		this.watchDog = myWatchDog;
 	}
 
+	/**
+	 * Lets the watchdog restart a gateway marked for restart without waiting
+	 * for its next run. Requests coming from the watchdog itself (a restart
+	 * that failed) are left to the regular interval.
+	 */
+	void wakeUpWatchDog()
+	{
+		WatchDog w = getWatchDog();
+		if ((w != null) && (Thread.currentThread() != w)) w.wakeUp();
+	}
+
 	private class WatchDog extends AServiceThread
 	{
 		public WatchDog(String name, int delay)
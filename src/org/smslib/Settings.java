@@ -43,10 +43,16 @@ public class Settings
 	public boolean SERIAL_POLLING = false;
 
 	/**
-	 * Specifies the polling interval (milliseconds).
+	 * Specifies the polling interval (milliseconds). The poller backs off to
+	 * this interval while the port is idle.
 	 */
 	public int SERIAL_POLLING_INTERVAL = 200;
 
+	/**
+	 * Specifies the polling interval (milliseconds) while data is flowing.
+	 */
+	public int SERIAL_POLLING_MIN_INTERVAL = 10;
+
 	/**
 	 * Specifies the serial ports' timeout (milliseconds).
 	 */
@@ -79,6 +85,14 @@ public class Settings
 	 */
 	public int QUEUE_RETRIES = 3;
 
+	/**
+	 * Maximum number of messages a gateway sends from its queue in one go,
+	 * i.e. under one hold of the gateway (see
+	 * <code>AGateway.sendBatch()</code>). Messages are still taken from the
+	 * queue one at a time, right before each is sent.
+	 */
+	public int QUEUE_BATCH_SIZE = 10;
+
 	/**
 	 * Wait time for generic AT commands (milliseconds).
 	 */
@@ -114,6 +128,20 @@ public class Settings
 	 */
 	public int AT_WAIT_CNMI = 3000;
 
+	/**
+	 * Maximum wait for the answer to a setup command like ATZ or ATE0
+	 * (milliseconds).
+	 */
+	public int AT_WAIT_RESPONSE = 5000;
+
+	/**
+	 * Should the AT_WAIT* delays be slept in full after every command, rather
+	 * than waiting for the modem's answer? Handlers may also ask for this.
+	 * 
+	 * @see org.smslib.modem.athandler.AATHandler#useFixedDelays()
+	 */
+	public boolean AT_FIXED_DELAYS = false;
+
 	/**
 	 * Number of retries for sending a message.
 	 */
@@ -154,6 +182,21 @@ public class Settings
 	 */
 	public boolean CONCURRENT_GATEWAY_START = true;
 
+	/**
+	 * Should sendMessages() drive all gateways in parallel?
+	 * 
+	 * @see Service#sendMessagesConcurrently(java.util.Collection)
+	 */
+	public boolean CONCURRENT_SEND = false;
+
+	/**
+	 * Specifies whether unencrypted IP modems use non-blocking channels served
+	 * by a single shared thread, with a minimal telnet implementation of their
+	 * own. If false (the default), each IP modem uses the commons-net telnet
+	 * client with its own reader threads.
+	 */
+	public boolean IP_MODEM_NIO = false;
+
 	/**
 	 * Disable the use of the CMMS command
 	 */
@@ -174,6 +217,33 @@ public class Settings
 	 */
 	public String QUEUE_DIRECTORY = null;
 
+	/**
+	 * Modem gateways: directory where the parts of incomplete multipart
+	 * messages are kept between reads. When set, such parts are deleted from
+	 * the modem as soon as they are stored here. When null, they are left on
+	 * the modem until the whole message has arrived.
+	 */
+	public String MULTIPART_DIRECTORY = null;
+
+	/**
+	 * JournalQueueManager: size (bytes) after which the active journal segment
+	 * is sealed and a new one is started.
+	 */
+	public int QUEUE_JOURNAL_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * JournalQueueManager: interval (milliseconds) between journal syncs to
+	 * disk. All records appended within the interval share a single fsync. Set
+	 * to 0 to sync after every record.
+	 */
+	public int QUEUE_JOURNAL_SYNC_INTERVAL = 100;
+
+	/**
+	 * JournalQueueManager: interval (milliseconds) between background
+	 * compactions of sealed journal segments.
+	 */
+	public int QUEUE_JOURNAL_COMPACT_INTERVAL = 30000;
+
 	/**
 	 * The queue scheduling interval. This serves as a global setting - it can be
 	 * overidden on the gateway level (see AGateway.java and descendants).
@@ -199,11 +269,13 @@ public class Settings
 		if (System.getProperty("smslib.serial.noevents") != null) this.SERIAL_NOEVENTS = true;
 		if (System.getProperty("smslib.serial.polling") != null) this.SERIAL_POLLING = true;
 		if (System.getProperty("smslib.serial.pollinginterval") != null) this.SERIAL_POLLING_INTERVAL = Integer.parseInt(System.getProperty("smslib.serial.pollinginterval"));
+		if (System.getProperty("smslib.serial.pollingmininterval") != null) this.SERIAL_POLLING_MIN_INTERVAL = Integer.parseInt(System.getProperty("smslib.serial.pollingmininterval"));
 		if (System.getProperty("smslib.serial.timeout") != null) this.SERIAL_TIMEOUT = Integer.parseInt(System.getProperty("smslib.serial.timeout"));
 		if (System.getProperty("smslib.serial.keepalive") != null) this.SERIAL_KEEPALIVE_INTERVAL = Integer.parseInt(System.getProperty("smslib.serial.keepalive"));
 		if (System.getProperty("smslib.serial.buffer") != null) this.SERIAL_BUFFER_SIZE = Integer.parseInt(System.getProperty("smslib.serial.buffer"));
 		if (System.getProperty("smslib.serial.clearwait") != null) this.SERIAL_CLEAR_WAIT = Integer.parseInt(System.getProperty("smslib.serial.clearwait"));
 		if (System.getProperty("smslib.queue.retries") != null) this.QUEUE_RETRIES = Integer.parseInt(System.getProperty("smslib.queue.retries"));
+		if (System.getProperty("smslib.queue.batchsize") != null) this.QUEUE_BATCH_SIZE = Integer.parseInt(System.getProperty("smslib.queue.batchsize"));
 		if (System.getProperty("smslib.outbound.retries") != null) this.OUTBOUND_RETRIES = Integer.parseInt(System.getProperty("smslib.outbound.retries"));
 		if (System.getProperty("smslib.outbound.retrywait") != null) this.OUTBOUND_RETRY_WAIT = Integer.parseInt(System.getProperty("smslib.outbound.retrywait"));
 		if (System.getProperty("smslib.at.wait") != null) this.AT_WAIT = Integer.parseInt(System.getProperty("smslib.at.wait"));
@@ -213,12 +285,20 @@ public class Settings
 		if (System.getProperty("smslib.at.networkwait") != null) this.AT_WAIT_NETWORK = Integer.parseInt(System.getProperty("smslib.at.networkwait"));
 		if (System.getProperty("smslib.at.simpinwait") != null) this.AT_WAIT_SIMPIN = Integer.parseInt(System.getProperty("smslib.at.simpinwait"));
 		if (System.getProperty("smslib.at.cnmiwait") != null) this.AT_WAIT_CNMI = Integer.parseInt(System.getProperty("smslib.at.cnmiwait"));
+		if (System.getProperty("smslib.at.responsewait") != null) this.AT_WAIT_RESPONSE = Integer.parseInt(System.getProperty("smslib.at.responsewait"));
+		if (System.getProperty("smslib.at.fixeddelays") != null) this.AT_FIXED_DELAYS = true;
 		if (System.getProperty("smslib.watchdog") != null) this.WATCHDOG_INTERVAL = Integer.parseInt(System.getProperty("smslib.watchdog"));
 		if (System.getProperty("smslib.disable.concurrent.gateway.startup") != null) this.CONCURRENT_GATEWAY_START = false;
+		if (System.getProperty("smslib.concurrent.send") != null) this.CONCURRENT_SEND = true;
+		if (System.getProperty("smslib.ipmodem.nio") != null) this.IP_MODEM_NIO = true;
 		if (System.getProperty("smslib.nocmti") != null) this.DISABLE_CMTI = true;
 		if (System.getProperty("smslib.nocmms") != null) this.DISABLE_CMMS = true;
 		if (System.getProperty("smslib.nocops") != null) this.DISABLE_COPS = true;
 		if (System.getProperty("smslib.cachedir") != null) CACHE_DIRECTORY = System.getProperty("smslib.cachedir");
 		if (System.getProperty("smslib.queuedir") != null) QUEUE_DIRECTORY = System.getProperty("smslib.queuedir");
+		if (System.getProperty("smslib.multipartdir") != null) MULTIPART_DIRECTORY = System.getProperty("smslib.multipartdir");
+		if (System.getProperty("smslib.queue.journal.segmentsize") != null) this.QUEUE_JOURNAL_SEGMENT_SIZE = Integer.parseInt(System.getProperty("smslib.queue.journal.segmentsize"));
+		if (System.getProperty("smslib.queue.journal.syncinterval") != null) this.QUEUE_JOURNAL_SYNC_INTERVAL = Integer.parseInt(System.getProperty("smslib.queue.journal.syncinterval"));
+		if (System.getProperty("smslib.queue.journal.compactinterval") != null) this.QUEUE_JOURNAL_COMPACT_INTERVAL = Integer.parseInt(System.getProperty("smslib.queue.journal.compactinterval"));
 	}
 }
@@ -20,7 +20,6 @@
 
 package org.smslib.balancing;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import org.smslib.AGateway;
 import org.smslib.OutboundMessage;
@@ -29,6 +28,9 @@ import org.smslib.OutboundMessage;
  * Load Balancing base class. Implements default trivial Load Balancing - just
  * picking first available Gateway to send message. Create subclasses to
  * implement custom functionality.
+ * <p>
+ * <code>balance</code> is called concurrently by every thread sending or
+ * queueing messages, so implementations must be thread-safe.
  * 
  * @author Tomek Cejner
  */
@@ -48,6 +50,23 @@ public class LoadBalancer
 	 */
 	public AGateway balance(OutboundMessage msg, Collection<AGateway> candidates)
 	{
-		return new ArrayList<AGateway>(candidates).get(0);
+		return candidates.iterator().next();
+	}
+
+	/**
+	 * Called after a gateway attempted to send a message, so that balancers
+	 * can learn how the gateways perform. The default does nothing.
+	 * 
+	 * @param gateway
+	 *            The gateway that attempted the send.
+	 * @param msg
+	 *            The message.
+	 * @param duration
+	 *            How long the attempt took, in milliseconds.
+	 * @param sent
+	 *            True if the message was sent.
+	 */
+	public void sendCompleted(AGateway gateway, OutboundMessage msg, long duration, boolean sent)
+	{
 	}
 }
@@ -20,8 +20,11 @@
 
 package org.smslib.balancing;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.smslib.AGateway;
 import org.smslib.OutboundMessage;
 
@@ -31,11 +34,11 @@ import org.smslib.OutboundMessage;
  */
 public final class RoundRobinLoadBalancer extends LoadBalancer
 {
-	private int currentGateway;
+	private final AtomicInteger currentGateway;
 
 	public RoundRobinLoadBalancer()
 	{
-		this.currentGateway = 0;
+		this.currentGateway = new AtomicInteger();
 	}
 
 	/**
@@ -45,13 +48,13 @@ public final class RoundRobinLoadBalancer extends LoadBalancer
 	@Override
 	public AGateway balance(OutboundMessage msg, Collection<AGateway> candidates)
 	{
-		int currentIndex;
-		ArrayList<AGateway> c = new ArrayList<AGateway>(candidates);
-		synchronized (this) {
-			if (this.currentGateway >= c.size()) this.currentGateway = 0;
-			currentIndex = this.currentGateway++;
-		}
-		
-		return (c.get(currentIndex));
+		int size = candidates.size();
+		if (size == 1) return candidates.iterator().next();
+		int currentIndex = (this.currentGateway.getAndIncrement() & Integer.MAX_VALUE) % size;
+		if (candidates instanceof List && candidates instanceof RandomAccess) return ((List<AGateway>) candidates).get(currentIndex);
+		Iterator<AGateway> i = candidates.iterator();
+		while (currentIndex-- > 0)
+			i.next();
+		return i.next();
 	}
 }
@@ -0,0 +1,154 @@
+// SMSLib for Java v3
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.smslib.balancing;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import org.smslib.AGateway;
+import org.smslib.OutboundMessage;
+import org.smslib.Service;
+
+/**
+ * ThroughputLoadBalancer sends each message to the gateway expected to
+ * complete it first, so that a fleet mixing slow modems with fast HTTP or
+ * SMPP links is used at its real capacity.
+ * <p>
+ * For each gateway it keeps an exponentially weighted moving average of the
+ * send time and of the failure rate, fed by <code>sendCompleted</code>. The
+ * expected completion time of a gateway is then its pending queue, plus the
+ * new message, times the average send time, scaled up by the expected number
+ * of attempts per successful send. Gateways not measured yet are assumed to
+ * take <code>initialSendTime</code>.
+ */
+public class ThroughputLoadBalancer extends LoadBalancer
+{
+	private static final double MAX_FAILURE_RATE = 0.9;
+
+	private final double alpha;
+
+	private final double initialSendTime;
+
+	private final ConcurrentHashMap<AGateway, GatewayStats> stats;
+
+	public ThroughputLoadBalancer()
+	{
+		this(0.2, 1000);
+	}
+
+	/**
+	 * @param alpha
+	 *            Weight of the latest sample in the moving averages, between 0
+	 *            and 1.
+	 * @param initialSendTime
+	 *            Send time assumed for gateways not measured yet, in
+	 *            milliseconds.
+	 */
+	public ThroughputLoadBalancer(double alpha, long initialSendTime)
+	{
+		if ((alpha <= 0) || (alpha > 1)) throw new IllegalArgumentException("alpha must be in (0, 1]");
+		this.alpha = alpha;
+		this.initialSendTime = initialSendTime;
+		this.stats = new ConcurrentHashMap<AGateway, GatewayStats>();
+	}
+
+	@Override
+	public AGateway balance(OutboundMessage msg, Collection<AGateway> candidates)
+	{
+		AGateway best = null;
+		double bestTime = Double.MAX_VALUE;
+		for (AGateway gateway : candidates)
+		{
+			double time = getExpectedCompletionTime(gateway);
+			if ((best == null) || (time < bestTime))
+			{
+				best = gateway;
+				bestTime = time;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public void sendCompleted(AGateway gateway, OutboundMessage msg, long duration, boolean sent)
+	{
+		getStats(gateway).update(duration, sent);
+	}
+
+	/**
+	 * Returns the time, in milliseconds, the gateway is expected to need to
+	 * send one more message.
+	 */
+	public double getExpectedCompletionTime(AGateway gateway)
+	{
+		GatewayStats s = this.stats.get(gateway);
+		double sendTime = ((s == null) || (s.sendTime < 0) ? this.initialSendTime : s.sendTime);
+		// A queue of sub-millisecond sends is not free; keep the pending queue weighing in.
+		sendTime = Math.max(sendTime, 1);
+		double failureRate = (s == null ? 0 : Math.min(s.failureRate, MAX_FAILURE_RATE));
+		int pending = Service.getInstance().getQueueManager().pendingQueueSize(gateway.getGatewayId());
+		return (pending + 1) * sendTime / (1 - failureRate);
+	}
+
+	/**
+	 * Returns the average send time of the gateway in milliseconds, or -1 if
+	 * it has not been measured yet.
+	 */
+	public double getAverageSendTime(AGateway gateway)
+	{
+		GatewayStats s = this.stats.get(gateway);
+		return (s == null ? -1 : s.sendTime);
+	}
+
+	/**
+	 * Returns the average failure rate of the gateway, between 0 and 1.
+	 */
+	public double getFailureRate(AGateway gateway)
+	{
+		GatewayStats s = this.stats.get(gateway);
+		return (s == null ? 0 : s.failureRate);
+	}
+
+	private GatewayStats getStats(AGateway gateway)
+	{
+		GatewayStats s = this.stats.get(gateway);
+		if (s == null)
+		{
+			s = new GatewayStats();
+			GatewayStats existing = this.stats.putIfAbsent(gateway, s);
+			if (existing != null) s = existing;
+		}
+		return s;
+	}
+
+	private class GatewayStats
+	{
+		volatile double sendTime = -1;
+
+		volatile double failureRate;
+
+		synchronized void update(long duration, boolean sent)
+		{
+			if (this.sendTime < 0) this.sendTime = duration;
+			else this.sendTime += ThroughputLoadBalancer.this.alpha * (duration - this.sendTime);
+			this.failureRate += ThroughputLoadBalancer.this.alpha * ((sent ? 0 : 1) - this.failureRate);
+		}
+	}
+}
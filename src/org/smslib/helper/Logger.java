@@ -62,6 +62,15 @@ public class Logger
 		Logger.logger = logger;
 	}
 
+	/**
+	 * Tells whether debug messages are logged, for callers to skip building
+	 * them otherwise.
+	 */
+	public boolean isDebugEnabled()
+	{
+		return ((log4jLogger != null) && log4jLogger.isDebugEnabled());
+	}
+
 	public void logInfo(String message, Exception e, String gatewayId)
 	{
 		if (log4jLogger == null) return;
@@ -22,6 +22,7 @@ package org.smslib.modem;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
 import java.util.concurrent.BlockingQueue;
@@ -39,6 +40,7 @@ import org.smslib.AGateway.GatewayStatuses;
 import org.smslib.AGateway.Protocols;
 import org.smslib.InboundMessage.MessageClasses;
 import org.smslib.helper.Logger;
+import org.smslib.modem.ATResponseParser.ResponseTypes;
 import org.smslib.notify.CallNotification;
 import org.smslib.notify.InboundMessageNotification;
 import org.smslib.threading.AServiceThread;
@@ -48,10 +50,6 @@ import org.smslib.threading.AServiceThread;
  */
 public abstract class AModemDriver
 {
-	private static final String rxErrorWithCode = "\\s*[\\p{ASCII}]*\\s*\\+(CM[ES])\\s+ERROR: (\\d+)\\s";
-
-	private static final String rxPlainError = "\\s*[\\p{ASCII}]*\\s*(ERROR|NO CARRIER|NO DIALTONE)\\s";
-
 	private Object SYNC_Reader, SYNC_Commander, SYNC_InboundReader;
 
 	private ModemGateway gateway;
@@ -85,6 +83,9 @@ public abstract class AModemDriver
 	 */
 	private int lastError;
 
+	/** The last command written, which the next response answers. */
+	private volatile String lastCommand;
+
 	static int OK = 0;
 
 	protected AModemDriver(ModemGateway myGateway, String deviceParms)
@@ -115,7 +116,7 @@ public abstract class AModemDriver
 				setConnected(true);
 				setKeepAlive(new KeepAlive("KeepAlive [" + getGateway().getGatewayId() + "]", Service.getInstance().getSettings().SERIAL_KEEPALIVE_INTERVAL * 1000));
 				setCnmiEmulationProcessor(new CNMIEmulatorProcessor("CNMIEmulatorProcessor [" + getGateway().getGatewayId() + "]", Service.getInstance().getSettings().CNMI_EMULATOR_INTERVAL * 1000));
-				setModemReader(new ModemReader());
+				if (!pushesReceivedData()) setModemReader(new ModemReader());
 				setAsyncNotifier(new AsyncNotifier());
 				setAsyncMessageProcessor(new AsyncMessageProcessor());
 				clearBuffer();
@@ -141,7 +142,7 @@ public abstract class AModemDriver
 						Logger.getInstance().logDebug("SIM requesting PIN2.", null, getGateway().getGatewayId());
 						if ((getGateway().getSimPin2() == null) || (getGateway().getSimPin2().length() == 0)) throw new GatewayException("The GSM modem requires SIM PIN2 to operate.");
 						if (!getGateway().getATHandler().enterPin(getGateway().getSimPin2())) throw new GatewayException("SIM PIN2 provided is not accepted by the GSM modem.");
-						Thread.sleep(Service.getInstance().getSettings().AT_WAIT_SIMPIN);
+						waitForSimReady("SIM PIN2");
 						continue;
 					}
 					else if (response.indexOf("SIM PIN") >= 0)
@@ -149,7 +150,7 @@ public abstract class AModemDriver
 						Logger.getInstance().logDebug("SIM requesting PIN.", null, getGateway().getGatewayId());
 						if ((getGateway().getSimPin() == null) || (getGateway().getSimPin().length() == 0)) throw new GatewayException("The GSM modem requires SIM PIN to operate.");
 						if (!getGateway().getATHandler().enterPin(getGateway().getSimPin())) throw new GatewayException("SIM PIN provided is not accepted by the GSM modem.");
-						Thread.sleep(Service.getInstance().getSettings().AT_WAIT_SIMPIN);
+						waitForSimReady("SIM PIN");
 						continue;
 					}
 					else if (response.indexOf("READY") >= 0) break;
@@ -283,6 +284,34 @@ public abstract class AModemDriver
 		disconnectPort();
 	}
 
+	/**
+	 * Drivers that hand received data to <code>received()</code> as it
+	 * arrives return true, so that no reader thread polls their port.
+	 */
+	protected boolean pushesReceivedData()
+	{
+		return false;
+	}
+
+	/**
+	 * Queues data received from the modem, for drivers pushing it.
+	 * 
+	 * @see #pushesReceivedData()
+	 */
+	protected void received(byte[] b, int off, int len)
+	{
+		getCharQueue().put(b, off, len);
+		if (hasUnsolicitedResponse() && (getKeepAlive() != null)) getKeepAlive().wakeUp();
+	}
+
+	boolean hasUnsolicitedResponse()
+	{
+		String data = getCharQueue().peek(6);
+		for (int i = 0; i < getGateway().getATHandler().getUnsolicitedResponses().length; i++)
+			if (data.indexOf(getGateway().getATHandler().getUnsolicitedResponse(i)) >= 0) return true;
+		return false;
+	}
+
 	public abstract void write(char c) throws IOException;
 
 	public abstract void write(byte[] s) throws IOException;
@@ -298,14 +327,17 @@ public abstract class AModemDriver
 
 	public void write(String s) throws IOException
 	{
-		Logger.getInstance().logDebug("SEND :" + formatLog(s), null, getGateway().getGatewayId());
+		this.lastCommand = s;
+		if (Logger.getInstance().isDebugEnabled()) Logger.getInstance().logDebug("SEND :" + formatLog(s), null, getGateway().getGatewayId());
 		write(s.getBytes());
 	}
 
 	public void addToQueue(String s)
 	{
+		byte[] b = new byte[s.length()];
 		for (int i = 0; i < s.length(); i++)
-			getCharQueue().put((byte) s.charAt(i));
+			b[i] = (byte) s.charAt(i);
+		getCharQueue().put(b, 0, b.length);
 	}
 
 	public String getResponse() throws GatewayException, TimeoutException, IOException, InterruptedException
@@ -313,6 +345,90 @@ public abstract class AModemDriver
 		return getResponse(AsyncEvents.NOTHING);
 	}
 
+	/**
+	 * Version of getResponse that gives up after <code>timeout</code>
+	 * milliseconds of silence, instead of the serial timeout.
+	 */
+	public String getResponse(long timeout) throws GatewayException, TimeoutException, IOException, InterruptedException
+	{
+		return getResponse(AsyncEvents.NOTHING, timeout);
+	}
+
+	/**
+	 * Streaming version of getResponse: each line of the response is handed
+	 * to the listener as soon as it is read, and none is kept afterwards.
+	 * Unsolicited responses arriving first are processed as usual.
+	 * 
+	 * @return The final result code.
+	 */
+	public String getResponse(ResponseLineListener listener) throws GatewayException, TimeoutException, IOException, InterruptedException
+	{
+		String line;
+		setLastError(-1);
+		ATResponseParser parser = new ATResponseParser(getGateway().getATHandler().getUnsolicitedResponses());
+		parser.setCommand(this.lastCommand);
+		parser.setRetainingLines(false);
+		while (true)
+		{
+			line = getCharQueue().readLine();
+			ResponseTypes responseType = parser.addLine(line);
+			if (responseType == ResponseTypes.INCOMPLETE) listener.lineReceived(line);
+			else if (responseType == ResponseTypes.UNSOLICITED)
+			{
+				notifyUnsolicited(getGateway().getATHandler().processUnsolicitedEvents(parser.getResponse()), parser.getResponse());
+				parser.reset();
+			}
+			else break;
+		}
+		setLastError(parser.getErrorCode());
+		if (Logger.getInstance().isDebugEnabled()) Logger.getInstance().logDebug("RECV :" + formatLog(parser.getResponse()), null, getGateway().getGatewayId());
+		return parser.getResponse();
+	}
+
+	/**
+	 * Waits for the prompt a command like AT+CMGS answers with before taking
+	 * its data. Unsolicited responses arriving first, like +CMTI or RING, are
+	 * processed as usual and any other line which does not complete the
+	 * command is skipped.
+	 * 
+	 * @return False if the modem answered with a final result code (an error,
+	 *         most likely), which is then left for getResponse().
+	 * @throws TimeoutException
+	 *             If the prompt did not arrive within <code>timeout</code>
+	 *             milliseconds.
+	 */
+	public boolean waitForPrompt(long timeout) throws TimeoutException, IOException, InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true)
+		{
+			if (getCharQueue().readPrompt(deadline - System.currentTimeMillis()))
+			{
+				Logger.getInstance().logDebug("RECV :> ", null, getGateway().getGatewayId());
+				return true;
+			}
+			ATResponseParser parser = new ATResponseParser(getGateway().getATHandler().getUnsolicitedResponses());
+			parser.setCommand(this.lastCommand);
+			ResponseTypes responseType = parser.addLine(getCharQueue().peekLine(deadline - System.currentTimeMillis()));
+			if ((responseType != ResponseTypes.UNSOLICITED) && (responseType != ResponseTypes.INCOMPLETE))
+			{
+				Logger.getInstance().logDebug("RECV :(no prompt)", null, getGateway().getGatewayId());
+				return false;
+			}
+			getCharQueue().readLine(Math.max(deadline - System.currentTimeMillis(), 0));
+			if (responseType == ResponseTypes.UNSOLICITED) notifyUnsolicited(getGateway().getATHandler().processUnsolicitedEvents(parser.getResponse()), parser.getResponse());
+			else Logger.getInstance().logDebug("Skipping while waiting for prompt: " + formatLog(parser.getResponse()), null, getGateway().getGatewayId());
+		}
+	}
+
+	/**
+	 * Hands the events applications are notified of to the async notifier.
+	 */
+	private void notifyUnsolicited(AsyncEvents event, String response)
+	{
+		if ((event == AsyncEvents.INBOUNDMESSAGE) || (event == AsyncEvents.INBOUNDSTATUSREPORTMESSAGE) || (event == AsyncEvents.INBOUNDCALL) || (event == AsyncEvents.USSDRESPONSE)) getAsyncNotifier().setEvent(event, response);
+	}
+
 	/*
 	* Version of getResponse that looks for a particular type of unsolicited response (e.g. USSDResponse) and returns 
 	* response without triggering an event.  Useful if you want to get a USSD response synchronously rather
@@ -320,74 +436,35 @@ public abstract class AModemDriver
 	* to handle all unsolicited responses through the event mechanism.
 	*/
 	public String getResponse(AsyncEvents eventResponse) throws GatewayException, TimeoutException, IOException, InterruptedException
+	{
+		return getResponse(eventResponse, Service.getInstance().getSettings().SERIAL_TIMEOUT);
+	}
+
+	private String getResponse(AsyncEvents eventResponse, long timeout) throws GatewayException, TimeoutException, IOException, InterruptedException
 	{
 		String response;
-		byte c;
 		setLastError(-1);
-		StringBuffer buffer = new StringBuffer(Service.getInstance().getSettings().SERIAL_BUFFER_SIZE);
+		ATResponseParser parser = new ATResponseParser(getGateway().getATHandler().getUnsolicitedResponses());
+		// A caller waiting for an unsolicited response has no command outstanding.
+		if (eventResponse == AsyncEvents.NOTHING) parser.setCommand(this.lastCommand);
 		try
 		{
 			while (true)
 			{
-				while ((getCharQueue().peek() == 0x0a) || (getCharQueue().peek() == 0x0d))
+				while (parser.addLine(getCharQueue().readLine(timeout)) == ResponseTypes.INCOMPLETE)
 				{
-					getCharQueue().get();
-				}
-				while (true)
-				{
-					c = getCharQueue().get();
-					if (System.getProperty("smslib.dumpqueues") != null) Logger.getInstance().logDebug("OUT READER QUEUE : " + (int) c + " / " + (char) c, null, getGateway().getGatewayId());
-					if (c != 0x0a) buffer.append((char) c);
-					else break;
-				}
-				if (buffer.charAt(buffer.length() - 1) != 0x0d) buffer.append((char) 0x0d);
-				response = buffer.toString();
-				if (getGateway().getATHandler().matchesTerminator(response))
-				{
-					break;
+					// Keep collecting until the response is complete.
 				}
+				response = parser.getResponse();
+				Logger.getInstance().logDebug("BUFFER: " + response, null, getGateway().getGatewayId());
+				if (parser.getResponseType() != ResponseTypes.UNSOLICITED) break;
+				AsyncEvents event = getGateway().getATHandler().processUnsolicitedEvents(response);
+				if (event == eventResponse && eventResponse != AsyncEvents.NOTHING) { return response; }
+				notifyUnsolicited(event, response);
+				parser.reset();
 			}
-			Logger.getInstance().logDebug("BUFFER: " + buffer, null, getGateway().getGatewayId());
-			if (getGateway().getATHandler().isUnsolicitedResponse(buffer.toString()))
-			{
-				AsyncEvents event = getGateway().getATHandler().processUnsolicitedEvents(buffer.toString());
-				if (event == eventResponse && eventResponse != AsyncEvents.NOTHING) { return buffer.toString(); }
-				if ((event == AsyncEvents.INBOUNDMESSAGE) || (event == AsyncEvents.INBOUNDSTATUSREPORTMESSAGE) || (event == AsyncEvents.INBOUNDCALL) || (event == AsyncEvents.USSDRESPONSE)) getAsyncNotifier().setEvent(event, buffer.toString());
-				return getResponse();
-			}
-			// Try to interpret error code
-			if (response.matches(rxErrorWithCode))
-			{
-				Pattern p = Pattern.compile(rxErrorWithCode);
-				Matcher m = p.matcher(response);
-				if (m.find())
-				{
-					try
-					{
-						if (m.group(1).equals("CME"))
-						{
-							int code = Integer.parseInt(m.group(2));
-							setLastError(5000 + code);
-						}
-						else if (m.group(1).equals("CMS"))
-						{
-							int code = Integer.parseInt(m.group(2));
-							setLastError(6000 + code);
-						}
-						else throw new GatewayException("Invalid error response: " + m.group(1));
-					}
-					catch (NumberFormatException e)
-					{
-						Logger.getInstance().logDebug("Error on number conversion while interpreting response: ", null, getGateway().getGatewayId());
-						throw new GatewayException("Cannot convert error code number.");
-					}
-				}
-				else throw new GatewayException("Cannot match error code. Should never happen!");
-			}
-			else if (response.matches(rxPlainError)) setLastError(9000);
-			else if (response.indexOf("OK") >= 0) setLastError(0);
-			else setLastError(10000);
-			Logger.getInstance().logDebug("RECV :" + formatLog(buffer.toString()), null, getGateway().getGatewayId());
+			setLastError(parser.getErrorCode());
+			if (Logger.getInstance().isDebugEnabled()) Logger.getInstance().logDebug("RECV :" + formatLog(response), null, getGateway().getGatewayId());
 		}
 		catch (InterruptedException e)
 		{
@@ -396,10 +473,30 @@ public abstract class AModemDriver
 		}
 		catch (TimeoutException e)
 		{
-			Logger.getInstance().logDebug("Buffer contents on timeout: " + buffer, null, getGateway().getGatewayId());
+			Logger.getInstance().logDebug("Buffer contents on timeout: " + parser.getResponse(), null, getGateway().getGatewayId());
 			throw e;
 		}
-		return buffer.toString();
+		return response;
+	}
+
+	/**
+	 * Gives the SIM up to AT_WAIT_SIMPIN milliseconds to accept the PIN just
+	 * entered, returning as soon as it stops asking for it.
+	 */
+	private void waitForSimReady(String request) throws TimeoutException, GatewayException, IOException, InterruptedException
+	{
+		if (getGateway().getATHandler().useFixedDelays())
+		{
+			Thread.sleep(Service.getInstance().getSettings().AT_WAIT_SIMPIN);
+			return;
+		}
+		long deadline = System.currentTimeMillis() + Service.getInstance().getSettings().AT_WAIT_SIMPIN;
+		while (System.currentTimeMillis() < deadline)
+		{
+			String response = getGateway().getATHandler().getSimStatus();
+			if ((response.indexOf(request) < 0) && (response.indexOf("BUSY") < 0)) return;
+			Thread.sleep(Service.getInstance().getSettings().AT_WAIT);
+		}
 	}
 
 	public void clearBuffer() throws IOException, InterruptedException
@@ -500,88 +597,247 @@ public abstract class AModemDriver
 		return response.toString();
 	}
 
+	/**
+	 * Byte ring between the thread reading the port (the only producer) and
+	 * the thread processing responses (the only consumer). Neither side locks
+	 * to move data; the producer only takes the monitor to wake a consumer that
+	 * is actually waiting, once per chunk it puts.
+	 * <p>
+	 * The producer may be a thread shared by many modems (the IP modem
+	 * selector, the serial event thread), so it never waits for room: what
+	 * does not fit in the ring is kept aside, in arrival order, and moved in
+	 * by the consumer as it frees room. While anything is kept aside, the
+	 * ring is only written under the monitor.
+	 */
 	private class CharQueue
 	{
-		byte[] buffer;
+		/** Bytes kept aside at most, before new ones are dropped. */
+		static final int MAX_OVERFLOW = 1024 * 1024;
+
+		final byte[] buffer;
+
+		final boolean dumpQueues;
+
+		/** Next position to read; only the consumer moves it. */
+		volatile int bufferStart;
+
+		/** Next position to write; only the producer moves it, unless overflowed. */
+		volatile int bufferEnd;
 
-		int bufferStart, bufferEnd;
+		volatile boolean waiting;
+
+		/** Set, by the producer only, while bytes are kept aside. */
+		volatile boolean overflowed;
+
+		final LinkedList<byte[]> overflow;
+
+		int overflowOffset;
+
+		int overflowSize;
 
 		public CharQueue()
 		{
-			this.buffer = null;
+			this.buffer = new byte[Service.getInstance().getSettings().SERIAL_BUFFER_SIZE];
+			this.dumpQueues = (System.getProperty("smslib.dumpqueues") != null);
 			this.bufferStart = 0;
 			this.bufferEnd = 0;
+			this.overflow = new LinkedList<byte[]>();
 		}
 
-		public synchronized void put(byte c)
+		private int next(int i)
 		{
-			if (this.buffer == null) this.buffer = new byte[Service.getInstance().getSettings().SERIAL_BUFFER_SIZE];
-			this.buffer[this.bufferEnd] = c;
-			this.bufferEnd++;
-			if (this.bufferEnd == Service.getInstance().getSettings().SERIAL_BUFFER_SIZE) this.bufferEnd = 0;
-			if (System.getProperty("smslib.dumpqueues") != null) Logger.getInstance().logDebug("IN READER QUEUE : " + (int) c + " / " + (char) c, null, getGateway().getGatewayId());
-			notifyAll();
+			return (i + 1 == this.buffer.length ? 0 : i + 1);
 		}
 
-		public synchronized byte get() throws TimeoutException, InterruptedException
+		private int size()
 		{
-			byte c;
-			if (this.buffer == null) this.buffer = new byte[Service.getInstance().getSettings().SERIAL_BUFFER_SIZE];
-			while (true)
+			int size = this.bufferEnd - this.bufferStart;
+			return (size < 0 ? size + this.buffer.length : size);
+		}
+
+		public void put(byte c)
+		{
+			if ((this.overflowed) || (size() == this.buffer.length - 1))
 			{
-				try
+				put(new byte[] { c }, 0, 1);
+				return;
+			}
+			int end = this.bufferEnd;
+			this.buffer[end] = c;
+			if (this.dumpQueues) Logger.getInstance().logDebug("IN READER QUEUE : " + (int) c + " / " + (char) c, null, getGateway().getGatewayId());
+			this.bufferEnd = next(end);
+			wakeConsumer();
+		}
+
+		/**
+		 * Appends the bytes without ever waiting. Bytes are dropped only if
+		 * the consumer has fallen too far behind.
+		 */
+		public void put(byte[] b, int off, int len)
+		{
+			if (!this.overflowed)
+			{
+				int n = write(b, off, len);
+				off += n;
+				len -= n;
+				wakeConsumer();
+				if (len == 0) return;
+			}
+			synchronized (this)
+			{
+				// The consumer may have moved everything in meanwhile.
+				if (!this.overflowed)
 				{
-					if (this.bufferStart == this.bufferEnd) wait(Service.getInstance().getSettings().SERIAL_TIMEOUT);
-					if (this.bufferStart == this.bufferEnd) throw new TimeoutException("No response from device.");
-					c = this.buffer[this.bufferStart];
-					this.bufferStart++;
-					if (this.bufferStart == Service.getInstance().getSettings().SERIAL_BUFFER_SIZE) this.bufferStart = 0;
-					return c;
+					int n = write(b, off, len);
+					off += n;
+					len -= n;
+					if (len == 0)
+					{
+						notifyAll();
+						return;
+					}
 				}
-				catch (InterruptedException e)
+				if (this.overflowSize + len > MAX_OVERFLOW)
 				{
-					if (getGateway().getStatus() == GatewayStatuses.STARTED) Logger.getInstance().logWarn("Ignoring InterruptedException in Queue.get().", null, getGateway().getGatewayId());
-					else
+					Logger.getInstance().logWarn("Reader queue full, dropping " + len + " bytes.", null, getGateway().getGatewayId());
+					return;
+				}
+				byte[] chunk = new byte[len];
+				System.arraycopy(b, off, chunk, 0, len);
+				this.overflow.add(chunk);
+				this.overflowSize += len;
+				this.overflowed = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Writes as many bytes as the ring has room for.
+		 * 
+		 * @return The number of bytes written.
+		 */
+		private int write(byte[] b, int off, int len)
+		{
+			int n = Math.min(len, this.buffer.length - 1 - size());
+			int end = this.bufferEnd;
+			for (int i = 0; i < n; i++)
+			{
+				this.buffer[end] = b[off + i];
+				end = next(end);
+				if (this.dumpQueues) Logger.getInstance().logDebug("IN READER QUEUE : " + (int) b[off + i] + " / " + (char) b[off + i], null, getGateway().getGatewayId());
+			}
+			this.bufferEnd = end;
+			return n;
+		}
+
+		private void wakeConsumer()
+		{
+			if (this.waiting)
+			{
+				synchronized (this)
+				{
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Moves the read position, then moves bytes kept aside into the room
+		 * freed.
+		 */
+		private void consumed(int start)
+		{
+			this.bufferStart = start;
+			if (this.overflowed)
+			{
+				synchronized (this)
+				{
+					while (!this.overflow.isEmpty())
 					{
-						Logger.getInstance().logWarn("Re-throwing InterruptedException in Queue.get() - should be during shutdown...", null, getGateway().getGatewayId());
-						throw new InterruptedException();
+						byte[] chunk = this.overflow.peek();
+						int n = write(chunk, this.overflowOffset, chunk.length - this.overflowOffset);
+						this.overflowOffset += n;
+						this.overflowSize -= n;
+						if (this.overflowOffset < chunk.length) return;
+						this.overflow.poll();
+						this.overflowOffset = 0;
 					}
+					this.overflowed = false;
 				}
 			}
 		}
 
-		public synchronized byte peek() throws InterruptedException
+		/**
+		 * Waits until the queue holds more than <code>size</code> bytes or the
+		 * serial timeout expires.
+		 * 
+		 * @return False on timeout.
+		 */
+		private boolean await(int size, String caller) throws InterruptedException
 		{
-			if (this.buffer == null) this.buffer = new byte[Service.getInstance().getSettings().SERIAL_BUFFER_SIZE];
-			while (true)
+			return await(size, caller, Service.getInstance().getSettings().SERIAL_TIMEOUT);
+		}
+
+		private boolean await(int size, String caller, long timeout) throws InterruptedException
+		{
+			if (size() > size) return true;
+			synchronized (this)
 			{
+				long deadline = System.currentTimeMillis() + timeout;
+				this.waiting = true;
 				try
 				{
-					if (this.bufferStart == this.bufferEnd) wait(Service.getInstance().getSettings().SERIAL_TIMEOUT);
-					if (this.bufferStart == this.bufferEnd) return -1;
-					return this.buffer[this.bufferStart];
-				}
-				catch (InterruptedException e)
-				{
-					if (getGateway().getStatus() == GatewayStatuses.STARTED) Logger.getInstance().logWarn("Ignoring InterruptedException in Queue.peek().", e, getGateway().getGatewayId());
-					else
+					while (size() <= size)
 					{
-						Logger.getInstance().logWarn("Re-throwing InterruptedException in Queue.peek() - should be during shutdown...", e, getGateway().getGatewayId());
-						throw new InterruptedException();
+						if (timeout <= 0) return false;
+						try
+						{
+							wait(timeout);
+						}
+						catch (InterruptedException e)
+						{
+							if (getGateway().getStatus() == GatewayStatuses.STARTED) Logger.getInstance().logWarn("Ignoring InterruptedException in Queue." + caller + "().", null, getGateway().getGatewayId());
+							else
+							{
+								Logger.getInstance().logWarn("Re-throwing InterruptedException in Queue." + caller + "() - should be during shutdown...", null, getGateway().getGatewayId());
+								throw new InterruptedException();
+							}
+						}
+						timeout = deadline - System.currentTimeMillis();
 					}
+					return true;
+				}
+				finally
+				{
+					this.waiting = false;
 				}
 			}
 		}
 
-		public synchronized String peek(int sizeToRead)
+		public byte get() throws TimeoutException, InterruptedException
+		{
+			if (!await(0, "get")) throw new TimeoutException("No response from device.");
+			int start = this.bufferStart;
+			byte c = this.buffer[start];
+			consumed(next(start));
+			return c;
+		}
+
+		public byte peek() throws InterruptedException
+		{
+			if (!await(0, "peek")) return -1;
+			return this.buffer[this.bufferStart];
+		}
+
+		public String peek(int sizeToRead)
 		{
-			int i, size;
+			int i, end, size;
 			StringBuffer result;
-			if (this.buffer == null) this.buffer = new byte[Service.getInstance().getSettings().SERIAL_BUFFER_SIZE];
 			size = sizeToRead;
-			if (this.bufferStart == this.bufferEnd) return "";
-			result = new StringBuffer(size);
 			i = this.bufferStart;
+			end = this.bufferEnd;
+			if (i == end) return "";
+			result = new StringBuffer(size);
 			while (size > 0)
 			{
 				if ((this.buffer[i] != 0x0a) && (this.buffer[i] != 0x0d))
@@ -589,17 +845,123 @@ public abstract class AModemDriver
 					result.append((char) this.buffer[i]);
 					size--;
 				}
-				i++;
-				if (i == Service.getInstance().getSettings().SERIAL_BUFFER_SIZE) i = 0;
-				if (i == this.bufferEnd) break;
+				i = next(i);
+				if (i == end) break;
 			}
 			return result.toString();
 		}
 
-		public synchronized void clear()
+		/**
+		 * Skips any leading line terminators and returns the next line, up to
+		 * but not including its LF. A timeout is raised only if the device
+		 * goes silent for the serial timeout, not if a long line takes a while
+		 * to arrive.
+		 */
+		public String readLine() throws TimeoutException, InterruptedException
 		{
-			this.bufferStart = 0;
-			this.bufferEnd = 0;
+			return readLine(Service.getInstance().getSettings().SERIAL_TIMEOUT);
+		}
+
+		public String readLine(long timeout) throws TimeoutException, InterruptedException
+		{
+			StringBuffer line = new StringBuffer(80);
+			while (true)
+			{
+				if (!await(0, "readLine", timeout)) throw new TimeoutException("No response from device.");
+				int start = this.bufferStart;
+				int end = this.bufferEnd;
+				while (start != end)
+				{
+					byte c = this.buffer[start];
+					start = next(start);
+					if (this.dumpQueues) Logger.getInstance().logDebug("OUT READER QUEUE : " + (int) c + " / " + (char) c, null, getGateway().getGatewayId());
+					if (c == 0x0a)
+					{
+						if (line.length() == 0) continue;
+						consumed(start);
+						return line.toString();
+					}
+					if ((c == 0x0d) && (line.length() == 0)) continue;
+					line.append((char) c);
+				}
+				consumed(start);
+			}
+		}
+
+		/**
+		 * Returns the next line, like <code>readLine()</code>, but leaves it
+		 * queued. A line too long for the queue is returned as far as it
+		 * goes.
+		 * 
+		 * @throws TimeoutException
+		 *             If no complete line arrived within <code>timeout</code>
+		 *             milliseconds.
+		 */
+		public String peekLine(long timeout) throws TimeoutException, InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + timeout;
+			while (true)
+			{
+				StringBuffer line = new StringBuffer(80);
+				int start = this.bufferStart;
+				int end = this.bufferEnd;
+				int scanned = 0;
+				while (start != end)
+				{
+					byte c = this.buffer[start];
+					start = next(start);
+					scanned++;
+					if (c == 0x0a)
+					{
+						if (line.length() == 0) continue;
+						return line.toString();
+					}
+					if ((c == 0x0d) && (line.length() == 0)) continue;
+					line.append((char) c);
+				}
+				if (scanned == this.buffer.length - 1) return line.toString();
+				if (!await(scanned, "peekLine", deadline - System.currentTimeMillis())) throw new TimeoutException("No response from device.");
+			}
+		}
+
+		/**
+		 * Waits for a "&gt;" prompt, consuming it along with the line
+		 * terminators before it and the blank after it.
+		 * 
+		 * @return False if something else arrived first; it is left queued.
+		 */
+		public boolean readPrompt(long timeout) throws TimeoutException, InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + timeout;
+			while (true)
+			{
+				int start = this.bufferStart;
+				int end = this.bufferEnd;
+				while ((start != end) && ((this.buffer[start] == 0x0d) || (this.buffer[start] == 0x0a)))
+					start = next(start);
+				consumed(start);
+				if (start != end)
+				{
+					if (this.buffer[start] != '>') return false;
+					start = next(start);
+					if ((start != end) && (this.buffer[start] == ' ')) start = next(start);
+					consumed(start);
+					return true;
+				}
+				if (!await(0, "readPrompt", deadline - System.currentTimeMillis())) throw new TimeoutException("No prompt from device.");
+			}
+		}
+
+		public void clear()
+		{
+			synchronized (this)
+			{
+				this.overflow.clear();
+				this.overflowOffset = 0;
+				this.overflowSize = 0;
+				this.overflowed = false;
+				this.bufferStart = this.bufferEnd;
+			}
 		}
 	}
 
@@ -616,8 +978,8 @@ public abstract class AModemDriver
 		@Override
 		public void run()
 		{
-			int c;
-			String data;
+			int c, n;
+			byte[] chunk = new byte[256];
 			while (isConnected())
 			{
 				try
@@ -626,24 +988,26 @@ public abstract class AModemDriver
 					{
 						if (!isDataReceived()) getSYNCReader().wait();
 						if (!isConnected()) break;
+						n = 0;
 						c = read();
 						while (c != -1)
 						{
-							getCharQueue().put((byte) c);
+							chunk[n++] = (byte) c;
+							if (n == chunk.length)
+							{
+								getCharQueue().put(chunk, 0, n);
+								n = 0;
+							}
 							if (!portHasData()) break;
 							c = read();
 						}
+						if (n > 0) getCharQueue().put(chunk, 0, n);
 						setDataReceived(false);
 					}
-					data = getCharQueue().peek(6);
-					for (int i = 0; i < getGateway().getATHandler().getUnsolicitedResponses().length; i++)
+					if (hasUnsolicitedResponse())
 					{
-						if (data.indexOf(getGateway().getATHandler().getUnsolicitedResponse(i)) >= 0)
-						{
-							Thread.sleep(100);
-							getKeepAlive().interrupt();
-							break;
-						}
+						Thread.sleep(100);
+						getKeepAlive().wakeUp();
 					}
 				}
 				catch (InterruptedException e)
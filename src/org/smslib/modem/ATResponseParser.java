@@ -0,0 +1,252 @@
+// SMSLib for Java v3
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.smslib.modem;
+
+/**
+ * Incremental parser for modem responses. Lines are fed as they are read off
+ * the port and each one is classified on arrival, by plain character
+ * comparisons, until a final result code (OK, ERROR, +CME/+CMS ERROR, ...),
+ * a prompt or an unsolicited response completes the response.
+ * <p>
+ * A line starting with one of the unsolicited response prefixes is only
+ * taken for an unsolicited response if it does not answer the command
+ * outstanding: the answer of <code>AT+CLIP?</code>, <code>+CLIP: 1,1</code>,
+ * is read on up to its final result code like any other.
+ * <p>
+ * The collected response is formatted as the drivers always returned it:
+ * every line terminated by a single CR.
+ */
+public class ATResponseParser
+{
+	public enum ResponseTypes
+	{
+		/** More lines are expected. */
+		INCOMPLETE,
+		/** Final result code OK. */
+		OK,
+		/** Final result code ERROR, NO CARRIER, NO DIALTONE or +CME/+CMS ERROR. */
+		ERROR,
+		/** Any other response that completes a command, like +CPIN: READY. */
+		FINAL,
+		/** A prompt for more input. */
+		PROMPT,
+		/** An unsolicited response, received while no command was pending. */
+		UNSOLICITED
+	}
+
+	private final String[] unsolicitedResponses;
+
+	private final StringBuilder response;
+
+	private ResponseTypes responseType;
+
+	private int errorCode;
+
+	private int lines;
+
+	private boolean retainingLines;
+
+	private String command;
+
+	/**
+	 * @param unsolicitedResponses
+	 *            Prefixes of the unsolicited responses of the modem, as
+	 *            returned by its AT handler.
+	 */
+	public ATResponseParser(String[] unsolicitedResponses)
+	{
+		this.unsolicitedResponses = unsolicitedResponses;
+		this.response = new StringBuilder(256);
+		this.retainingLines = true;
+		reset();
+	}
+
+	/**
+	 * When false, only the latest line is kept as the response, so that a
+	 * long response streamed line by line is never held whole.
+	 */
+	public void setRetainingLines(boolean retainingLines)
+	{
+		this.retainingLines = retainingLines;
+	}
+
+	/**
+	 * Sets the command the response answers, null if none is outstanding.
+	 */
+	public void setCommand(String command)
+	{
+		this.command = command;
+	}
+
+	public void reset()
+	{
+		this.response.setLength(0);
+		this.lines = 0;
+		this.responseType = ResponseTypes.INCOMPLETE;
+		this.errorCode = -1;
+	}
+
+	/**
+	 * Adds the next line of the response.
+	 * 
+	 * @param line
+	 *            The line, without its LF.
+	 * @return The type of the response, <code>INCOMPLETE</code> while more
+	 *         lines are expected.
+	 */
+	public ResponseTypes addLine(String line)
+	{
+		boolean first = (this.lines++ == 0);
+		if (!this.retainingLines) this.response.setLength(0);
+		this.response.append(line);
+		if ((line.length() == 0) || (line.charAt(line.length() - 1) != 0x0d)) this.response.append((char) 0x0d);
+		int start = 0, end = line.length();
+		while ((start < end) && (line.charAt(start) <= ' '))
+			start++;
+		while ((end > start) && (line.charAt(end - 1) <= ' '))
+			end--;
+		this.responseType = classify(line, start, end, first);
+		return this.responseType;
+	}
+
+	private ResponseTypes classify(String line, int start, int end, boolean first)
+	{
+		if (first && isUnsolicited(line, start)) return ResponseTypes.UNSOLICITED;
+		if (is(line, start, end, "OK"))
+		{
+			this.errorCode = 0;
+			return ResponseTypes.OK;
+		}
+		if (is(line, start, end, "ERROR") || is(line, start, end, "NO CARRIER") || is(line, start, end, "NO DIALTONE"))
+		{
+			this.errorCode = 9000;
+			return ResponseTypes.ERROR;
+		}
+		if (line.startsWith("+CM", start) && (end - start > 4) && ((line.charAt(start + 3) == 'E') || (line.charAt(start + 3) == 'S')))
+		{
+			int i = start + 4;
+			while ((i < end) && (line.charAt(i) <= ' '))
+				i++;
+			if (line.startsWith("ERROR:", i))
+			{
+				int code = parseCode(line, i + 6, end);
+				if (code < 0) this.errorCode = 9000;
+				else this.errorCode = (line.charAt(start + 3) == 'E' ? 5000 : 6000) + code;
+				return ResponseTypes.ERROR;
+			}
+		}
+		if (line.startsWith("ERROR:", start) && (parseCode(line, start + 6, end) >= 0))
+		{
+			this.errorCode = 10000;
+			return ResponseTypes.FINAL;
+		}
+		if (first && line.startsWith("+CPIN:", start) && isFinalSimStatus(line, start + 6, end))
+		{
+			this.errorCode = 10000;
+			return ResponseTypes.FINAL;
+		}
+		if ((start < end) && (line.charAt(start) == '>'))
+		{
+			this.errorCode = 0;
+			return ResponseTypes.PROMPT;
+		}
+		return ResponseTypes.INCOMPLETE;
+	}
+
+	private boolean isUnsolicited(String line, int start)
+	{
+		if (this.unsolicitedResponses == null) return false;
+		for (String prefix : this.unsolicitedResponses)
+			if (line.startsWith(prefix, start)) return !answersCommand(prefix);
+		return false;
+	}
+
+	/**
+	 * Returns true if the outstanding command is answered with lines starting
+	 * with the given prefix. Only extended commands (+XXXX) have answers like
+	 * that; a plain RING never answers anything.
+	 */
+	private boolean answersCommand(String prefix)
+	{
+		return (this.command != null) && (prefix.startsWith("+")) && (this.command.indexOf(prefix) >= 0);
+	}
+
+	private static boolean is(String line, int start, int end, String token)
+	{
+		return ((end - start) == token.length()) && line.startsWith(token, start);
+	}
+
+	/**
+	 * Parses the decimal code following an error response.
+	 * 
+	 * @return The code, or -1 if there is none.
+	 */
+	private static int parseCode(String line, int start, int end)
+	{
+		while ((start < end) && (line.charAt(start) <= ' '))
+			start++;
+		if (start == end) return -1;
+		int code = 0;
+		for (int i = start; i < end; i++)
+		{
+			char c = line.charAt(i);
+			if ((c < '0') || (c > '9')) return -1;
+			code = code * 10 + (c - '0');
+		}
+		return code;
+	}
+
+	/**
+	 * Matches READY, SIM BUSY, SIM PIN and SIM PIN2, ignoring blanks.
+	 */
+	private static boolean isFinalSimStatus(String line, int start, int end)
+	{
+		StringBuilder status = new StringBuilder(end - start);
+		for (int i = start; i < end; i++)
+			if (line.charAt(i) > ' ') status.append(line.charAt(i));
+		String s = status.toString();
+		return s.equals("READY") || s.equals("SIMBUSY") || s.equals("SIMPIN") || s.equals("SIMPIN2");
+	}
+
+	public ResponseTypes getResponseType()
+	{
+		return this.responseType;
+	}
+
+	/**
+	 * Returns the error code of a completed response, as reported by
+	 * <code>AModemDriver.getLastError()</code>: 0 for OK, 5xxx and 6xxx for
+	 * CME and CMS errors, 9000 for other errors and 10000 for any other
+	 * response.
+	 */
+	public int getErrorCode()
+	{
+		return this.errorCode;
+	}
+
+	/**
+	 * Returns the response collected so far.
+	 */
+	public String getResponse()
+	{
+		return this.response.toString();
+	}
+}
@@ -22,9 +22,16 @@ package org.smslib.modem;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ssl.SSLContext;
 import org.apache.commons.net.telnet.EchoOptionHandler;
 import org.apache.commons.net.telnet.InvalidTelnetOptionException;
@@ -52,6 +59,15 @@ class IPModemDriver extends AModemDriver
 
 	private Peeker peeker;
 
+	private volatile SocketChannel channel;
+
+	private TelnetFilter telnet;
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/** Telnet negotiation replies waiting to be written. */
+	private final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<ByteBuffer>();
+
 	private TerminalTypeOptionHandler ttopt = new TerminalTypeOptionHandler("VT100", false, false, true, false);
 
 	private SimpleOptionHandler binaryopt = new SimpleOptionHandler(0, true, false, true, false);
@@ -72,6 +88,11 @@ class IPModemDriver extends AModemDriver
 	@Override
 	protected void connectPort() throws GatewayException, IOException, InterruptedException
 	{
+		if (!getGateway().getIpEncryption() && Service.getInstance().getSettings().IP_MODEM_NIO)
+		{
+			connectChannel();
+			return;
+		}
 		try
 		{
 			Logger.getInstance().logInfo("Opening: " + this.ipAddress + " @" + this.ipPort, null, getGateway().getGatewayId());
@@ -103,10 +124,160 @@ class IPModemDriver extends AModemDriver
 		}
 	}
 
+	/**
+	 * Opens a non-blocking channel watched by the shared
+	 * <code>IPModemSelector</code>, instead of a telnet client with its own
+	 * reader threads.
+	 */
+	private void connectChannel() throws IOException
+	{
+		Logger.getInstance().logInfo("Opening: " + this.ipAddress + " @" + this.ipPort + " (non-blocking)", null, getGateway().getGatewayId());
+		SocketChannel ch = SocketChannel.open();
+		try
+		{
+			ch.connect(new InetSocketAddress(this.ipAddress, this.ipPort));
+			ch.socket().setTcpNoDelay(true);
+			ch.configureBlocking(false);
+		}
+		catch (IOException e)
+		{
+			ch.close();
+			throw e;
+		}
+		this.telnet = new TelnetFilter(getGateway().getIpProtocol() == IPProtocols.BINARY);
+		this.replies.clear();
+		this.channel = ch;
+		writeChannel(this.telnet.open());
+		IPModemSelector.getInstance().register(ch, new IPModemSelector.Listener()
+		{
+			@Override
+			public boolean received(byte[] b, int off, int len)
+			{
+				byte[] reply = IPModemDriver.this.telnet.receive(b, off, len);
+				if (IPModemDriver.this.telnet.getLength() > 0) IPModemDriver.this.received(IPModemDriver.this.telnet.getData(), 0, IPModemDriver.this.telnet.getLength());
+				if (reply != null) IPModemDriver.this.replies.add(ByteBuffer.wrap(reply));
+				return !writable();
+			}
+
+			@Override
+			public boolean writable()
+			{
+				try
+				{
+					return !flushReplies();
+				}
+				catch (IOException e)
+				{
+					closed(e);
+					return false;
+				}
+			}
+
+			@Override
+			public void closed(IOException e)
+			{
+				if (IPModemDriver.this.channel == null) return;
+				Logger.getInstance().logError("Connection to " + IPModemDriver.this.ipAddress + " @" + IPModemDriver.this.ipPort + " lost.", e, getGateway().getGatewayId());
+				getGateway().setStatus(GatewayStatuses.RESTART);
+			}
+		});
+	}
+
+	/**
+	 * Writes the bytes, waiting for the channel to take them all. Never
+	 * called on the selector thread.
+	 */
+	private void writeChannel(byte[] b) throws IOException
+	{
+		SocketChannel ch = this.channel;
+		if (ch == null) throw new IOException("Not connected.");
+		this.writeLock.lock();
+		try
+		{
+			// Negotiation replies go first, so they never land inside our data.
+			while (!writeReplies(ch))
+				pause();
+			ByteBuffer buf = ByteBuffer.wrap(b);
+			while (buf.hasRemaining())
+			{
+				if (ch.write(buf) == 0) pause();
+			}
+		}
+		finally
+		{
+			this.writeLock.unlock();
+		}
+	}
+
+	private static void pause() throws InterruptedIOException
+	{
+		try
+		{
+			Thread.sleep(1);
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Writes the telnet negotiation replies queued by the selector thread,
+	 * as far as the channel takes them. The write lock must be held.
+	 * 
+	 * @return True if none is left.
+	 */
+	private boolean writeReplies(SocketChannel ch) throws IOException
+	{
+		ByteBuffer reply;
+		while ((reply = this.replies.peek()) != null)
+		{
+			ch.write(reply);
+			if (reply.hasRemaining()) return false;
+			this.replies.poll();
+		}
+		return true;
+	}
+
+	/**
+	 * Version of writeReplies() for the selector thread, which must not wait
+	 * for the channel nor for a writer holding the lock.
+	 * 
+	 * @return False if some replies are left, to be retried once the channel
+	 *         is writable.
+	 */
+	private boolean flushReplies() throws IOException
+	{
+		SocketChannel ch = this.channel;
+		if ((ch == null) || (this.replies.isEmpty())) return true;
+		if (!this.writeLock.tryLock()) return false;
+		try
+		{
+			return writeReplies(ch);
+		}
+		finally
+		{
+			this.writeLock.unlock();
+		}
+	}
+
+	@Override
+	protected boolean pushesReceivedData()
+	{
+		return (this.channel != null);
+	}
+
 	@Override
 	protected void disconnectPort() throws IOException, InterruptedException
 	{
 		Logger.getInstance().logInfo("Closing: " + this.ipAddress + " @" + this.ipPort, null, getGateway().getGatewayId());
+		SocketChannel ch = this.channel;
+		if (ch != null)
+		{
+			this.channel = null;
+			ch.close();
+			return;
+		}
 		synchronized (getSYNCReader())
 		{
 			if (this.tc != null) this.tc.disconnect();
@@ -123,6 +294,7 @@ class IPModemDriver extends AModemDriver
 	@Override
 	protected void clear() throws IOException
 	{
+		if (this.channel != null) return;
 		while (portHasData())
 			read();
 	}
@@ -130,12 +302,18 @@ class IPModemDriver extends AModemDriver
 	@Override
 	protected boolean portHasData() throws IOException
 	{
+		if (this.channel != null) return false;
 		return (this.in.available() > 0);
 	}
 
 	@Override
 	public void write(char c) throws IOException
 	{
+		if (this.channel != null)
+		{
+			writeChannel(this.telnet.send(new byte[] { (byte) c }));
+			return;
+		}
 		this.out.write((short) c);
 		this.out.flush();
 	}
@@ -143,6 +321,11 @@ class IPModemDriver extends AModemDriver
 	@Override
 	public void write(byte[] s) throws IOException
 	{
+		if (this.channel != null)
+		{
+			writeChannel(this.telnet.send(s));
+			return;
+		}
 		this.out.write(s);
 		this.out.flush();
 	}
@@ -150,6 +333,7 @@ class IPModemDriver extends AModemDriver
 	@Override
 	protected int read() throws IOException
 	{
+		if (this.channel != null) return -1;
 		return this.in.read();
 	}
 
@@ -199,4 +383,275 @@ class IPModemDriver extends AModemDriver
 			Logger.getInstance().logDebug("Peeker stopped.", null, getGateway().getGatewayId());
 		}
 	}
+
+	/**
+	 * The little of the telnet protocol the modem servers need: option
+	 * negotiation as the <code>TelnetClient</code> above is configured,
+	 * terminal type, and IAC escaping (plus CR handling in text mode).
+	 */
+	static class TelnetFilter
+	{
+		static final int IAC = 255, DONT = 254, DO = 253, WONT = 252, WILL = 251, SB = 250, SE = 240;
+
+		static final int BINARY = 0, ECHO = 1, SGA = 3, TTYPE = 24;
+
+		private static final int DATA = 0, COMMAND = 1, OPTION = 2, SUB = 3, SUB_IAC = 4, CR = 5;
+
+		private final boolean binary;
+
+		private final boolean[] local = new boolean[256];
+
+		private final boolean[] remote = new boolean[256];
+
+		private int state = DATA;
+
+		private int command;
+
+		private byte[] sub = new byte[64];
+
+		private int subLength;
+
+		private byte[] data = new byte[256];
+
+		private int length;
+
+		private byte[] reply = new byte[16];
+
+		private int replyLength;
+
+		private boolean lastWasCR;
+
+		TelnetFilter(boolean binary)
+		{
+			this.binary = binary;
+		}
+
+		/**
+		 * Returns the negotiation the client opens the session with.
+		 */
+		byte[] open()
+		{
+			this.replyLength = 0;
+			this.local[ECHO] = true;
+			this.local[SGA] = true;
+			this.remote[SGA] = true;
+			reply(WILL, ECHO);
+			reply(WILL, SGA);
+			reply(DO, SGA);
+			if (this.binary)
+			{
+				this.local[BINARY] = true;
+				reply(WILL, BINARY);
+			}
+			return replyBytes();
+		}
+
+		/**
+		 * Filters received bytes. The data left over is available through
+		 * <code>getData()</code> and <code>getLength()</code> until the next
+		 * call.
+		 * 
+		 * @return The negotiation to send back, or null.
+		 */
+		byte[] receive(byte[] b, int off, int len)
+		{
+			if (this.data.length < len) this.data = new byte[len];
+			this.length = 0;
+			this.replyLength = 0;
+			for (int i = off; i < off + len; i++)
+			{
+				int c = b[i] & 0xff;
+				switch (this.state)
+				{
+					case CR:
+						// A NUL after a CR only pads it.
+						this.state = DATA;
+						if (c != 0) data(c);
+						break;
+					case DATA:
+						data(c);
+						break;
+					case COMMAND:
+						if (c == IAC)
+						{
+							this.data[this.length++] = (byte) c;
+							this.state = DATA;
+						}
+						else if (c >= WILL && c <= DONT)
+						{
+							this.command = c;
+							this.state = OPTION;
+						}
+						else if (c == SB)
+						{
+							this.subLength = 0;
+							this.state = SUB;
+						}
+						else this.state = DATA;
+						break;
+					case OPTION:
+						negotiate(this.command, c);
+						this.state = DATA;
+						break;
+					case SUB:
+						if (c == IAC) this.state = SUB_IAC;
+						else if (this.subLength < this.sub.length) this.sub[this.subLength++] = (byte) c;
+						break;
+					case SUB_IAC:
+						if (c == SE)
+						{
+							subnegotiate();
+							this.state = DATA;
+						}
+						else
+						{
+							if (this.subLength < this.sub.length) this.sub[this.subLength++] = (byte) c;
+							this.state = SUB;
+						}
+						break;
+				}
+			}
+			return (this.replyLength == 0 ? null : replyBytes());
+		}
+
+		private void data(int c)
+		{
+			if (c == IAC) this.state = COMMAND;
+			else
+			{
+				this.data[this.length++] = (byte) c;
+				if (c == '\r' && !this.binary) this.state = CR;
+			}
+		}
+
+		byte[] getData()
+		{
+			return this.data;
+		}
+
+		int getLength()
+		{
+			return this.length;
+		}
+
+		/**
+		 * Escapes outgoing data.
+		 */
+		byte[] send(byte[] s)
+		{
+			byte[] out = new byte[s.length * 2];
+			int n = 0;
+			for (int i = 0; i < s.length; i++)
+			{
+				int c = s[i] & 0xff;
+				if (c == IAC) out[n++] = (byte) IAC;
+				else if (!this.binary)
+				{
+					if (c == '\n')
+					{
+						boolean skip = this.lastWasCR;
+						this.lastWasCR = false;
+						if (skip) continue;
+						out[n++] = '\r';
+					}
+					else if (c == '\r')
+					{
+						out[n++] = '\r';
+						out[n++] = '\n';
+						this.lastWasCR = true;
+						continue;
+					}
+					this.lastWasCR = false;
+				}
+				out[n++] = (byte) c;
+			}
+			byte[] result = new byte[n];
+			System.arraycopy(out, 0, result, 0, n);
+			return result;
+		}
+
+		private void negotiate(int cmd, int option)
+		{
+			switch (cmd)
+			{
+				case WILL:
+					if (option == SGA)
+					{
+						if (!this.remote[option])
+						{
+							this.remote[option] = true;
+							reply(DO, option);
+						}
+					}
+					else if (!this.remote[option]) reply(DONT, option);
+					break;
+				case WONT:
+					if (this.remote[option])
+					{
+						this.remote[option] = false;
+						reply(DONT, option);
+					}
+					break;
+				case DO:
+					if (option == ECHO || option == SGA || option == TTYPE || (option == BINARY && this.binary))
+					{
+						if (!this.local[option])
+						{
+							this.local[option] = true;
+							reply(WILL, option);
+						}
+					}
+					else reply(WONT, option);
+					break;
+				case DONT:
+					if (this.local[option])
+					{
+						this.local[option] = false;
+						reply(WONT, option);
+					}
+					break;
+			}
+		}
+
+		private void subnegotiate()
+		{
+			// IAC SB TTYPE SEND IAC SE
+			if (this.subLength >= 2 && (this.sub[0] & 0xff) == TTYPE && this.sub[1] == 1 && this.local[TTYPE])
+			{
+				byte[] type = { 'V', 'T', '1', '0', '0' };
+				reply(SB, TTYPE);
+				ensureReply(type.length + 3);
+				this.reply[this.replyLength++] = 0;
+				System.arraycopy(type, 0, this.reply, this.replyLength, type.length);
+				this.replyLength += type.length;
+				this.reply[this.replyLength++] = (byte) IAC;
+				this.reply[this.replyLength++] = (byte) SE;
+			}
+		}
+
+		private void reply(int cmd, int option)
+		{
+			ensureReply(3);
+			this.reply[this.replyLength++] = (byte) IAC;
+			this.reply[this.replyLength++] = (byte) cmd;
+			this.reply[this.replyLength++] = (byte) option;
+		}
+
+		private void ensureReply(int n)
+		{
+			if (this.replyLength + n > this.reply.length)
+			{
+				byte[] b = new byte[Math.max(this.reply.length * 2, this.replyLength + n)];
+				System.arraycopy(this.reply, 0, b, 0, this.replyLength);
+				this.reply = b;
+			}
+		}
+
+		private byte[] replyBytes()
+		{
+			byte[] b = new byte[this.replyLength];
+			System.arraycopy(this.reply, 0, b, 0, this.replyLength);
+			return b;
+		}
+	}
 }
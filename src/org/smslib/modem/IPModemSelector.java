@@ -0,0 +1,220 @@
+// SMSLib for Java v3
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.smslib.modem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.smslib.helper.Logger;
+
+/**
+ * Event loop shared by all IP modems using non-blocking channels. A single
+ * thread waits on every registered channel and hands whatever arrives to the
+ * channel's listener, so that idle modems cost neither a thread nor a poll.
+ */
+class IPModemSelector implements Runnable
+{
+	interface Listener
+	{
+		/**
+		 * Called on the selector thread with the bytes just read. The array is
+		 * reused once the call returns.
+		 * 
+		 * @return True if the listener has output it could not write without
+		 *         waiting, in which case <code>writable()</code> is called once
+		 *         the channel takes more.
+		 */
+		boolean received(byte[] b, int off, int len);
+
+		/**
+		 * Called on the selector thread when the channel can take more output.
+		 * Must not wait for the channel.
+		 * 
+		 * @return True if output is still left.
+		 */
+		boolean writable();
+
+		/**
+		 * Called on the selector thread when the peer closed the connection or
+		 * reading failed. The channel is closed afterwards.
+		 */
+		void closed(IOException e);
+	}
+
+	private static IPModemSelector instance;
+
+	private final Selector selector;
+
+	private final Queue<Registration> registrations;
+
+	private final ByteBuffer buffer;
+
+	private IPModemSelector() throws IOException
+	{
+		this.selector = Selector.open();
+		this.registrations = new ConcurrentLinkedQueue<Registration>();
+		this.buffer = ByteBuffer.allocate(8192);
+		Thread thread = new Thread(this, "IPModemSelector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	static synchronized IPModemSelector getInstance() throws IOException
+	{
+		if (instance == null) instance = new IPModemSelector();
+		return instance;
+	}
+
+	/**
+	 * Starts watching the given non-blocking channel. The channel is
+	 * unregistered when it is closed.
+	 */
+	void register(SocketChannel channel, Listener listener)
+	{
+		this.registrations.add(new Registration(channel, listener));
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run()
+	{
+		Logger.getInstance().logDebug("IPModemSelector started.", null, null);
+		while (true)
+		{
+			try
+			{
+				this.selector.select();
+				Registration registration;
+				while ((registration = this.registrations.poll()) != null)
+				{
+					try
+					{
+						registration.channel.register(this.selector, SelectionKey.OP_READ, registration.listener);
+					}
+					catch (ClosedChannelException e)
+					{
+						// Disconnected before it got registered.
+					}
+					catch (CancelledKeyException e)
+					{
+						// Disconnected before it got registered.
+					}
+				}
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					// One channel going wrong must not take the others down with the thread.
+					try
+					{
+						if (key.isValid() && key.isReadable()) read(key);
+						if (key.isValid() && key.isWritable()) write(key);
+					}
+					catch (CancelledKeyException e)
+					{
+						// Closed by its driver meanwhile.
+					}
+					catch (RuntimeException e)
+					{
+						Logger.getInstance().logError("IPModemSelector channel error.", e, null);
+						// Do not spin on a listener failing to write.
+						setWriting(key, false);
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				Logger.getInstance().logError("IPModemSelector error.", e, null);
+			}
+		}
+	}
+
+	private void read(SelectionKey key)
+	{
+		SocketChannel channel = (SocketChannel) key.channel();
+		Listener listener = (Listener) key.attachment();
+		IOException error = null;
+		int n;
+		try
+		{
+			this.buffer.clear();
+			n = channel.read(this.buffer);
+		}
+		catch (IOException e)
+		{
+			error = e;
+			n = -1;
+		}
+		try
+		{
+			if (n > 0) setWriting(key, listener.received(this.buffer.array(), 0, n));
+			else if (n < 0)
+			{
+				key.cancel();
+				if (channel.isOpen()) listener.closed(error);
+				channel.close();
+			}
+		}
+		catch (Exception e)
+		{
+			Logger.getInstance().logError("IPModemSelector listener error.", e, null);
+		}
+	}
+
+	private void write(SelectionKey key)
+	{
+		setWriting(key, ((Listener) key.attachment()).writable());
+	}
+
+	private static void setWriting(SelectionKey key, boolean writing)
+	{
+		int ops = (writing ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		try
+		{
+			if (key.interestOps() != ops) key.interestOps(ops);
+		}
+		catch (CancelledKeyException e)
+		{
+			// Closed meanwhile, nothing left to write to.
+		}
+	}
+
+	private static class Registration
+	{
+		final SocketChannel channel;
+
+		final Listener listener;
+
+		Registration(SocketChannel channel, Listener listener)
+		{
+			this.channel = channel;
+			this.listener = listener;
+		}
+	}
+}
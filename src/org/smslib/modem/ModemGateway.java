@@ -21,9 +21,15 @@
 package org.smslib.modem;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
@@ -33,9 +39,10 @@ import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import org.ajwcc.pduUtils.gsm3040.EncodedPdu;
 import org.ajwcc.pduUtils.gsm3040.Pdu;
+import org.ajwcc.pduUtils.gsm3040.PduGenerator;
 import org.ajwcc.pduUtils.gsm3040.PduParser;
-import org.ajwcc.pduUtils.gsm3040.PduUtils;
 import org.ajwcc.pduUtils.gsm3040.SmsDeliveryPdu;
 import org.ajwcc.pduUtils.gsm3040.SmsStatusReportPdu;
 import org.smslib.AGateway;
@@ -44,6 +51,7 @@ import org.smslib.GatewayException;
 import org.smslib.InboundBinaryMessage;
 import org.smslib.InboundEncryptedMessage;
 import org.smslib.InboundMessage;
+import org.smslib.IOrphanedMessageNotification;
 import org.smslib.OutboundMessage;
 import org.smslib.Phonebook;
 import org.smslib.Service;
@@ -110,7 +118,14 @@ public class ModemGateway extends AGateway
 
 	private int outMpRefNo;
 
-	private List<List<InboundMessage>> mpMsgList;
+	private MultipartAssembler mpAssembler;
+
+	// Reused for every PDU; only touched under the driver's SYNCCommander.
+	private final PduParser pduParser = new PduParser();
+
+	private final PduGenerator pduGenerator = new PduGenerator();
+
+	private File mpStore;
 
 	public ModemGateway(ModemTypes myType, String id, String myModemDevice, int myModemParms, String myManufacturer, String myModel)
 	{
@@ -148,7 +163,7 @@ public class ModemGateway extends AGateway
 		this.outMpRefNo = new Random().nextInt();
 		if (this.outMpRefNo < 0) this.outMpRefNo *= -1;
 		this.outMpRefNo %= 65536;
-		this.mpMsgList = new ArrayList<List<InboundMessage>>();
+		this.mpAssembler = new MultipartAssembler(getGatewayId());
 	}
 
 	public void setIpProtocol(IPProtocols myIpProtocol)
@@ -233,23 +248,61 @@ public class ModemGateway extends AGateway
 	@Override
 	public boolean sendMessage(OutboundMessage msg) throws TimeoutException, GatewayException, IOException, InterruptedException
 	{
-		boolean sendKeepLinkOpen = false;
 		if (getStatus() != GatewayStatuses.STARTED) return false;
-		if (getLastKeepLinkOpen() == -1) sendKeepLinkOpen = true;
-		if (!sendKeepLinkOpen)
-		{
-			if ((System.currentTimeMillis() - getLastKeepLinkOpen()) > 4000) sendKeepLinkOpen = true;
-		}
 		synchronized (getDriver().getSYNCCommander())
 		{
-			if (sendKeepLinkOpen) getAtHandler().keepLinkOpen();
-			setLastKeepLinkOpen(System.currentTimeMillis());
+			keepLinkOpen();
 			if (getProtocol() == Protocols.PDU) return sendMessagePDU(msg);
 			else if (getProtocol() == Protocols.TEXT) return sendMessageTEXT(msg);
 			else return false;
 		}
 	}
 
+	/**
+	 * Sends the messages back to back: the modem is held for the whole batch
+	 * and the link to the SMSC is kept open (AT+CMMS) across it, so that no
+	 * other command and no link set-up gets between two submissions.
+	 * 
+	 * @return The number of messages sent; each message carries its own
+	 *         status and reference number.
+	 */
+	@Override
+	public int sendMessages(Collection<OutboundMessage> msgList) throws TimeoutException, GatewayException, IOException, InterruptedException
+	{
+		if (getStatus() != GatewayStatuses.STARTED) return 0;
+		synchronized (getDriver().getSYNCCommander())
+		{
+			keepLinkOpen();
+			return super.sendMessages(msgList);
+		}
+	}
+
+	@Override
+	protected void sendBatch(Runnable sends) throws TimeoutException, GatewayException, IOException, InterruptedException
+	{
+		if (getStatus() != GatewayStatuses.STARTED)
+		{
+			sends.run();
+			return;
+		}
+		synchronized (getDriver().getSYNCCommander())
+		{
+			keepLinkOpen();
+			sends.run();
+		}
+	}
+
+	/**
+	 * Asks the modem to keep the link to the SMSC open, unless it was asked
+	 * within the last four seconds. The caller must hold the commander lock.
+	 */
+	private void keepLinkOpen() throws TimeoutException, GatewayException, IOException, InterruptedException
+	{
+		long now = System.currentTimeMillis();
+		if ((getLastKeepLinkOpen() == -1) || ((now - getLastKeepLinkOpen()) > 4000)) getAtHandler().keepLinkOpen();
+		setLastKeepLinkOpen(now);
+	}
+
 	@Override
 	public boolean deleteMessage(InboundMessage msg) throws TimeoutException, GatewayException, IOException, InterruptedException
 	{
@@ -263,6 +316,7 @@ public class ModemGateway extends AGateway
 				while (tokens.hasMoreTokens())
 					deleteMessage(Integer.parseInt(tokens.nextToken()), msg.getMemLocation());
 			}
+			if (this.mpAssembler.release(msg)) return saveMultipartStore();
 			return true;
 		}
 	}
@@ -463,27 +517,15 @@ public class ModemGateway extends AGateway
 	private boolean sendMessagePDU(OutboundMessage msg) throws TimeoutException, GatewayException, IOException, InterruptedException
 	{
 		boolean ok = false;
-		List<String> pdus = msg.getPdus(getSmscNumber(), this.outMpRefNo);
-		for (String pdu : pdus)
+		List<EncodedPdu> pdus = msg.getEncodedPdus(this.pduGenerator, getSmscNumber(), this.outMpRefNo);
+		for (EncodedPdu pdu : pdus)
 		{
-			Pdu newPdu = new PduParser().parsePdu(pdu);
-			Logger.getInstance().logDebug(newPdu.toString(), null, getGatewayId());
-			int j = pdu.length() / 2;
-			if (getSmscNumber() == null)
-			{
-				// Do nothing on purpose!
-			}
-			else if (getSmscNumber().length() == 0) j--;
-			else
+			if (Logger.getInstance().isDebugEnabled())
 			{
-				int smscNumberLen = getSmscNumber().length();
-				if (getSmscNumber().charAt(0) == '+') smscNumberLen--;
-				if (smscNumberLen % 2 != 0) smscNumberLen++;
-				int smscLen = (2 + smscNumberLen) / 2;
-				j = j - smscLen - 1;
+				Logger.getInstance().logDebug(this.pduParser.parsePdu(pdu.getBytes()).toString(), null, getGatewayId());
+				Logger.getInstance().logDebug("Sending Pdu " + pdu.getPartNo() + "/" + pdu.getMaxPartNo() + ": " + pdu.getPduString(), null, getGatewayId());
 			}
-			Logger.getInstance().logDebug("Sending Pdu: " + pdu, null, getGatewayId());
-			int refNo = getATHandler().sendMessage(j, pdu, null, null);
+			int refNo = getATHandler().sendMessage(pdu.getTpduLength(), pdu.getPduString(), null, null);
 			if (refNo >= 0)
 			{
 				msg.setGatewayId(getGatewayId());
@@ -513,199 +555,274 @@ public class ModemGateway extends AGateway
 		return ok;
 	}
 
-	private void readMessagesPDU(Collection<InboundMessage> msgList, MessageClasses messageClass, int myLimit) throws TimeoutException, GatewayException, IOException, InterruptedException
+	private void readMessagesPDU(final Collection<InboundMessage> msgList, MessageClasses messageClass, int myLimit) throws TimeoutException, GatewayException, IOException, InterruptedException
 	{
-		int i, j, memIndex;
-		String response, line, pduString;
-		BufferedReader reader;
-		int limit = (myLimit < 0 ? 0 : myLimit);
+		final int limit = (myLimit < 0 ? 0 : myLimit);
+		String mpDirectory = Service.getInstance().getSettings().MULTIPART_DIRECTORY;
+		if (mpDirectory == null) this.mpStore = null;
+		else
+		{
+			File store = new File(mpDirectory, getGatewayId() + ".multipart");
+			if (!store.equals(this.mpStore))
+			{
+				this.mpStore = store;
+				this.mpAssembler.clear();
+				loadMultipartStore();
+			}
+		}
+		// Messages assembled from stored parts are returned until deleted,
+		// just as messages kept on the modem are listed again.
+		for (InboundMessage mpMsg : this.mpAssembler.getAssembled())
+		{
+			msgList.add(mpMsg);
+			incInboundMessageCount();
+		}
 		for (int ml = 0; ml < (getATHandler().getStorageLocations().length() / 2); ml++)
 		{
-			if (getATHandler().switchStorageLocation(getATHandler().getStorageLocations().substring((ml * 2), (ml * 2) + 2)))
+			final String memLocation = getATHandler().getStorageLocations().substring((ml * 2), (ml * 2) + 2);
+			if (getATHandler().switchStorageLocation(memLocation))
 			{
-				response = getATHandler().listMessages(messageClass);
-				// TEST
-				// response = "+CMGL: 0,1,,24\r07914477000000000414D0E10D6FE3DBA036A94D190000217050321314042030D82C2703B540F4F29C1E83815AA0A73C7D4EBBC3F4B71C442DCFE9\rOK\r";
-				// TEST
-				response = response.replaceAll("\\s+OK\\s+", "\nOK");
-				reader = new BufferedReader(new StringReader(response));
-				for (;;)
+				// Each +CMGL header and PDU pair is decoded as soon as it is read
+				// off the port, so the listing is never held as a whole.
+				getATHandler().listMessages(messageClass, new ResponseLineListener()
 				{
-					line = reader.readLine();
-					if (line == null) break;
-					line = line.trim();
-					if (line.length() > 0) break;
-				}
-				// use the parser to determine the message type
-				PduParser parser = new PduParser();
-				while (true)
-				{
-					if (line == null) break;
-					line = line.trim();
-					if (line.length() <= 0 || line.equalsIgnoreCase("OK")) break;
-					if (line.length() <= 0 || line.equalsIgnoreCase("ERROR")) break;
-					i = line.indexOf(':');
-					j = line.indexOf(',');
-					memIndex = 0;
-					try
-					{
-						memIndex = Integer.parseInt(line.substring(i + 1, j).trim());
-					}
-					catch (NumberFormatException e)
-					{
-						// TODO: What to do here?
-						Logger.getInstance().logWarn("Incorrect Memory Index number parsed!", e, getGatewayId());
-					}
-					// Start modifications by Wim Stevens
-					// A line contains something like +CMGL: 1,1,,25
-					// first parameter is the memory index
-					// last parameter is the length of the PDU, not counting the addressing part
-					// the parser must always have an addressing part -> we will add it if required 
-					i = line.lastIndexOf(',');
-					j = line.length();
-					int pduSize = 0;
-					try
-					{
-						pduSize = Integer.parseInt(line.substring(i + 1, j).trim());
-					}
-					catch (NumberFormatException e)
-					{
-						// TODO: What to do here?
-						Logger.getInstance().logWarn("Incorrect pdu size parsed!", e, getGatewayId());
-					}
-					pduString = reader.readLine().trim();
-					if ((pduSize > 0) && ((pduSize * 2) == pduString.length()))
-					{
-						pduString = "00" + pduString;
-					}
-					try
+					private String header;
+
+					@Override
+					public void lineReceived(String line)
 					{
-						Logger.getInstance().logDebug("READ PDU: " + pduString, null, getGatewayId());
-						// this will throw an exception for PDUs
-						// it can't classify
-						Pdu pdu = parser.parsePdu(pduString);
-						// NOTE: maybe a message validity vs the current
-						//       date should be put here.
-						//       if the message is invalid, the message should
-						//       be ignored and but logged
-						if (pdu instanceof SmsDeliveryPdu)
-						{
-							Logger.getInstance().logDebug(pdu.toString(), null, getGatewayId());
-							InboundMessage msg;
-							String memLocation = getATHandler().getStorageLocations().substring((ml * 2), (ml * 2) + 2);
-							if (pdu.isBinary())
-							{
-								msg = new InboundBinaryMessage((SmsDeliveryPdu) pdu, memIndex, memLocation);
-								if (Service.getInstance().getKeyManager().getKey(msg.getOriginator()) != null) msg = new InboundEncryptedMessage((SmsDeliveryPdu) pdu, memIndex, memLocation);
-							}
-							else
-							{
-								msg = new InboundMessage((SmsDeliveryPdu) pdu, memIndex, memLocation);
-							}
-							msg.setGatewayId(getGatewayId());
-							Logger.getInstance().logDebug("IN-DTLS: MI:" + msg.getMemIndex() + " REF:" + msg.getMpRefNo() + " MAX:" + msg.getMpMaxNo() + " SEQ:" + msg.getMpSeqNo(), null, getGatewayId());
-							if (msg.getMpRefNo() == 0)
-							{
-								// single message
-								msgList.add(msg);
-								incInboundMessageCount();
-							}
-							else
-							{
-								// multi-part message
-								int k, l;
-								List<InboundMessage> tmpList;
-								InboundMessage listMsg;
-								boolean found, duplicate;
-								found = false;
-								for (k = 0; k < this.mpMsgList.size(); k++)
-								{
-									// List of List<InboundMessage>
-									tmpList = this.mpMsgList.get(k);
-									listMsg = tmpList.get(0);
-									// check if current message list is for this message
-									if (listMsg.getMpRefNo() == msg.getMpRefNo())
-									{
-										duplicate = false;
-										// check if the message is already in the message list
-										for (l = 0; l < tmpList.size(); l++)
-										{
-											listMsg = tmpList.get(l);
-											if (listMsg.getMpSeqNo() == msg.getMpSeqNo())
-											{
-												duplicate = true;
-												break;
-											}
-										}
-										if (!duplicate) tmpList.add(msg);
-										found = true;
-										break;
-									}
-								}
-								if (!found)
-								{
-									// no existing list present for this message
-									// add one
-									tmpList = new ArrayList<InboundMessage>();
-									tmpList.add(msg);
-									this.mpMsgList.add(tmpList);
-								}
-							}
-						}
-						else if (pdu instanceof SmsStatusReportPdu)
-						{
-							StatusReportMessage msg;
-							msg = new StatusReportMessage((SmsStatusReportPdu) pdu, memIndex, getATHandler().getStorageLocations().substring((ml * 2), (ml * 2) + 2));
-							msg.setGatewayId(getGatewayId());
-							msgList.add(msg);
-							incInboundMessageCount();
-						}
+						line = line.trim();
+						if (line.length() == 0) return;
+						if ((limit > 0) && (msgList.size() >= limit)) return;
+						if (this.header == null) this.header = line;
 						else
 						{
-							// this theoretically will never happen, but it occasionally does with phones 
-							// like some Sony Ericssons (e.g. Z610i, SENT messages are included in this list)
-							// instead of throwing a RuntimeException, just ignore any messages that are not of type
-							// SmsDeliveryPdu
-							// SmsStatusReportPdu
-							if (this.displayIllegalReceivedMessages)
-							{
-								Logger.getInstance().logError("Wrong type of PDU detected: " + pdu.getClass().getName(), null, getGatewayId());
-								Logger.getInstance().logError("ERROR PDU: " + pduString, null, getGatewayId());
-							}
+							readListedPdu(this.header, line, memLocation, msgList);
+							this.header = null;
 						}
 					}
-					catch (Exception e)
+				});
+			}
+		}
+		checkMpMsgList();
+		if (this.mpStore == null) this.mpAssembler.clear();
+		else if (saveMultipartStore())
+		{
+			// The parts are safe on disk; free their SIM slots.
+			for (InboundMessage part : this.mpAssembler.getPartsOnModem())
+				if (deleteMessage(part.getMemIndex(), part.getMemLocation())) part.setMemIndex(-1);
+		}
+	}
+
+	/**
+	 * Reads back the message parts kept by an earlier run. Messages whose
+	 * parts are all there are held until deleted.
+	 */
+	private void loadMultipartStore()
+	{
+		if (!this.mpStore.exists()) return;
+		try
+		{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.mpStore), "US-ASCII"));
+			try
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					int i = line.indexOf(' ');
+					if (i < 0) continue;
+					String memLocation = line.substring(0, i);
+					String pduString = line.substring(i + 1);
+					try
 					{
-						// PduFactory will give an exception
-						// for PDUs it can't understand
-						UnknownMessage msg;
-						msg = new UnknownMessage(pduString, memIndex, getATHandler().getStorageLocations().substring((ml * 2), (ml * 2) + 2));
-						msg.setGatewayId(getGatewayId());
-						msgList.add(msg);
-						incInboundMessageCount();
-						Logger.getInstance().logError("Unhandled SMS in inbox, skipping...", e, getGatewayId());
-						Logger.getInstance().logError("ERROR PDU: " + pduString, null, getGatewayId());
+						Pdu pdu = this.pduParser.parsePdu(pduString);
+						if (!(pdu instanceof SmsDeliveryPdu)) continue;
+						this.mpAssembler.add(newInboundMessage((SmsDeliveryPdu) pdu, -1, memLocation), pduString);
 					}
-					while (true)
+					catch (Exception e)
 					{
-						line = reader.readLine();
-						if (line == null) break;
-						line = line.trim();
-						if (line.length() > 0) break;
+						Logger.getInstance().logError("Unreadable message part in " + this.mpStore + ", skipping...", e, getGatewayId());
 					}
-					if ((limit > 0) && (msgList.size() == limit)) break;
 				}
+			}
+			finally
+			{
 				reader.close();
 			}
+			Logger.getInstance().logInfo("Loaded " + this.mpAssembler.size() + " incomplete multipart messages from " + this.mpStore, null, getGatewayId());
 		}
-		checkMpMsgList(msgList);
-		List<InboundMessage> tmpList;
-		for (int k = 0; k < this.mpMsgList.size(); k++)
+		catch (IOException e)
 		{
-			tmpList = this.mpMsgList.get(k);
-			tmpList.clear();
+			Logger.getInstance().logError("Cannot read " + this.mpStore, e, getGatewayId());
 		}
-		mpMsgList.clear();
+	}
+
+	/**
+	 * Writes the parts of incomplete and held messages to disk, if they
+	 * changed.
+	 * 
+	 * @return False if they could not be written.
+	 */
+	private boolean saveMultipartStore()
+	{
+		if (!this.mpAssembler.isModified()) return true;
+		File tmp = new File(this.mpStore.getPath() + ".tmp");
+		try
+		{
+			FileOutputStream out = new FileOutputStream(tmp);
+			try
+			{
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, "US-ASCII"));
+				this.mpAssembler.write(writer);
+				writer.flush();
+				out.getFD().sync();
+			}
+			finally
+			{
+				out.close();
+			}
+			if (!tmp.renameTo(this.mpStore))
+			{
+				// Windows will not rename over an existing file.
+				this.mpStore.delete();
+				if (!tmp.renameTo(this.mpStore)) throw new IOException("Cannot rename " + tmp + " to " + this.mpStore);
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			Logger.getInstance().logError("Cannot write " + this.mpStore + ", leaving message parts on the modem.", e, getGatewayId());
+			return false;
+		}
+	}
+
+	/**
+	 * Decodes a message listed by AT+CMGL.
+	 * 
+	 * @param header
+	 *            The +CMGL line, like +CMGL: 1,1,,25.
+	 * @param pduString
+	 *            The line following it.
+	 */
+	private void readListedPdu(String header, String pduString, String memLocation, Collection<InboundMessage> msgList)
+	{
+		int i, j, memIndex;
+		i = header.indexOf(':');
+		j = header.indexOf(',');
+		memIndex = 0;
+		try
+		{
+			memIndex = Integer.parseInt(header.substring(i + 1, j).trim());
+		}
+		catch (NumberFormatException e)
+		{
+			// TODO: What to do here?
+			Logger.getInstance().logWarn("Incorrect Memory Index number parsed!", e, getGatewayId());
+		}
+		// Start modifications by Wim Stevens
+		// A line contains something like +CMGL: 1,1,,25
+		// first parameter is the memory index
+		// last parameter is the length of the PDU, not counting the addressing part
+		// the parser must always have an addressing part -> we will add it if required 
+		i = header.lastIndexOf(',');
+		j = header.length();
+		int pduSize = 0;
+		try
+		{
+			pduSize = Integer.parseInt(header.substring(i + 1, j).trim());
+		}
+		catch (NumberFormatException e)
+		{
+			// TODO: What to do here?
+			Logger.getInstance().logWarn("Incorrect pdu size parsed!", e, getGatewayId());
+		}
+		if ((pduSize > 0) && ((pduSize * 2) == pduString.length()))
+		{
+			pduString = "00" + pduString;
+		}
+		try
+		{
+			Logger.getInstance().logDebug("READ PDU: " + pduString, null, getGatewayId());
+			// use the parser to determine the message type
+			// this will throw an exception for PDUs
+			// it can't classify
+			Pdu pdu = this.pduParser.parsePdu(pduString);
+			// NOTE: maybe a message validity vs the current
+			//       date should be put here.
+			//       if the message is invalid, the message should
+			//       be ignored and but logged
+			if (pdu instanceof SmsDeliveryPdu)
+			{
+				if (Logger.getInstance().isDebugEnabled()) Logger.getInstance().logDebug(pdu.toString(), null, getGatewayId());
+				InboundMessage msg = newInboundMessage((SmsDeliveryPdu) pdu, memIndex, memLocation);
+				Logger.getInstance().logDebug("IN-DTLS: MI:" + msg.getMemIndex() + " REF:" + msg.getMpRefNo() + " MAX:" + msg.getMpMaxNo() + " SEQ:" + msg.getMpSeqNo(), null, getGatewayId());
+				if (msg.getMpRefNo() == 0)
+				{
+					// single message
+					msgList.add(msg);
+					incInboundMessageCount();
+				}
+				else
+				{
+					// multi-part message
+					InboundMessage mpMsg = this.mpAssembler.add(msg, (this.mpStore == null ? null : pduString));
+					if (mpMsg != null)
+					{
+						msgList.add(mpMsg);
+						incInboundMessageCount();
+					}
+				}
+			}
+			else if (pdu instanceof SmsStatusReportPdu)
+			{
+				StatusReportMessage msg;
+				msg = new StatusReportMessage((SmsStatusReportPdu) pdu, memIndex, memLocation);
+				msg.setGatewayId(getGatewayId());
+				msgList.add(msg);
+				incInboundMessageCount();
+			}
+			else
+			{
+				// this theoretically will never happen, but it occasionally does with phones 
+				// like some Sony Ericssons (e.g. Z610i, SENT messages are included in this list)
+				// instead of throwing a RuntimeException, just ignore any messages that are not of type
+				// SmsDeliveryPdu
+				// SmsStatusReportPdu
+				if (this.displayIllegalReceivedMessages)
+				{
+					Logger.getInstance().logError("Wrong type of PDU detected: " + pdu.getClass().getName(), null, getGatewayId());
+					Logger.getInstance().logError("ERROR PDU: " + pduString, null, getGatewayId());
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			// PduFactory will give an exception
+			// for PDUs it can't understand
+			UnknownMessage msg;
+			msg = new UnknownMessage(pduString, memIndex, memLocation);
+			msg.setGatewayId(getGatewayId());
+			msgList.add(msg);
+			incInboundMessageCount();
+			Logger.getInstance().logError("Unhandled SMS in inbox, skipping...", e, getGatewayId());
+			Logger.getInstance().logError("ERROR PDU: " + pduString, null, getGatewayId());
+		}
+	}
+
+	private InboundMessage newInboundMessage(SmsDeliveryPdu pdu, int memIndex, String memLocation)
+	{
+		InboundMessage msg;
+		if (pdu.isBinary())
+		{
+			msg = new InboundBinaryMessage(pdu, memIndex, memLocation);
+			if (Service.getInstance().getKeyManager().getKey(msg.getOriginator()) != null) msg = new InboundEncryptedMessage(pdu, memIndex, memLocation);
+		}
+		else
+		{
+			msg = new InboundMessage(pdu, memIndex, memLocation);
+		}
+		msg.setGatewayId(getGatewayId());
+		return msg;
 	}
 
 	private boolean displayIllegalReceivedMessages;
@@ -723,98 +840,26 @@ public class ModemGateway extends AGateway
 		}
 	}
 
-	private void checkMpMsgList(Collection<InboundMessage> msgList) throws TimeoutException, GatewayException, IOException, InterruptedException
+	/**
+	 * Hands the parts of incomplete messages older than HOURS_TO_ORPHAN hours
+	 * to the orphaned message notification. Parts it agrees to delete are
+	 * dropped from the reassembly buffer as well. Without a notification,
+	 * such parts are only dropped when a multipart store is in use, so that
+	 * the store does not grow without bound.
+	 */
+	private void checkMpMsgList() throws TimeoutException, GatewayException, IOException, InterruptedException
 	{
-		int k, l, m;
-		List<InboundMessage> tmpList;
-		InboundMessage listMsg, mpMsg;
-		boolean found;
-		mpMsg = null;
-		Logger.getInstance().logDebug("CheckMpMsgList(): MAINLIST: " + this.mpMsgList.size(), null, getGatewayId());
-		for (k = 0; k < this.mpMsgList.size(); k++)
-		{
-			tmpList = this.mpMsgList.get(k);
-			Logger.getInstance().logDebug("CheckMpMsgList(): SUBLIST[" + k + "]: " + tmpList.size(), null, getGatewayId());
-			listMsg = tmpList.get(0);
-			found = false;
-			if (listMsg.getMpMaxNo() == tmpList.size())
-			{
-				found = true;
-				for (l = 0; l < tmpList.size(); l++)
-					for (m = 0; m < tmpList.size(); m++)
-					{
-						listMsg = tmpList.get(m);
-						if (listMsg.getMpSeqNo() == (l + 1))
-						{
-							if (listMsg.getMpSeqNo() == 1)
-							{
-								mpMsg = listMsg;
-								mpMsg.setMpMemIndex(mpMsg.getMemIndex());
-								if (listMsg.getMpMaxNo() == 1)
-								{
-									msgList.add(mpMsg);
-									incInboundMessageCount();
-								}
-							}
-							else
-							{
-								if (mpMsg != null)
-								{
-									if (mpMsg instanceof InboundBinaryMessage)
-									{
-										InboundBinaryMessage mpMsgBinary = (InboundBinaryMessage) mpMsg;
-										InboundBinaryMessage listMsgBinary = (InboundBinaryMessage) listMsg;
-										mpMsgBinary.addDataBytes(listMsgBinary.getDataBytes());
-									}
-									else
-									{
-										// NEW
-										String textToAdd = listMsg.getText();
-										if (mpMsg.getEndsWithMultiChar())
-										{
-											// adjust first char of textToAdd
-											Logger.getInstance().logDebug("Adjusting dangling multi-char: " + textToAdd.charAt(0) + " --> " + PduUtils.getMultiCharFor(textToAdd.charAt(0)), null, getGatewayId());
-											textToAdd = PduUtils.getMultiCharFor(textToAdd.charAt(0)) + textToAdd.substring(1);
-										}
-										mpMsg.setEndsWithMultiChar(listMsg.getEndsWithMultiChar());
-										try
-										{
-											mpMsg.addText(textToAdd);
-										}
-										catch (UnsupportedEncodingException e)
-										{
-											// TODO: What to do with this?
-										}
-									}
-									mpMsg.setMpSeqNo(listMsg.getMpSeqNo());
-									mpMsg.setMpMemIndex(listMsg.getMemIndex());
-									if (listMsg.getMpSeqNo() == listMsg.getMpMaxNo())
-									{
-										mpMsg.setMemIndex(-1);
-										msgList.add(mpMsg);
-										incInboundMessageCount();
-										mpMsg = null;
-									}
-								}
-							}
-							break;
-						}
-					}
-				tmpList.clear();
-				tmpList = null;
-			}
-			if (found)
-			{
-				this.mpMsgList.remove(k);
-				k--;
-			}
-		}
-		// Check the remaining parts for "orphaned" status
-		for (List<InboundMessage> remainingList : this.mpMsgList)
+		Logger.getInstance().logDebug("CheckMpMsgList(): INCOMPLETE: " + this.mpAssembler.size(), null, getGatewayId());
+		IOrphanedMessageNotification notification = Service.getInstance().getOrphanedMessageNotification();
+		if ((notification == null) && (this.mpStore == null)) return;
+		Date cutoff = new Date(System.currentTimeMillis() - (Service.getInstance().getSettings().HOURS_TO_ORPHAN + 1) * 60L * 60 * 1000);
+		for (InboundMessage msg : this.mpAssembler.getOlderThan(cutoff))
 		{
-			for (InboundMessage msg : remainingList)
+			if ((notification == null) || (notification.process(Service.getInstance().getGateway(msg.getGatewayId()), msg) == true))
 			{
-				if (getAgeInHours(msg.getDate()) > Service.getInstance().getSettings().HOURS_TO_ORPHAN) if (Service.getInstance().getOrphanedMessageNotification() != null) if (Service.getInstance().getOrphanedMessageNotification().process(Service.getInstance().getGateway(msg.getGatewayId()), msg) == true) deleteMessage(msg);
+				if (notification == null) Logger.getInstance().logInfo("Dropping orphaned message part from " + msg.getOriginator() + " (REF:" + msg.getMpRefNo() + " SEQ:" + msg.getMpSeqNo() + ")", null, getGatewayId());
+				deleteMessage(msg);
+				this.mpAssembler.remove(msg);
 			}
 		}
 	}
@@ -0,0 +1,351 @@
+// SMSLib for Java v3
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.smslib.modem;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.ajwcc.pduUtils.gsm3040.PduUtils;
+import org.smslib.InboundBinaryMessage;
+import org.smslib.InboundMessage;
+import org.smslib.helper.Logger;
+
+/**
+ * Reassembly buffer for concatenated inbound messages. Parts are grouped by
+ * originator, reference number and part count, so that two senders reusing
+ * the same reference are kept apart, and a message is assembled as soon as
+ * its last missing part arrives.
+ * <p>
+ * Parts may carry the PDU they were decoded from, so that incomplete messages
+ * can be written out and read back across restarts (see
+ * <code>Settings.MULTIPART_DIRECTORY</code>). Parts kept this way no longer
+ * exist on the modem and have a memory index of -1. A message assembled from
+ * such parts is held, and still written out, until it is released after its
+ * deletion, as it would otherwise exist nowhere but in the caller's hands.
+ */
+class MultipartAssembler
+{
+	private final String gatewayId;
+
+	private final Map<Key, Entry> entries;
+
+	private final List<Entry> assembled;
+
+	private boolean modified;
+
+	public MultipartAssembler(String gatewayId)
+	{
+		this.gatewayId = gatewayId;
+		this.entries = new HashMap<Key, Entry>();
+		this.assembled = new ArrayList<Entry>();
+	}
+
+	/**
+	 * Adds a message part. Duplicate parts, including parts of a held message
+	 * that are listed again, are ignored.
+	 *
+	 * @param pdu
+	 *            The PDU the part was decoded from, or null if the part is not
+	 *            to be written out.
+	 * @return The assembled message if this was the last missing part, null
+	 *         otherwise.
+	 */
+	public InboundMessage add(InboundMessage part, String pdu)
+	{
+		int maxNo = part.getMpMaxNo();
+		int seqNo = part.getMpSeqNo();
+		if ((maxNo <= 1) || (seqNo < 1) || (seqNo > maxNo))
+		{
+			// Nothing to wait for: deliver the part as it is.
+			if (part.getMemIndex() >= 0) part.setMpMemIndex(part.getMemIndex());
+			return part;
+		}
+		Key key = keyOf(part);
+		if (pdu != null)
+		{
+			for (Entry held : this.assembled)
+				if (held.key.equals(key) && held.holds(part, pdu)) return null;
+		}
+		Entry entry = this.entries.get(key);
+		if (entry == null)
+		{
+			entry = new Entry(key, maxNo);
+			this.entries.put(key, entry);
+		}
+		int count = entry.count;
+		boolean complete = entry.add(part, pdu);
+		if ((entry.count != count) && (pdu != null)) this.modified = true;
+		if (!complete) return null;
+		this.entries.remove(key);
+		this.modified = true;
+		entry.message = assemble(entry.parts);
+		if (pdu != null) this.assembled.add(entry);
+		return entry.message;
+	}
+
+	/**
+	 * Drops a held message once it has been deleted.
+	 *
+	 * @return True if the message was held.
+	 */
+	public boolean release(InboundMessage message)
+	{
+		for (int i = 0; i < this.assembled.size(); i++)
+		{
+			if (this.assembled.get(i).message == message)
+			{
+				this.assembled.remove(i);
+				this.modified = true;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the held messages, that is the assembled messages that have not
+	 * been released yet.
+	 */
+	public List<InboundMessage> getAssembled()
+	{
+		List<InboundMessage> messages = new ArrayList<InboundMessage>();
+		for (Entry held : this.assembled)
+			messages.add(held.message);
+		return messages;
+	}
+
+	/**
+	 * Drops a part of an incomplete message.
+	 */
+	public void remove(InboundMessage part)
+	{
+		Key key = keyOf(part);
+		Entry entry = this.entries.get(key);
+		if ((entry == null) || (!entry.remove(part))) return;
+		if (entry.count == 0) this.entries.remove(key);
+		this.modified = true;
+	}
+
+	/**
+	 * Returns the parts of incomplete messages dated before
+	 * <code>cutoff</code>.
+	 */
+	public List<InboundMessage> getOlderThan(Date cutoff)
+	{
+		List<InboundMessage> parts = new ArrayList<InboundMessage>();
+		for (Entry entry : this.entries.values())
+			for (InboundMessage part : entry.parts)
+				if ((part != null) && (part.getDate() != null) && (part.getDate().before(cutoff))) parts.add(part);
+		return parts;
+	}
+
+	/**
+	 * Returns the parts of incomplete messages that are still stored on the
+	 * modem.
+	 */
+	public List<InboundMessage> getPartsOnModem()
+	{
+		List<InboundMessage> parts = new ArrayList<InboundMessage>();
+		for (Entry entry : this.entries.values())
+			for (InboundMessage part : entry.parts)
+				if ((part != null) && (part.getMemIndex() >= 0)) parts.add(part);
+		return parts;
+	}
+
+	/**
+	 * True if parts have been added or dropped since the last
+	 * <code>write()</code>.
+	 */
+	public boolean isModified()
+	{
+		return this.modified;
+	}
+
+	/**
+	 * Writes the parts that carry a PDU, those of held messages first, one per
+	 * line, as their memory location and PDU separated by a blank.
+	 */
+	public void write(Writer out) throws IOException
+	{
+		for (Entry held : this.assembled)
+			held.write(out);
+		for (Entry entry : this.entries.values())
+			entry.write(out);
+		this.modified = false;
+	}
+
+	public int size()
+	{
+		return this.entries.size();
+	}
+
+	public void clear()
+	{
+		this.entries.clear();
+		this.assembled.clear();
+		this.modified = false;
+	}
+
+	private Key keyOf(InboundMessage part)
+	{
+		return new Key(part.getOriginator(), part.getMpRefNo(), part.getMpMaxNo());
+	}
+
+	private InboundMessage assemble(InboundMessage[] parts)
+	{
+		InboundMessage mpMsg = parts[0];
+		if (mpMsg.getMemIndex() >= 0) mpMsg.setMpMemIndex(mpMsg.getMemIndex());
+		for (int i = 1; i < parts.length; i++)
+		{
+			InboundMessage part = parts[i];
+			if (mpMsg instanceof InboundBinaryMessage)
+			{
+				((InboundBinaryMessage) mpMsg).addDataBytes(((InboundBinaryMessage) part).getDataBytes());
+			}
+			else
+			{
+				String textToAdd = part.getText();
+				if (mpMsg.getEndsWithMultiChar() && (textToAdd.length() > 0))
+				{
+					// adjust first char of textToAdd
+					Logger.getInstance().logDebug("Adjusting dangling multi-char: " + textToAdd.charAt(0) + " --> " + PduUtils.getMultiCharFor(textToAdd.charAt(0)), null, this.gatewayId);
+					textToAdd = PduUtils.getMultiCharFor(textToAdd.charAt(0)) + textToAdd.substring(1);
+				}
+				mpMsg.setEndsWithMultiChar(part.getEndsWithMultiChar());
+				try
+				{
+					mpMsg.addText(textToAdd);
+				}
+				catch (UnsupportedEncodingException e)
+				{
+					// TODO: What to do with this?
+				}
+			}
+			mpMsg.setMpSeqNo(part.getMpSeqNo());
+			if (part.getMemIndex() >= 0) mpMsg.setMpMemIndex(part.getMemIndex());
+		}
+		mpMsg.setMemIndex(-1);
+		return mpMsg;
+	}
+
+	private static class Key
+	{
+		final String originator;
+
+		final int refNo;
+
+		final int maxNo;
+
+		Key(String originator, int refNo, int maxNo)
+		{
+			this.originator = (originator == null ? "" : originator);
+			this.refNo = refNo;
+			this.maxNo = maxNo;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return (this.refNo == other.refNo) && (this.maxNo == other.maxNo) && this.originator.equals(other.originator);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (this.originator.hashCode() * 31 + this.refNo) * 31 + this.maxNo;
+		}
+	}
+
+	private static class Entry
+	{
+		final Key key;
+
+		final InboundMessage[] parts;
+
+		final String[] pdus;
+
+		final BitSet received;
+
+		int count;
+
+		InboundMessage message;
+
+		Entry(Key key, int maxNo)
+		{
+			this.key = key;
+			this.parts = new InboundMessage[maxNo];
+			this.pdus = new String[maxNo];
+			this.received = new BitSet(maxNo);
+		}
+
+		/**
+		 * @return True once every part has been received.
+		 */
+		boolean add(InboundMessage part, String pdu)
+		{
+			int i = part.getMpSeqNo() - 1;
+			if (this.received.get(i)) return false;
+			this.received.set(i);
+			this.parts[i] = part;
+			this.pdus[i] = pdu;
+			this.count++;
+			return (this.count == this.parts.length);
+		}
+
+		/**
+		 * @return True if this entry already holds the part. A copy still on
+		 *         the modem is added to the memory indexes of the message, so
+		 *         that deleting the message deletes it as well.
+		 */
+		boolean holds(InboundMessage part, String pdu)
+		{
+			if (!pdu.equals(this.pdus[part.getMpSeqNo() - 1])) return false;
+			int memIndex = part.getMemIndex();
+			if ((memIndex >= 0) && (!("," + this.message.getMpMemIndex() + ",").contains("," + memIndex + ","))) this.message.setMpMemIndex(memIndex);
+			return true;
+		}
+
+		void write(Writer out) throws IOException
+		{
+			for (int i = 0; i < this.parts.length; i++)
+				if (this.pdus[i] != null) out.write(this.parts[i].getMemLocation() + " " + this.pdus[i] + "\n");
+		}
+
+		boolean remove(InboundMessage part)
+		{
+			int i = part.getMpSeqNo() - 1;
+			if (this.parts[i] != part) return false;
+			this.received.clear(i);
+			this.parts[i] = null;
+			this.pdus[i] = null;
+			this.count--;
+			return true;
+		}
+	}
+}
@@ -49,6 +49,8 @@ class SerialModemDriver extends AModemDriver implements SerialPortEventListener
 
 	private PortReader portReader;
 
+	private final byte[] readBuffer = new byte[1024];
+
 	protected SerialModemDriver(ModemGateway myGateway, String deviceParms)
 	{
 		super(myGateway, deviceParms);
@@ -106,26 +108,59 @@ class SerialModemDriver extends AModemDriver implements SerialPortEventListener
 	@Override
 	protected void disconnectPort() throws IOException, InterruptedException
 	{
+		// The poller and the event thread both read under SYNCReader, so it
+		// must not be held while waiting for either of them.
+		PortReader reader = getPortReader();
+		if (reader != null)
+		{
+			setPortReader(null);
+			reader.cancel();
+		}
+		SerialPort port;
 		synchronized (getSYNCReader())
 		{
-			if (Service.getInstance().getSettings().SERIAL_POLLING)
-			{
-				if (getPortReader() != null)
-				{
-					getPortReader().cancel();
-					setPortReader(null);
-				}
-			}
-			if (getSerialPort() != null) getSerialPort().close();
-			Logger.getInstance().logInfo("Closing: " + getComPort() + " @" + getBaudRate(), null, getGateway().getGatewayId());
+			// Any read still in progress is over; later ones find no port.
+			port = getSerialPort();
+			setSerialPort(null);
 		}
+		if (port != null) port.close();
+		Logger.getInstance().logInfo("Closing: " + getComPort() + " @" + getBaudRate(), null, getGateway().getGatewayId());
 	}
 
 	@Override
 	protected void clear() throws IOException
 	{
-		while (portHasData())
-			read();
+		readAvailable();
+	}
+
+	@Override
+	protected boolean pushesReceivedData()
+	{
+		return true;
+	}
+
+	/**
+	 * Moves everything the port has buffered to the CharQueue, a chunk at a
+	 * time.
+	 * 
+	 * @return The number of bytes read.
+	 */
+	int readAvailable() throws IOException
+	{
+		int total = 0;
+		synchronized (getSYNCReader())
+		{
+			if (getSerialPort() == null) return 0;
+			int n;
+			while ((n = getIn().available()) > 0)
+			{
+				n = getIn().read(this.readBuffer, 0, Math.min(n, this.readBuffer.length));
+				if (n <= 0) break;
+				received(this.readBuffer, 0, n);
+				total += n;
+			}
+		}
+		return total;
 	}
 
 	@Override
@@ -144,10 +179,13 @@ class SerialModemDriver extends AModemDriver implements SerialPortEventListener
 		{
 			if (!Service.getInstance().getSettings().SERIAL_POLLING)
 			{
-				synchronized (getSYNCReader())
+				try
+				{
+					readAvailable();
+				}
+				catch (IOException e)
 				{
-					setDataReceived(true);
-					getSYNCReader().notifyAll();
+					Logger.getInstance().logError("Error reading from " + getComPort() + ".", e, getGateway().getGatewayId());
 				}
 			}
 		}
@@ -158,6 +196,7 @@ class SerialModemDriver extends AModemDriver implements SerialPortEventListener
 	{
 		getOut().write(c);
 		if (!Service.getInstance().getSettings().SERIAL_NOFLUSH) getOut().flush();
+		expectResponse();
 	}
 
 	@Override
@@ -184,6 +223,17 @@ class SerialModemDriver extends AModemDriver implements SerialPortEventListener
 			}
 		}
 		if (!Service.getInstance().getSettings().SERIAL_NOFLUSH) getOut().flush();
+		expectResponse();
+	}
+
+	/**
+	 * A response follows whatever was written, so the poller (if any) goes
+	 * back to its fastest rate.
+	 */
+	private void expectResponse()
+	{
+		PortReader reader = getPortReader();
+		if (reader != null) reader.tighten();
 	}
 
 	@Override
@@ -202,6 +252,11 @@ class SerialModemDriver extends AModemDriver implements SerialPortEventListener
 		this.portReader = myPortReader;
 	}
 
+	/**
+	 * Polls the port at an adaptive rate: every
+	 * <code>SERIAL_POLLING_MIN_INTERVAL</code> while data flows, doubling the
+	 * delay on each idle poll up to <code>SERIAL_POLLING_INTERVAL</code>.
+	 */
 	private class PortReader extends AServiceThread
 	{
 		public PortReader(String name, int delay)
@@ -209,18 +264,23 @@ class SerialModemDriver extends AModemDriver implements SerialPortEventListener
 			super(name, delay, 0, true);
 		}
 
-		@Override
-		public void process() throws Exception
+		void tighten()
 		{
-			if (portHasData())
+			if (getDelay() > Service.getInstance().getSettings().SERIAL_POLLING_MIN_INTERVAL)
 			{
-				synchronized (getSYNCReader())
-				{
-					setDataReceived(true);
-					getSYNCReader().notifyAll();
-				}
+				setDelay(Service.getInstance().getSettings().SERIAL_POLLING_MIN_INTERVAL);
+				wakeUp();
 			}
 		}
+
+		@Override
+		public void process() throws Exception
+		{
+			int min = Service.getInstance().getSettings().SERIAL_POLLING_MIN_INTERVAL;
+			int max = Math.max(min, Service.getInstance().getSettings().SERIAL_POLLING_INTERVAL);
+			if (readAvailable() > 0) setDelay(min);
+			else setDelay(Math.min(max, Math.max(getDelay(), 1) * 2));
+		}
 	}
 
 	String getComPort()
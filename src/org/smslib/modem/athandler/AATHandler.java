@@ -20,14 +20,20 @@
 
 package org.smslib.modem.athandler;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.lang.reflect.Constructor;
 import org.smslib.GatewayException;
+import org.smslib.Service;
 import org.smslib.TimeoutException;
 import org.smslib.AGateway.AsyncEvents;
 import org.smslib.InboundMessage.MessageClasses;
+import org.smslib.modem.ATResponseParser;
+import org.smslib.modem.ATResponseParser.ResponseTypes;
 import org.smslib.modem.CNMIDetector;
 import org.smslib.modem.ModemGateway;
+import org.smslib.modem.ResponseLineListener;
 
 public abstract class AATHandler
 {
@@ -37,8 +43,6 @@ public abstract class AATHandler
 
 	private String description;
 
-	String[] terminators;
-
 	String[] unsolicitedResponses;
 
 	public AATHandler(ModemGateway myGateway)
@@ -72,11 +76,6 @@ public abstract class AATHandler
 		this.storageLocations += myStorageLocation;
 	}
 
-	public String[] getTerminators()
-	{
-		return this.terminators;
-	}
-
 	public String[] getUnsolicitedResponses()
 	{
 		return this.unsolicitedResponses;
@@ -87,6 +86,16 @@ public abstract class AATHandler
 		return this.unsolicitedResponses[index];
 	}
 
+	/**
+	 * Returns true if this modem needs the fixed AT_WAIT* delays after its
+	 * commands, instead of having its answers waited for. Handlers of modems
+	 * known to misbehave otherwise override this.
+	 */
+	public boolean useFixedDelays()
+	{
+		return Service.getInstance().getSettings().AT_FIXED_DELAYS;
+	}
+
 	public abstract void sync() throws IOException, InterruptedException;
 
 	public abstract void reset() throws TimeoutException, GatewayException, IOException, InterruptedException;
@@ -139,6 +148,28 @@ public abstract class AATHandler
 
 	public abstract String listMessages(MessageClasses messageClass) throws TimeoutException, GatewayException, IOException, InterruptedException;
 
+	/**
+	 * Streaming version of listMessages: the lines of the listing are handed
+	 * to the listener as they arrive. By default the whole listing is read
+	 * first, for handlers that need to rewrite it.
+	 */
+	public void listMessages(MessageClasses messageClass, ResponseLineListener listener) throws TimeoutException, GatewayException, IOException, InterruptedException
+	{
+		replayResponse(listMessages(messageClass), listener);
+	}
+
+	protected void replayResponse(String response, ResponseLineListener listener) throws GatewayException, IOException
+	{
+		BufferedReader reader = new BufferedReader(new StringReader(response));
+		String line;
+		while ((line = reader.readLine()) != null)
+		{
+			String s = line.trim();
+			if (s.equals("OK") || s.equals("ERROR")) break;
+			listener.lineReceived(line);
+		}
+	}
+
 	public abstract String getMessageByIndex(int msgIndex) throws TimeoutException, GatewayException, IOException, InterruptedException;
 
 	public abstract boolean deleteMessage(int memIndex, String memLocation) throws TimeoutException, GatewayException, IOException, InterruptedException;
@@ -211,19 +242,33 @@ public abstract class AATHandler
 		return atHandler;
 	}
 
+	/**
+	 * @deprecated Responses are classified by <code>ATResponseParser</code>
+	 *             now, the regular expressions once returned here are gone.
+	 * @return The kinds of complete response, as indexed by
+	 *         {@link #findMatchingTerminator(String)}.
+	 */
+	@Deprecated
+	public String[] getTerminators()
+	{
+		ResponseTypes[] types = ResponseTypes.values();
+		String[] terminators = new String[types.length - 1];
+		for (int i = 1; i < types.length; i++)
+			terminators[i - 1] = types[i].name();
+		return terminators;
+	}
+
 	/**
 	 * Look up a terminating string for a response from a buffer
 	 * 
 	 * @param response
 	 * @return negative = no match, otherwise match
+	 * @deprecated Use <code>ATResponseParser</code>.
 	 */
+	@Deprecated
 	public int findMatchingTerminator(String response)
 	{
-		for (int i = 0; i < terminators.length; i++)
-		{
-			if (response.matches(terminators[i])) { return i; }
-		}
-		return -1;
+		return parseResponse(response).ordinal() - 1;
 	}
 
 	/**
@@ -234,10 +279,12 @@ public abstract class AATHandler
 	 * @param terminatorIndex
 	 *            Index returned by {@link #findMatchingTerminator(String)}
 	 * @return True if terminatorIndex indicates an unsolicited response
+	 * @deprecated Use <code>ATResponseParser</code>.
 	 */
+	@Deprecated
 	public boolean isUnsolicitedResponse(int terminatorIndex)
 	{
-		return terminatorIndex >= this.terminators.length - 5;
+		return terminatorIndex == ResponseTypes.UNSOLICITED.ordinal() - 1;
 	}
 
 	/**
@@ -247,11 +294,12 @@ public abstract class AATHandler
 	 * 
 	 * @param response
 	 * @return True if response is an unsolicited response
+	 * @deprecated Use <code>ATResponseParser</code>.
 	 */
+	@Deprecated
 	public boolean isUnsolicitedResponse(String response)
 	{
-		int i = findMatchingTerminator(response);
-		return isUnsolicitedResponse(i);
+		return parseResponse(response) == ResponseTypes.UNSOLICITED;
 	}
 
 	/**
@@ -259,9 +307,23 @@ public abstract class AATHandler
 	 * 
 	 * @param response
 	 * @return True if a terminating response
+	 * @deprecated Use <code>ATResponseParser</code>.
 	 */
+	@Deprecated
 	public boolean matchesTerminator(String response)
 	{
-		return findMatchingTerminator(response) >= 0;
+		return parseResponse(response) != ResponseTypes.INCOMPLETE;
+	}
+
+	/**
+	 * Feeds the lines of a response to a parser, up to the line completing
+	 * it.
+	 */
+	private ResponseTypes parseResponse(String response)
+	{
+		ATResponseParser parser = new ATResponseParser(getUnsolicitedResponses());
+		for (String line : response.split("\n"))
+			if ((line.trim().length() > 0) && (parser.addLine(line) != ResponseTypes.INCOMPLETE)) break;
+		return parser.getResponseType();
 	}
 }
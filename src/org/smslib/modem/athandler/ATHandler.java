@@ -34,6 +34,7 @@ import org.smslib.helper.Logger;
 import org.smslib.modem.AModemDriver;
 import org.smslib.modem.CNMIDetector;
 import org.smslib.modem.ModemGateway;
+import org.smslib.modem.ResponseLineListener;
 
 /**
  * Generic modem AT handler.
@@ -44,6 +45,9 @@ public class ATHandler extends AATHandler
 
 	protected CNMIDetector cnmiDetector;
 
+	/** True if a sub class rewrites the listing of messages. */
+	private final boolean listingRewritten;
+
 	/**
 	 * Cell Broadcast Data Coding Scheme (CBS DCS) value of 15 indicates GSM
 	 * default 7-bit alphabet (high nybble 0000), language unspecified (low
@@ -61,21 +65,7 @@ public class ATHandler extends AATHandler
 		super(myGateway);
 		this.modemDriver = myGateway.getModemDriver();
 		this.cnmiDetector = null;
-		this.terminators = new String[14];
-		this.terminators[0] = "OK\\s";
-		this.terminators[1] = "\\s*[\\p{ASCII}]*\\s+OK\\s";
-		this.terminators[2] = "(ERROR|NO CARRIER|NO DIALTONE)\\s";
-		this.terminators[3] = "ERROR:\\s*\\d+\\s";
-		this.terminators[4] = "\\+CM[ES]\\s+ERROR:\\s*\\d+\\s";
-		this.terminators[5] = "\\+CPIN:\\s*READY\\s";
-		this.terminators[6] = "\\+CPIN:\\s*SIM\\s*BUSY\\s";
-		this.terminators[7] = "\\+CPIN:\\s*SIM\\s*PIN\\s";
-		this.terminators[8] = "\\+CPIN:\\s*SIM\\s*PIN2\\s";
-		this.terminators[9] = "\\+CUSD:\\s.*\\s";
-		this.terminators[10] = "\\+CMTI:\\s*\\p{Punct}[\\p{ASCII}]+\\p{Punct}\\p{Punct}\\s*\\d+\\s";
-		this.terminators[11] = "\\+CDSI:\\s*\\p{Punct}[\\p{ASCII}]+\\p{Punct}\\p{Punct}\\s*\\d+\\s";
-		this.terminators[12] = "RING\\s";
-		this.terminators[13] = "\\+CLIP:\\s*\\p{Punct}[\\p{ASCII}]*\\p{Punct}\\p{Punct}\\s*\\d+[\\p{ASCII}]*\\s";
+		this.listingRewritten = overridesListMessages();
 		this.unsolicitedResponses = new String[5];
 		this.unsolicitedResponses[0] = "+CMTI";
 		this.unsolicitedResponses[1] = "+CDSI";
@@ -84,31 +74,71 @@ public class ATHandler extends AATHandler
 		this.unsolicitedResponses[4] = "+CUSD";
 	}
 
+	/**
+	 * Waits for the command just written to complete, or sleeps for
+	 * <code>fixedDelay</code> if this modem uses fixed delays. A modem that
+	 * stays silent for AT_WAIT_RESPONSE is not waited for any longer.
+	 * 
+	 * @see #useFixedDelays()
+	 */
+	protected void awaitCompletion(int fixedDelay) throws IOException, InterruptedException
+	{
+		if (useFixedDelays())
+		{
+			Thread.sleep(fixedDelay);
+			return;
+		}
+		try
+		{
+			getModemDriver().getResponse(Service.getInstance().getSettings().AT_WAIT_RESPONSE);
+		}
+		catch (TimeoutException e)
+		{
+			Logger.getInstance().logDebug("No answer from the modem, proceeding.", null, getGateway().getGatewayId());
+		}
+		catch (GatewayException e)
+		{
+			Logger.getInstance().logDebug("Unexpected answer from the modem, proceeding.", e, getGateway().getGatewayId());
+		}
+	}
+
+	/**
+	 * Sleeps for <code>fixedDelay</code>, but only if this modem uses fixed
+	 * delays.
+	 * 
+	 * @see #useFixedDelays()
+	 */
+	protected void pause(int fixedDelay) throws InterruptedException
+	{
+		if (useFixedDelays()) Thread.sleep(fixedDelay);
+	}
+
 	@Override
 	public void sync() throws IOException, InterruptedException
 	{
 		getModemDriver().write("ATZ\r");
-		Thread.sleep(Service.getInstance().getSettings().AT_WAIT);
+		awaitCompletion(Service.getInstance().getSettings().AT_WAIT);
 	}
 
 	@Override
 	public void reset() throws TimeoutException, GatewayException, IOException, InterruptedException
 	{
+		// The guard times around the escape sequence are needed in any case.
 		getModemDriver().write("\u001b");
 		Thread.sleep(Service.getInstance().getSettings().AT_WAIT);
 		getModemDriver().write("+++");
 		Thread.sleep(Service.getInstance().getSettings().AT_WAIT);
 		getModemDriver().write("ATZ\r");
-		Thread.sleep(Service.getInstance().getSettings().AT_WAIT);
-		getModemDriver().clearBuffer();
+		awaitCompletion(Service.getInstance().getSettings().AT_WAIT);
+		if (useFixedDelays()) getModemDriver().clearBuffer();
 	}
 
 	@Override
 	public void echoOff() throws IOException, InterruptedException
 	{
 		getModemDriver().write("ATE0\r");
-		Thread.sleep(Service.getInstance().getSettings().AT_WAIT);
-		getModemDriver().clearBuffer();
+		awaitCompletion(Service.getInstance().getSettings().AT_WAIT);
+		if (useFixedDelays()) getModemDriver().clearBuffer();
 	}
 
 	@Override
@@ -142,7 +172,21 @@ public class ATHandler extends AATHandler
 	public String getSimStatus() throws TimeoutException, GatewayException, IOException, InterruptedException
 	{
 		getModemDriver().write("AT+CPIN?\r");
-		return (getModemDriver().getResponse());
+		String response = getModemDriver().getResponse();
+		if (!useFixedDelays() && (response.indexOf("+CPIN") >= 0) && (response.indexOf("OK") < 0))
+		{
+			// +CPIN: completes the response by itself, but is normally followed by
+			// an OK that must not be taken for the answer to the next command.
+			try
+			{
+				getModemDriver().getResponse(Service.getInstance().getSettings().AT_WAIT);
+			}
+			catch (TimeoutException e)
+			{
+				// No OK after all.
+			}
+		}
+		return response;
 	}
 
 	@Override
@@ -202,13 +246,43 @@ public class ATHandler extends AATHandler
 			{
 				count++;
 				Logger.getInstance().logWarn("Retrying the detection of CNMI, modem busy?", null, getGateway().getGatewayId());
-				Thread.sleep(Service.getInstance().getSettings().AT_WAIT_CNMI);
+				if (useFixedDelays()) Thread.sleep(Service.getInstance().getSettings().AT_WAIT_CNMI);
+				else awaitReady(Service.getInstance().getSettings().AT_WAIT_CNMI);
 			}
 		}
 		Logger.getInstance().logWarn("CNMI detection failed, proceeding with defaults.", null, getGateway().getGatewayId());
 		return false;
 	}
 
+	/**
+	 * Polls the modem with AT until it answers OK, for at most
+	 * <code>timeout</code> milliseconds.
+	 */
+	protected boolean awaitReady(long timeout) throws IOException, InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true)
+		{
+			try
+			{
+				getModemDriver().clearBuffer();
+				getModemDriver().write("AT\r");
+				getModemDriver().getResponse(Service.getInstance().getSettings().AT_WAIT_RESPONSE);
+				if (getModemDriver().isOk()) return true;
+			}
+			catch (TimeoutException e)
+			{
+				// Still busy.
+			}
+			catch (GatewayException e)
+			{
+				// Still busy.
+			}
+			if (System.currentTimeMillis() >= deadline) return false;
+			Thread.sleep(Service.getInstance().getSettings().AT_WAIT);
+		}
+	}
+
 	@Override
 	public CNMIDetector getIndications()
 	{
@@ -310,29 +384,23 @@ public class ATHandler extends AATHandler
 			errorRetries = 0;
 			while (true)
 			{
-				responseRetries = 0;
 				getModemDriver().write("AT+CMGS=\"_1_\"\r".replaceAll("\"_1_\"", "" + size));
-				Thread.sleep(Service.getInstance().getSettings().AT_WAIT_CGMS);
-				while (!getModemDriver().dataAvailable())
+				if (awaitPrompt())
 				{
-					responseRetries++;
-					if (responseRetries == Service.getInstance().getSettings().OUTBOUND_RETRIES) throw new GatewayException("Gateway is not responding, max number of retries reached.");
-					Logger.getInstance().logWarn("ATHandler().SendMessage(): Still waiting for response (I) (" + responseRetries + ")...", null, getGateway().getGatewayId());
-					Thread.sleep(Service.getInstance().getSettings().OUTBOUND_RETRY_WAIT);
-				}
-				responseRetries = 0;
-				getModemDriver().clearBuffer();
-				getModemDriver().write(pdu);
-				getModemDriver().write((char) 26);
-				response = getModemDriver().getResponse();
-				while (response.length() == 0)
-				{
-					responseRetries++;
-					if (responseRetries == Service.getInstance().getSettings().OUTBOUND_RETRIES) throw new GatewayException("Gateway is not responding, max number of retries reached.");
-					Logger.getInstance().logWarn("ATHandler().SendMessage(): Still waiting for response (II) (" + responseRetries + ")...", null, getGateway().getGatewayId());
-					Thread.sleep(Service.getInstance().getSettings().OUTBOUND_RETRY_WAIT);
+					responseRetries = 0;
+					getModemDriver().write(pdu);
+					getModemDriver().write((char) 26);
 					response = getModemDriver().getResponse();
+					while (response.length() == 0)
+					{
+						responseRetries++;
+						if (responseRetries == Service.getInstance().getSettings().OUTBOUND_RETRIES) throw new GatewayException("Gateway is not responding, max number of retries reached.");
+						Logger.getInstance().logWarn("ATHandler().SendMessage(): Still waiting for response (II) (" + responseRetries + ")...", null, getGateway().getGatewayId());
+						Thread.sleep(Service.getInstance().getSettings().OUTBOUND_RETRY_WAIT);
+						response = getModemDriver().getResponse();
+					}
 				}
+				else response = getModemDriver().getResponse();
 				if (getModemDriver().getLastError() == 0)
 				{
 					Matcher m = Pattern.compile("\\s*\\+CMGS: *(\\d+)").matcher(response);
@@ -366,10 +434,12 @@ public class ATHandler extends AATHandler
 		else if (getGateway().getProtocol() == Protocols.TEXT)
 		{
 			getModemDriver().write("AT+CMGS=\"_1_\"\r".replaceAll("_1_", phone));
-			getModemDriver().clearBuffer();
-			getModemDriver().write(text);
-			Thread.sleep(Service.getInstance().getSettings().AT_WAIT_CGMS);
-			getModemDriver().write((char) 26);
+			if (awaitPrompt())
+			{
+				getModemDriver().write(text);
+				pause(Service.getInstance().getSettings().AT_WAIT_CGMS);
+				getModemDriver().write((char) 26);
+			}
 			response = getModemDriver().getResponse();
 			if (response.indexOf("OK\r") >= 0)
 			{
@@ -390,8 +460,93 @@ public class ATHandler extends AATHandler
 		return refNo;
 	}
 
+	/**
+	 * Waits for the prompt following AT+CMGS, giving up after
+	 * OUTBOUND_RETRIES periods of OUTBOUND_RETRY_WAIT without it.
+	 * Unsolicited responses arriving meanwhile are processed as usual.
+	 * 
+	 * @return False if the modem answered with a final result code instead
+	 *         (an error, most likely), which is left for getResponse().
+	 */
+	protected boolean awaitPrompt() throws GatewayException, IOException, InterruptedException
+	{
+		int responseRetries = 0;
+		if (useFixedDelays())
+		{
+			Thread.sleep(Service.getInstance().getSettings().AT_WAIT_CGMS);
+			while (!getModemDriver().dataAvailable())
+			{
+				responseRetries++;
+				if (responseRetries == Service.getInstance().getSettings().OUTBOUND_RETRIES) throw new GatewayException("Gateway is not responding, max number of retries reached.");
+				Logger.getInstance().logWarn("ATHandler().SendMessage(): Still waiting for response (I) (" + responseRetries + ")...", null, getGateway().getGatewayId());
+				Thread.sleep(Service.getInstance().getSettings().OUTBOUND_RETRY_WAIT);
+			}
+			getModemDriver().clearBuffer();
+			return true;
+		}
+		while (true)
+		{
+			try
+			{
+				return getModemDriver().waitForPrompt(Service.getInstance().getSettings().OUTBOUND_RETRY_WAIT);
+			}
+			catch (TimeoutException e)
+			{
+				responseRetries++;
+				if (responseRetries == Service.getInstance().getSettings().OUTBOUND_RETRIES)
+				{
+					// Should the prompt still come, the modem would wait for
+					// the PDU; ESC has it drop the command instead.
+					getModemDriver().write((char) 27);
+					throw new GatewayException("Gateway is not responding, max number of retries reached.");
+				}
+				Logger.getInstance().logWarn("ATHandler().SendMessage(): Still waiting for response (I) (" + responseRetries + ")...", null, getGateway().getGatewayId());
+			}
+		}
+	}
+
 	@Override
 	public String listMessages(MessageClasses messageClass) throws TimeoutException, GatewayException, IOException, InterruptedException
+	{
+		writeListMessages(messageClass);
+		return getModemDriver().getResponse();
+	}
+
+	/**
+	 * Streams the listing, unless a sub class overrides
+	 * <code>listMessages(messageClass)</code> to rewrite it; the rewritten
+	 * listing is then read whole and replayed.
+	 */
+	@Override
+	public void listMessages(MessageClasses messageClass, ResponseLineListener listener) throws TimeoutException, GatewayException, IOException, InterruptedException
+	{
+		if (this.listingRewritten)
+		{
+			replayResponse(listMessages(messageClass), listener);
+			return;
+		}
+		writeListMessages(messageClass);
+		getModemDriver().getResponse(listener);
+	}
+
+	private boolean overridesListMessages()
+	{
+		for (Class<?> c = getClass(); c != ATHandler.class; c = c.getSuperclass())
+		{
+			try
+			{
+				c.getDeclaredMethod("listMessages", MessageClasses.class);
+				return true;
+			}
+			catch (NoSuchMethodException e)
+			{
+				// Not declared here, try the super class.
+			}
+		}
+		return false;
+	}
+
+	private void writeListMessages(MessageClasses messageClass) throws IOException
 	{
 		if (getGateway().getProtocol() == Protocols.PDU)
 		{
@@ -405,7 +560,6 @@ public class ATHandler extends AATHandler
 			else if (messageClass == MessageClasses.UNREAD) getModemDriver().write("AT+CMGL=\"REC UNREAD\"\r");
 			else if (messageClass == MessageClasses.READ) getModemDriver().write("AT+CMGL=\"REC READ\"\r");
 		}
-		return getModemDriver().getResponse();
 	}
 
 	@Override
@@ -419,7 +573,7 @@ public class ATHandler extends AATHandler
 	public boolean deleteMessage(int memIndex, String memLocation) throws TimeoutException, GatewayException, IOException, InterruptedException
 	{
 		if (!switchStorageLocation(memLocation)) return false;
-		Thread.sleep(Service.getInstance().getSettings().AT_WAIT);
+		pause(Service.getInstance().getSettings().AT_WAIT);
 		getModemDriver().write("AT+CMGD=_1_\r".replaceAll("_1_", "" + memIndex));
 		getModemDriver().getResponse();
 		return (getModemDriver().isOk());
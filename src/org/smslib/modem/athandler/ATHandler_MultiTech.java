@@ -33,7 +33,10 @@ public class ATHandler_MultiTech extends ATHandler
 	public ATHandler_MultiTech(ModemGateway myGateway)
 	{
 		super(myGateway);
-		this.terminators[11] = "\\+CRING:\\s*VOICE\\s";
+		String[] unsolicited = new String[this.unsolicitedResponses.length + 1];
+		System.arraycopy(this.unsolicitedResponses, 0, unsolicited, 0, this.unsolicitedResponses.length);
+		unsolicited[unsolicited.length - 1] = "+CRING";
+		this.unsolicitedResponses = unsolicited;
 		setStorageLocations("SM");
 	}
 
@@ -42,7 +42,6 @@ public class ATHandler_Wavecom_WISMOQCDMA extends ATHandler_Wavecom
 	public ATHandler_Wavecom_WISMOQCDMA(ModemGateway myGateway)
 	{
 		super(myGateway);
-		this.terminators[1] = "\\s*([\\p{ASCII}]|[^\\x00-\\xff])*\\s+OK\\s";
 		setStorageLocations("MT");
 	}
 
@@ -38,7 +38,8 @@ public class NotifyQueueManager
 
 	public void start()
 	{
-		setNotifyQueueManager(new NotificationQueueManager("NotifyQueueManager", 100));
+		// No idle period: process() blocks on the queue until a notification arrives.
+		setNotifyQueueManager(new NotificationQueueManager("NotifyQueueManager", 0));
 	}
 
 	public void cancel()
@@ -20,8 +20,12 @@
 
 package org.smslib.queues;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import org.smslib.AGateway;
 import org.smslib.OutboundMessage;
+import org.smslib.Service;
 import org.smslib.helper.Logger;
 import org.smslib.threading.AServiceThread;
 
@@ -72,7 +76,33 @@ public abstract class AbstractQueueManager
 
 	public abstract boolean removePendingMessage(OutboundMessage message);
 
-	public abstract boolean removePendingMessage(String messageUUID);
+	/**
+	 * Removes the first pending message whose ID (see
+	 * <code>Message.getId()</code>) matches <code>messageId</code>, ignoring
+	 * case.
+	 * 
+	 * @see #removePendingMessageByUuid(String)
+	 */
+	public abstract boolean removePendingMessage(String messageId);
+
+	/**
+	 * Removes the pending message with the given UUID (see
+	 * <code>Message.getUuid()</code>). This implementation looks through the
+	 * pending messages of every gateway of the service; sub classes able to
+	 * look the UUID up directly should override it.
+	 * 
+	 * @param messageUUID
+	 * @return true if the message was removed.
+	 */
+	public boolean removePendingMessageByUuid(String messageUUID)
+	{
+		for (AGateway gateway : Service.getInstance().getGateways())
+		{
+			for (OutboundMessage message : getPendingMessages(gateway.getGatewayId()))
+				if (messageUUID.equals(message.getUuid())) return removePendingMessage(message);
+		}
+		return false;
+	}
 
 	public abstract boolean removeDelayedMessage(OutboundMessage message);
 
@@ -87,6 +117,83 @@ public abstract class AbstractQueueManager
 
 	public abstract OutboundMessage pollPendingMessage(String gatewayId);
 
+	/**
+	 * Removes and returns up to <code>max</code> pending messages of the
+	 * gateway, in sending order.
+	 * 
+	 * @param gatewayId
+	 * @param max
+	 * @return The polled messages; an empty list if none are pending.
+	 */
+	public List<OutboundMessage> pollPendingMessages(String gatewayId, int max)
+	{
+		List<OutboundMessage> messages = new ArrayList<OutboundMessage>();
+		while (messages.size() < max)
+		{
+			OutboundMessage message = pollPendingMessage(gatewayId);
+			if (message == null) break;
+			messages.add(message);
+		}
+		return messages;
+	}
+
+	/**
+	 * Same as <code>pollPendingMessages(gatewayId, max)</code>, but if no
+	 * message is pending waits up to <code>timeout</code> milliseconds for one
+	 * to be queued. This implementation simply sleeps and polls once more;
+	 * sub classes with blocking queues should wake up as soon as a message
+	 * arrives.
+	 * 
+	 * @param gatewayId
+	 * @param max
+	 * @param timeout
+	 * @return The polled messages; an empty list if none arrived in time.
+	 * @throws InterruptedException
+	 */
+	public List<OutboundMessage> pollPendingMessages(String gatewayId, int max, long timeout) throws InterruptedException
+	{
+		List<OutboundMessage> messages = pollPendingMessages(gatewayId, max);
+		if (messages.isEmpty() && timeout > 0)
+		{
+			Thread.sleep(timeout);
+			messages = pollPendingMessages(gatewayId, max);
+		}
+		return messages;
+	}
+
+	/**
+	 * Removes and returns the next pending message of the gateway, like
+	 * <code>pollPendingMessages(gatewayId, 1, timeout)</code>, but leaves it
+	 * in storage until <code>acknowledgePendingMessage()</code> is called for
+	 * it. A message that is being sent when the application stops is thus
+	 * loaded, and sent, again on the next start. Queueing the message again
+	 * also replaces the stored copy, in which case it must not be
+	 * acknowledged.
+	 * <p>
+	 * This implementation polls the message, i.e. removes it from storage
+	 * right away.
+	 * 
+	 * @param gatewayId
+	 * @param timeout
+	 * @return The claimed message, or null if none arrived in time.
+	 * @throws InterruptedException
+	 */
+	public OutboundMessage claimPendingMessage(String gatewayId, long timeout) throws InterruptedException
+	{
+		List<OutboundMessage> messages = pollPendingMessages(gatewayId, 1, timeout);
+		return (messages.isEmpty() ? null : messages.get(0));
+	}
+
+	/**
+	 * Removes from storage a message returned by
+	 * <code>claimPendingMessage()</code> once it has been dealt with.
+	 * 
+	 * @param message
+	 */
+	public void acknowledgePendingMessage(OutboundMessage message)
+	{
+	}
+
 	public abstract Collection<OutboundMessage> getPendingMessages(String gatewayId);
 
 	public abstract int pendingQueueSize(String gatewayId);
@@ -150,8 +257,12 @@ public abstract class AbstractQueueManager
 		{
 			Logger.getInstance().logDebug("DelayQueueManager running...", null, null);
 			OutboundMessage message = pollDelayedMessage();
-			if (message != null) queueMessage(message);
-			//queueMessage(getDelayQueue().take().getMsg());
+			if (message != null)
+			{
+				queueMessage(message);
+				// More messages may be due as well, don't idle before the next poll.
+				wakeUp();
+			}
 			Logger.getInstance().logDebug("DelayQueueManager end...", null, null);
 		}
 	}
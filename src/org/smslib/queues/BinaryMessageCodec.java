@@ -0,0 +1,342 @@
+// SMSLib for Java v4
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.smslib.queues;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Date;
+import org.smslib.EzTextingOutboundMessage;
+import org.smslib.Message.MessageClasses;
+import org.smslib.Message.MessageEncodings;
+import org.smslib.OutboundBinaryMessage;
+import org.smslib.OutboundEncryptedMessage;
+import org.smslib.OutboundMessage;
+import org.smslib.OutboundMessage.FailureCauses;
+import org.smslib.OutboundMessage.MessageStatuses;
+import org.smslib.OutboundWapSIMessage;
+import org.smslib.OutboundWapSIMessage.WapSISignals;
+
+/**
+ * Hand-rolled, versioned binary encoding of <code>OutboundMessage</code> and
+ * the outbound message classes shipped with SMSLib.
+ * <p>
+ * Layout: two magic bytes, a format version byte, a class tag byte and then
+ * the fields of the message, in class hierarchy order. Enumerations are
+ * stored by name so reordering their constants does not break stored
+ * messages. Message classes unknown to the codec are embedded as Java
+ * serialization, and data starting with the Java serialization stream header
+ * (i.e. queue files written before this codec existed) is decoded by
+ * <code>SerializedMessageCodec</code>.
+ * <p>
+ * The internal message id (<code>getMessageId()</code>) is not preserved; the
+ * UUID is.
+ */
+public class BinaryMessageCodec implements MessageCodec
+{
+	static final byte MAGIC_1 = 'S';
+
+	static final byte MAGIC_2 = 'Q';
+
+	public static final int VERSION = 1;
+
+	static final byte CLASS_OUTBOUND = 0;
+
+	static final byte CLASS_BINARY = 1;
+
+	static final byte CLASS_WAPSI = 2;
+
+	static final byte CLASS_ENCRYPTED = 3;
+
+	static final byte CLASS_EZTEXTING = 4;
+
+	static final byte CLASS_SERIALIZED = 127;
+
+	private final SerializedMessageCodec serializedCodec = new SerializedMessageCodec();
+
+	@Override
+	public byte[] encode(OutboundMessage message) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(MAGIC_1);
+		out.writeByte(MAGIC_2);
+		out.writeByte(VERSION);
+		byte tag = classTag(message);
+		out.writeByte(tag);
+		if (tag == CLASS_SERIALIZED)
+		{
+			writeBytes(out, serializedCodec.encode(message));
+		}
+		else
+		{
+			writeOutboundFields(out, message);
+			switch (tag)
+			{
+				case CLASS_BINARY:
+				case CLASS_ENCRYPTED:
+					writeBytes(out, ((OutboundBinaryMessage) message).getDataBytes());
+					break;
+				case CLASS_WAPSI:
+					OutboundWapSIMessage wapSiMessage = (OutboundWapSIMessage) message;
+					writeString(out, wapSiMessage.getUrl() == null ? null : wapSiMessage.getUrl().toExternalForm());
+					writeDate(out, wapSiMessage.getCreateDate());
+					writeDate(out, wapSiMessage.getExpireDate());
+					writeEnum(out, wapSiMessage.getSignal());
+					writeString(out, wapSiMessage.getSiId());
+					writeString(out, wapSiMessage.getIndicationText());
+					break;
+				case CLASS_EZTEXTING:
+					EzTextingOutboundMessage ezMessage = (EzTextingOutboundMessage) message;
+					writeString(out, ezMessage.getSubject());
+					out.writeBoolean(ezMessage.isExpress());
+					break;
+				default:
+					break;
+			}
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public OutboundMessage decode(byte[] data) throws IOException
+	{
+		if (data.length >= 2 && (data[0] & 0xff) == 0xac && (data[1] & 0xff) == 0xed) return serializedCodec.decode(data);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		if (data.length < 4 || in.readByte() != MAGIC_1 || in.readByte() != MAGIC_2) throw new IOException("Not an encoded message.");
+		int version = in.readUnsignedByte();
+		if (version != VERSION) throw new IOException("Unsupported message encoding version " + version + ".");
+		byte tag = in.readByte();
+		if (tag == CLASS_SERIALIZED) return serializedCodec.decode(readBytes(in));
+		OutboundFields fields = readOutboundFields(in);
+		OutboundMessage message;
+		switch (tag)
+		{
+			case CLASS_OUTBOUND:
+				message = new OutboundMessage();
+				break;
+			case CLASS_BINARY:
+				message = new OutboundBinaryMessage();
+				((OutboundBinaryMessage) message).setDataBytes(readBytes(in));
+				break;
+			case CLASS_ENCRYPTED:
+				message = new OutboundEncryptedMessage();
+				((OutboundEncryptedMessage) message).setDataBytes(readBytes(in));
+				break;
+			case CLASS_WAPSI:
+				String url = readString(in);
+				Date createDate = readDate(in);
+				Date expireDate = readDate(in);
+				WapSISignals signal = readEnum(in, WapSISignals.class);
+				String siId = readString(in);
+				String indicationText = readString(in);
+				message = new OutboundWapSIMessage(fields.recipient, (url == null ? null : new URL(url)), createDate, expireDate, signal, indicationText);
+				((OutboundWapSIMessage) message).setSiId(siId);
+				break;
+			case CLASS_EZTEXTING:
+				EzTextingOutboundMessage ezMessage = new EzTextingOutboundMessage();
+				ezMessage.setSubject(readString(in));
+				ezMessage.setExpress(in.readBoolean());
+				message = ezMessage;
+				break;
+			default:
+				throw new IOException("Unknown message class tag " + tag + ".");
+		}
+		fields.applyTo(message);
+		return message;
+	}
+
+	private byte classTag(OutboundMessage message)
+	{
+		Class<?> c = message.getClass();
+		if (c == OutboundMessage.class) return CLASS_OUTBOUND;
+		if (c == OutboundBinaryMessage.class) return CLASS_BINARY;
+		if (c == OutboundEncryptedMessage.class) return CLASS_ENCRYPTED;
+		if (c == OutboundWapSIMessage.class) return CLASS_WAPSI;
+		if (c == EzTextingOutboundMessage.class) return CLASS_EZTEXTING;
+		return CLASS_SERIALIZED;
+	}
+
+	private void writeOutboundFields(DataOutputStream out, OutboundMessage message) throws IOException
+	{
+		writeString(out, message.getUuid());
+		writeString(out, message.getGatewayId());
+		writeString(out, message.getId());
+		writeDate(out, message.getDate());
+		// Binary messages refuse getText().
+		writeString(out, (message instanceof OutboundBinaryMessage) ? null : message.getText());
+		writeEnum(out, message.getEncoding());
+		writeEnum(out, message.getDCSMessageClass());
+		out.writeInt(message.getSrcPort());
+		out.writeInt(message.getDstPort());
+		writeString(out, message.getRecipient());
+		writeDate(out, message.getDispatchDate());
+		out.writeInt(message.getValidityPeriod());
+		out.writeBoolean(message.getStatusReport());
+		writeString(out, message.getFrom());
+		writeEnum(out, message.getMessageStatus());
+		writeEnum(out, message.getFailureCause());
+		out.writeInt(message.getRetryCount());
+		out.writeInt(message.getPriority());
+		writeString(out, message.getRefNo());
+		writeString(out, message.getErrorMessage());
+		writeDate(out, message.getScheduledDeliveryDate());
+	}
+
+	private OutboundFields readOutboundFields(DataInputStream in) throws IOException
+	{
+		OutboundFields fields = new OutboundFields();
+		fields.uuid = readString(in);
+		fields.gatewayId = readString(in);
+		fields.id = readString(in);
+		fields.date = readDate(in);
+		fields.text = readString(in);
+		fields.encoding = readEnum(in, MessageEncodings.class);
+		fields.messageClass = readEnum(in, MessageClasses.class);
+		fields.srcPort = in.readInt();
+		fields.dstPort = in.readInt();
+		fields.recipient = readString(in);
+		fields.dispatchDate = readDate(in);
+		fields.validityPeriod = in.readInt();
+		fields.statusReport = in.readBoolean();
+		fields.from = readString(in);
+		fields.messageStatus = readEnum(in, MessageStatuses.class);
+		fields.failureCause = readEnum(in, FailureCauses.class);
+		fields.retryCount = in.readInt();
+		fields.priority = in.readInt();
+		fields.refNo = readString(in);
+		fields.errorMessage = readString(in);
+		fields.scheduledDeliveryDate = readDate(in);
+		return fields;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		if (s == null) out.writeInt(-1);
+		else writeBytes(out, s.getBytes("UTF-8"));
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		byte[] bytes = readBytes(in);
+		return (bytes == null ? null : new String(bytes, "UTF-8"));
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+	{
+		if (bytes == null) out.writeInt(-1);
+		else
+		{
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0) return null;
+		if (length > in.available()) throw new IOException("Truncated message data.");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static void writeDate(DataOutputStream out, Date date) throws IOException
+	{
+		out.writeBoolean(date != null);
+		if (date != null) out.writeLong(date.getTime());
+	}
+
+	private static Date readDate(DataInputStream in) throws IOException
+	{
+		return (in.readBoolean() ? new Date(in.readLong()) : null);
+	}
+
+	private static void writeEnum(DataOutputStream out, Enum<?> value) throws IOException
+	{
+		writeString(out, (value == null ? null : value.name()));
+	}
+
+	private static <E extends Enum<E>> E readEnum(DataInputStream in, Class<E> type) throws IOException
+	{
+		String name = readString(in);
+		if (name == null) return null;
+		try
+		{
+			return Enum.valueOf(type, name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IOException("Unknown " + type.getSimpleName() + " value " + name + ".");
+		}
+	}
+
+	static class OutboundFields
+	{
+		String uuid, gatewayId, id, text, recipient, from, refNo, errorMessage;
+
+		Date date, dispatchDate, scheduledDeliveryDate;
+
+		MessageEncodings encoding;
+
+		MessageClasses messageClass;
+
+		MessageStatuses messageStatus;
+
+		FailureCauses failureCause;
+
+		int srcPort, dstPort, validityPeriod, retryCount, priority;
+
+		boolean statusReport;
+
+		void applyTo(OutboundMessage message)
+		{
+			message.setUuid(this.uuid);
+			message.setGatewayId(this.gatewayId);
+			message.setId(this.id);
+			message.setDate(this.date);
+			if (!(message instanceof OutboundBinaryMessage)) message.setText(this.text);
+			message.setEncoding(this.encoding);
+			message.setDCSMessageClass(this.messageClass);
+			message.setSrcPort(this.srcPort);
+			message.setDstPort(this.dstPort);
+			message.setRecipient(this.recipient);
+			message.setDispatchDate(this.dispatchDate);
+			message.setValidityPeriod(this.validityPeriod);
+			message.setStatusReport(this.statusReport);
+			message.setFrom(this.from);
+			// setFailureCause() also marks the message as failed, so restore
+			// the status after it.
+			message.setFailureCause(this.failureCause);
+			message.setMessageStatus(this.messageStatus);
+			message.setRetryCount(this.retryCount);
+			message.setPriority(this.priority);
+			message.setRefNo(this.refNo);
+			message.setErrorMessage(this.errorMessage);
+			message.setScheduledDeliveryDate(this.scheduledDeliveryDate);
+		}
+	}
+}
@@ -20,20 +20,17 @@
 
 package org.smslib.queues;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.DelayQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import org.smslib.OutboundMessage;
 import org.smslib.Service;
 import org.smslib.helper.Logger;
@@ -46,7 +43,7 @@ public class DefaultQueueManager extends AbstractQueueManager
 {
 	public static final String MESSAGE_FILE_EXT = ".msg";
 
-	private Map<String, PriorityBlockingQueue<OutboundMessage>> queueMap;
+	private ConcurrentHashMap<String, PendingMessageQueue> queueMap;
 
 	private DelayQueue<ScheduledOutboundMessage> delayQueue;
 
@@ -56,6 +53,10 @@ public class DefaultQueueManager extends AbstractQueueManager
 
 	private File delayedMessageDir;
 
+	private MessageCodec messageCodec;
+
+	private volatile boolean storageInitialized;
+
 	public DefaultQueueManager()
 	{
 		super();
@@ -82,16 +83,55 @@ public class DefaultQueueManager extends AbstractQueueManager
 	protected void init()
 	{
 		super.init();
-		queueMap = new HashMap<String, PriorityBlockingQueue<OutboundMessage>>();
+		queueMap = new ConcurrentHashMap<String, PendingMessageQueue>();
 		delayQueue = new DelayQueue<ScheduledOutboundMessage>();
-		if (queueDirectory == null)
+		messageCodec = new BinaryMessageCodec();
+	}
+
+	/**
+	 * Returns the codec used to store queued messages.
+	 */
+	public MessageCodec getMessageCodec()
+	{
+		return messageCodec;
+	}
+
+	/**
+	 * Sets the codec used to store queued messages. Messages left over from a
+	 * previous run are loaded when the queue is first started or used, with
+	 * the codec in place at that time, so the codec should be set before
+	 * then.
+	 * 
+	 * @param messageCodec
+	 */
+	public void setMessageCodec(MessageCodec messageCodec)
+	{
+		this.messageCodec = messageCodec;
+	}
+
+	/**
+	 * Returns the base directory of the queue, resolving it from the settings
+	 * if it was not given at construction. Returns null if no directory is
+	 * defined, in which case messages are kept in memory only.
+	 */
+	protected String getQueueDirectory()
+	{
+		if (queueDirectory == null) queueDirectory = Service.getInstance().getSettings().QUEUE_DIRECTORY;
+		return queueDirectory;
+	}
+
+	/**
+	 * Called once, when the queue is first started or used. Prepares the
+	 * on-disk storage and reloads any messages left over from a previous run.
+	 * Sub classes that persist messages differently override this together
+	 * with the <code>store*</code> / <code>delete*</code> methods.
+	 */
+	protected void initStorage()
+	{
+		if (getQueueDirectory() == null)
 		{
-			queueDirectory = Service.getInstance().getSettings().QUEUE_DIRECTORY;
-			if (queueDirectory == null)
-			{
 			Logger.getInstance().logInfo("Queue directory not defined. Queued messages will not be saved to filesystem.", null, null);
 			return;
-			}
 		}
 		File baseDir = new File(queueDirectory, "queue");
 		pendingMessageDir = new File(baseDir, "pending");
@@ -123,12 +163,36 @@ public class DefaultQueueManager extends AbstractQueueManager
 		}
 	}
 
+	/**
+	 * Runs <code>initStorage()</code> the first time it is called. This is
+	 * not done from the constructors, as a sub class overriding
+	 * <code>initStorage()</code> is not fully constructed at that point.
+	 */
+	private void ensureStorage()
+	{
+		if (storageInitialized) return;
+		synchronized (this)
+		{
+			if (storageInitialized) return;
+			initStorage();
+			storageInitialized = true;
+		}
+	}
+
+	@Override
+	public void start()
+	{
+		ensureStorage();
+		super.start();
+	}
+
 	/* (non-Javadoc)
 	 * @see org.smslib.queues.AbstractQueueManager#queueMessage(org.smslib.OutboundMessage)
 	 */
 	@Override
 	public boolean queueMessage(OutboundMessage message)
 	{
+		ensureStorage();
 		if (message.getDeliveryDelay() > 0)
 		{
 			return addToDelayedQueue(message, true);
@@ -145,61 +209,90 @@ public class DefaultQueueManager extends AbstractQueueManager
 	@Override
 	public boolean removePendingMessage(OutboundMessage message)
 	{
-		for (PriorityBlockingQueue<OutboundMessage> q : queueMap.values())
+		return removePendingMessageByUuid(message.getUuid());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.smslib.queues.AbstractQueueManager#removePendingMessage(java.lang.String)
+	 */
+	@Override
+	public boolean removePendingMessage(String messageId)
+	{
+		for (PendingMessageQueue q : queueMap.values())
 		{
-			if (q.remove(message))
+			for (OutboundMessage m : q.toList())
 			{
-				deletePendingMessage(message.getGatewayId(), message.getUuid());
-				return true;
+				if (messageId.equalsIgnoreCase(m.getId()) && q.remove(m.getUuid()) != null)
+				{
+					deletePendingMessage(m.getGatewayId(), m.getUuid());
+					return true;
+				}
 			}
 		}
 		return false;
 	}
 
 	/* (non-Javadoc)
-	 * @see org.smslib.queues.AbstractQueueManager#removePendingMessage(java.lang.String)
+	 * @see org.smslib.queues.AbstractQueueManager#removePendingMessageByUuid(java.lang.String)
 	 */
 	@Override
-	public boolean removePendingMessage(String messageUUID)
+	public boolean removePendingMessageByUuid(String messageUUID)
 	{
-		for (PriorityBlockingQueue<OutboundMessage> q : queueMap.values())
+		for (Map.Entry<String, PendingMessageQueue> e : queueMap.entrySet())
 		{
-			for (OutboundMessage m : q)
+			if (e.getValue().remove(messageUUID) != null)
 			{
-				if (m.getId().equalsIgnoreCase(messageUUID))
-				{
-					if (q.remove(m))
-					{
-						deletePendingMessage(m.getGatewayId(), messageUUID);
-						return true;
-					}
-				}
+				deletePendingMessage(e.getKey(), messageUUID);
+				return true;
 			}
 		}
 		return false;
 	}
 
-	private boolean addToGatewayQueue(OutboundMessage message, boolean store)
+	/**
+	 * Returns the pending message with the given UUID, or null if no gateway
+	 * queue holds it.
+	 * 
+	 * @param messageUUID
+	 * @return The pending message.
+	 */
+	public OutboundMessage getPendingMessage(String messageUUID)
 	{
-		PriorityBlockingQueue<OutboundMessage> queue = queueMap.get(message.getGatewayId());
-		if (queue == null)
+		for (PendingMessageQueue q : queueMap.values())
 		{
-			queue = new PriorityBlockingQueue<OutboundMessage>(50, new PriorityComparator());
-			queueMap.put(message.getGatewayId(), queue);
+			OutboundMessage message = q.get(messageUUID);
+			if (message != null) return message;
 		}
-		boolean queued = queue.add(message);
+		return null;
+	}
+
+	protected PendingMessageQueue getGatewayQueue(String gatewayId, boolean create)
+	{
+		PendingMessageQueue queue = queueMap.get(gatewayId);
+		if (queue == null && create)
+		{
+			queue = new PendingMessageQueue();
+			PendingMessageQueue existing = queueMap.putIfAbsent(gatewayId, queue);
+			if (existing != null) queue = existing;
+		}
+		return queue;
+	}
+
+	protected boolean addToGatewayQueue(OutboundMessage message, boolean store)
+	{
+		boolean queued = getGatewayQueue(message.getGatewayId(), true).add(message);
 		if (store && queued) storePendingMessage(message);
 		return queued;
 	}
 
-	private boolean addToDelayedQueue(OutboundMessage message, boolean store)
+	protected boolean addToDelayedQueue(OutboundMessage message, boolean store)
 	{
 		boolean queued = delayQueue.add(new ScheduledOutboundMessage(message));
 		if (store && queued) storeDelayedMessage(message);
 		return queued;
 	}
 
-	private boolean storePendingMessage(OutboundMessage message)
+	protected boolean storePendingMessage(OutboundMessage message)
 	{
 		if (queueDirectory == null){
 			return true;
@@ -217,7 +310,7 @@ public class DefaultQueueManager extends AbstractQueueManager
 		return serializeMessage(message, new File(gatewayDir, message.getUuid() + MESSAGE_FILE_EXT));
 	}
 
-	private boolean deletePendingMessage(String gatewayId, String messageUUID)
+	protected boolean deletePendingMessage(String gatewayId, String messageUUID)
 	{
 		if (queueDirectory == null){
 			return true;
@@ -225,7 +318,7 @@ public class DefaultQueueManager extends AbstractQueueManager
 		return new File(new File(pendingMessageDir, gatewayId), messageUUID + MESSAGE_FILE_EXT).delete();
 	}
 	
-	private boolean deletePendingMessages(String gatewayId)
+	protected boolean deletePendingMessages(String gatewayId)
 	{
 		if (queueDirectory == null){
 			return true;
@@ -236,7 +329,7 @@ public class DefaultQueueManager extends AbstractQueueManager
 			return emptyDirectory(new File(pendingMessageDir, gatewayId),true);
 	}
 
-	private boolean storeDelayedMessage(OutboundMessage message)
+	protected boolean storeDelayedMessage(OutboundMessage message)
 	{
 		if (queueDirectory == null){
 			return true;
@@ -244,7 +337,7 @@ public class DefaultQueueManager extends AbstractQueueManager
 		return serializeMessage(message, new File(delayedMessageDir, message.getUuid() + MESSAGE_FILE_EXT));
 	}
 
-	private boolean deleteDelayedMessage(String messageUUID)
+	protected boolean deleteDelayedMessage(String messageUUID)
 	{
 		if (queueDirectory == null){
 			return true;
@@ -271,30 +364,71 @@ public class DefaultQueueManager extends AbstractQueueManager
 	@Override
 	public OutboundMessage pollPendingMessage(String gatewayId)
 	{
-		PriorityBlockingQueue<OutboundMessage> queue = queueMap.get(gatewayId);
+		PendingMessageQueue queue = queueMap.get(gatewayId);
 		if (queue == null) return null;
 		OutboundMessage message = queue.poll();
 		if (message != null) deletePendingMessage(gatewayId, message.getUuid());
 		return message;
 	}
 
+	@Override
+	public List<OutboundMessage> pollPendingMessages(String gatewayId, int max)
+	{
+		PendingMessageQueue queue = queueMap.get(gatewayId);
+		if (queue == null) return new ArrayList<OutboundMessage>();
+		List<OutboundMessage> messages = queue.poll(max);
+		for (OutboundMessage message : messages)
+			deletePendingMessage(gatewayId, message.getUuid());
+		return messages;
+	}
+
+	@Override
+	public List<OutboundMessage> pollPendingMessages(String gatewayId, int max, long timeout) throws InterruptedException
+	{
+		List<OutboundMessage> messages = getGatewayQueue(gatewayId, true).poll(max, timeout);
+		for (OutboundMessage message : messages)
+			deletePendingMessage(gatewayId, message.getUuid());
+		return messages;
+	}
+
+	@Override
+	public OutboundMessage claimPendingMessage(String gatewayId, long timeout) throws InterruptedException
+	{
+		List<OutboundMessage> messages = getGatewayQueue(gatewayId, true).poll(1, timeout);
+		return (messages.isEmpty() ? null : messages.get(0));
+	}
+
+	@Override
+	public void acknowledgePendingMessage(OutboundMessage message)
+	{
+		deletePendingMessage(message.getGatewayId(), message.getUuid());
+	}
+
+	/**
+	 * Writes the message to a temporary file which is then renamed over
+	 * <code>toFile</code>, so that a message queued again after being claimed
+	 * replaces its stored copy, retry count included.
+	 */
 	private boolean serializeMessage(OutboundMessage message, File toFile)
 	{
 		if (queueDirectory == null){
 			return true;
 		}
 		
-		if (toFile.exists())
-		{
-			Logger.getInstance().logError("Cannot save Message "+message.getUuid()+" File already exist.", null, null);
-			return false;
-		}
-		ObjectOutputStream out = null;
+		File tmpFile = new File(toFile.getPath() + ".tmp");
+		FileOutputStream out = null;
 		try
 		{
-			out = new ObjectOutputStream(new FileOutputStream(toFile));
-			out.writeObject(message);
+			byte[] data = messageCodec.encode(message);
+			out = new FileOutputStream(tmpFile);
+			out.write(data);
 			out.close();
+			if (!tmpFile.renameTo(toFile))
+			{
+				// Some platforms will not rename over an existing file.
+				toFile.delete();
+				if (!tmpFile.renameTo(toFile)) throw new IOException("Cannot rename " + tmpFile + " to " + toFile);
+			}
 		}
 		catch (IOException e)
 		{
@@ -312,24 +446,21 @@ public class DefaultQueueManager extends AbstractQueueManager
 			Logger.getInstance().logError("File of queued message doesn't exist "+fromFile.getPath(), null, null);
 			return null;
 		}
-		ObjectInputStream in = null;
+		DataInputStream in = null;
 		OutboundMessage message = null;
 		try
 		{
-			in = new ObjectInputStream(new FileInputStream(fromFile));
-			message = (OutboundMessage) in.readObject();
+			byte[] data = new byte[(int) fromFile.length()];
+			in = new DataInputStream(new FileInputStream(fromFile));
+			in.readFully(data);
 			in.close();
+			message = messageCodec.decode(data);
 		}
 		catch (IOException e)
 		{
 			Logger.getInstance().logError("Could not read queued message from file "+fromFile.getPath(), e, null);
 			return null;
 		}
-		catch (ClassNotFoundException e)
-		{
-			Logger.getInstance().logError("Could not read queued message from file "+fromFile.getPath(), e, null);
-			return null;
-		}
 		return message;
 	}
 
@@ -370,17 +501,6 @@ public class DefaultQueueManager extends AbstractQueueManager
 		}
 	}
 
-	class PriorityComparator implements Comparator<OutboundMessage>
-	{
-		@Override
-		public int compare(OutboundMessage x, OutboundMessage y)
-		{
-			int comp = y.getPriority() - x.getPriority();
-			if (comp == 0) comp = x.getDate().compareTo(y.getDate());
-			return comp;
-		}
-	}
-
 	@Override
 	public int delayedQueueSize(String gatewayId)
 	{
@@ -401,15 +521,15 @@ public class DefaultQueueManager extends AbstractQueueManager
 	@Override
 	public Collection<OutboundMessage> getPendingMessages(String gatewayId)
 	{
-		PriorityBlockingQueue<OutboundMessage> queue = queueMap.get(gatewayId);
+		PendingMessageQueue queue = queueMap.get(gatewayId);
 		if (queue == null) return new ArrayList<OutboundMessage>();
-		return new ArrayList<OutboundMessage>(queue);
+		return queue.toList();
 	}
 
 	@Override
 	public int pendingQueueSize(String gatewayId)
 	{
-		PriorityBlockingQueue<OutboundMessage> queue = queueMap.get(gatewayId);
+		PendingMessageQueue queue = queueMap.get(gatewayId);
 		if (queue == null) return 0;
 		return queue.size();
 	}
@@ -451,6 +571,11 @@ public class DefaultQueueManager extends AbstractQueueManager
 	@Override
 	public boolean removeAllDelayedMessages() {
 		delayQueue.clear();
+		return deleteDelayedMessages();
+	}
+
+	protected boolean deleteDelayedMessages()
+	{
 		if (queueDirectory == null){
 			return true;
 		}
@@ -459,10 +584,10 @@ public class DefaultQueueManager extends AbstractQueueManager
 
 	@Override
 	public boolean removeAllPendingMessages(String gatewayId) {
-		PriorityBlockingQueue<OutboundMessage> queue = queueMap.get(gatewayId);
+		// Clear rather than drop the queue, its gateway may be waiting on it.
+		PendingMessageQueue queue = queueMap.get(gatewayId);
 		if(queue!=null){			
 			queue.clear();
-			queueMap.remove(queue);
 			deletePendingMessages(gatewayId);
 			return true;
 		}
@@ -471,7 +596,8 @@ public class DefaultQueueManager extends AbstractQueueManager
 
 	@Override
 	public boolean removeAllPendingMessages() {
-		queueMap.clear();
+		for (PendingMessageQueue queue : queueMap.values())
+			queue.clear();
 		deletePendingMessages(null);
 		return false;
 	}
@@ -0,0 +1,774 @@
+// SMSLib for Java v4
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.smslib.queues;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import org.smslib.OutboundMessage;
+import org.smslib.Service;
+import org.smslib.helper.Logger;
+import org.smslib.threading.AServiceThread;
+
+/**
+ * Queue manager which persists queued messages in an append-only journal
+ * instead of one file per message.
+ * <p>
+ * Every enqueue and every acknowledgement (poll / removal) is appended as a
+ * record to the active segment file under <code>queue/journal</code>. Records
+ * appended within <code>Settings.QUEUE_JOURNAL_SYNC_INTERVAL</code> are synced
+ * to disk together. Once a segment reaches
+ * <code>Settings.QUEUE_JOURNAL_SEGMENT_SIZE</code> it is sealed and a new one
+ * is started; sealed segments are compacted in the background, by moving
+ * their few remaining live records to the active segment, and deleted when
+ * nothing in them is live anymore. On startup the segments are replayed in
+ * order to rebuild the queues.
+ */
+public class JournalQueueManager extends DefaultQueueManager
+{
+	public static final String SEGMENT_FILE_PREFIX = "journal-";
+
+	public static final String SEGMENT_FILE_EXT = ".log";
+
+	static final byte RECORD_PENDING = 1;
+
+	static final byte RECORD_DELAYED = 2;
+
+	static final byte RECORD_REMOVE = 3;
+
+	static final byte RECORD_CLEAR_PENDING = 4;
+
+	static final byte RECORD_CLEAR_DELAYED = 5;
+
+	/**
+	 * A sealed segment is compacted once no more than this percentage of its
+	 * enqueue records is still live.
+	 */
+	static final int COMPACT_LIVE_PERCENT = 50;
+
+	/**
+	 * Appended records are written to the segment file once this many bytes
+	 * are waiting, even if no sync is due.
+	 */
+	static final int WRITE_THRESHOLD = 8192;
+
+	/**
+	 * Attempts made to force a segment whose file an interrupt closed.
+	 */
+	static final int FORCE_ATTEMPTS = 3;
+
+	private File journalDir;
+
+	private TreeMap<Long, Segment> segments;
+
+	private Map<String, JournalEntry> liveEntries;
+
+	private Segment activeSegment;
+
+	private ByteArrayOutputStream unwritten;
+
+	private DataOutputStream out;
+
+	private FileOutputStream outFile;
+
+	private boolean dirty;
+
+	private JournalSyncer journalSyncer;
+
+	private JournalCompactor journalCompactor;
+
+	public JournalQueueManager()
+	{
+		super();
+	}
+
+	public JournalQueueManager(String queueDirectory)
+	{
+		super(queueDirectory);
+	}
+
+	public JournalQueueManager(int delay)
+	{
+		super(delay);
+	}
+
+	public JournalQueueManager(int delay, String queueDirectory)
+	{
+		super(delay, queueDirectory);
+	}
+
+	@Override
+	protected synchronized void initStorage()
+	{
+		segments = new TreeMap<Long, Segment>();
+		liveEntries = new HashMap<String, JournalEntry>();
+		if (getQueueDirectory() == null)
+		{
+			Logger.getInstance().logInfo("Queue directory not defined. Queued messages will not be saved to filesystem.", null, null);
+			return;
+		}
+		journalDir = new File(new File(getQueueDirectory(), "queue"), "journal");
+		if (!journalDir.exists() && !journalDir.mkdirs())
+		{
+			Logger.getInstance().logError("Could not create directory for queue journal at " + journalDir.getPath(), null, null);
+			journalDir = null;
+			return;
+		}
+		try
+		{
+			recover();
+			openSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+		}
+		catch (IOException e)
+		{
+			Logger.getInstance().logError("Could not open queue journal at " + journalDir.getPath() + ". Queued messages will not be saved to filesystem.", e, null);
+			journalDir = null;
+		}
+	}
+
+	@Override
+	public void start()
+	{
+		super.start();
+		if (journalDir == null) return;
+		int syncInterval = Service.getInstance().getSettings().QUEUE_JOURNAL_SYNC_INTERVAL;
+		if (syncInterval > 0 && (journalSyncer == null || journalSyncer.isCanceled())) journalSyncer = new JournalSyncer("JournalSyncer", syncInterval);
+		if (journalCompactor == null || journalCompactor.isCanceled()) journalCompactor = new JournalCompactor("JournalCompactor", Service.getInstance().getSettings().QUEUE_JOURNAL_COMPACT_INTERVAL);
+	}
+
+	@Override
+	public void stop()
+	{
+		super.stop();
+		// Not interrupted: an interrupt in the middle of a sync would close
+		// the segment file.
+		if (journalSyncer != null) journalSyncer.cancel(false);
+		if (journalCompactor != null) journalCompactor.cancel(false);
+		sync();
+	}
+
+	@Override
+	protected boolean storePendingMessage(OutboundMessage message)
+	{
+		return syncIfUnscheduled(appendEnqueue(RECORD_PENDING, message));
+	}
+
+	@Override
+	protected boolean storeDelayedMessage(OutboundMessage message)
+	{
+		return syncIfUnscheduled(appendEnqueue(RECORD_DELAYED, message));
+	}
+
+	@Override
+	protected boolean deletePendingMessage(String gatewayId, String messageUUID)
+	{
+		return syncIfUnscheduled(appendRemove(messageUUID));
+	}
+
+	@Override
+	protected boolean deleteDelayedMessage(String messageUUID)
+	{
+		return syncIfUnscheduled(appendRemove(messageUUID));
+	}
+
+	@Override
+	protected boolean deletePendingMessages(String gatewayId)
+	{
+		return syncIfUnscheduled(appendClear(false, gatewayId));
+	}
+
+	@Override
+	protected boolean deleteDelayedMessages()
+	{
+		return syncIfUnscheduled(appendClear(true, null));
+	}
+
+	/**
+	 * Syncs right away if there is no syncer thread to do it, i.e. with a
+	 * sync interval of 0. Called once the manager lock is released, so that
+	 * other threads can append while the disk catches up.
+	 */
+	private boolean syncIfUnscheduled(boolean appended)
+	{
+		if (appended && (journalSyncer == null || journalSyncer.isCanceled())) sync();
+		return appended;
+	}
+
+	private synchronized boolean appendEnqueue(byte type, OutboundMessage message)
+	{
+		if (journalDir == null) return true;
+		byte[] data;
+		try
+		{
+			data = getMessageCodec().encode(message);
+		}
+		catch (IOException e)
+		{
+			Logger.getInstance().logError("Cannot save Message " + message.getUuid(), e, null);
+			return false;
+		}
+		JournalEntry previous = liveEntries.remove(message.getUuid());
+		if (previous != null) previous.segment.live--;
+		if (!append(type, message.getUuid(), message.getGatewayId(), data)) return false;
+		JournalEntry entry = new JournalEntry(message, type == RECORD_DELAYED, activeSegment);
+		activeSegment.records++;
+		activeSegment.live++;
+		liveEntries.put(message.getUuid(), entry);
+		rollIfFull();
+		return true;
+	}
+
+	private synchronized boolean appendRemove(String messageUUID)
+	{
+		if (journalDir == null) return true;
+		JournalEntry entry = liveEntries.remove(messageUUID);
+		if (entry == null) return true;
+		entry.segment.live--;
+		return append(RECORD_REMOVE, messageUUID, "", null);
+	}
+
+	private synchronized boolean appendClear(boolean delayed, String gatewayId)
+	{
+		if (journalDir == null) return true;
+		clearEntries(delayed, gatewayId);
+		if (delayed) return append(RECORD_CLEAR_DELAYED, "", "", null);
+		return append(RECORD_CLEAR_PENDING, "", (gatewayId == null ? "" : gatewayId), null);
+	}
+
+	private void clearEntries(boolean delayed, String gatewayId)
+	{
+		Iterator<JournalEntry> i = liveEntries.values().iterator();
+		while (i.hasNext())
+		{
+			JournalEntry entry = i.next();
+			if (entry.delayed == delayed && (gatewayId == null || gatewayId.equals(entry.message.getGatewayId())))
+			{
+				entry.segment.live--;
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Appends a single record to the active segment. Record layout is
+	 * <code>[length][crc32][type][uuid][gatewayId][data length][data]</code>,
+	 * length and crc covering everything after the crc. Records are buffered
+	 * until the next sync, or until <code>WRITE_THRESHOLD</code> bytes are
+	 * waiting.
+	 */
+	private boolean append(byte type, String uuid, String gatewayId, byte[] data)
+	{
+		try
+		{
+			ByteArrayOutputStream record = new ByteArrayOutputStream(64 + (data == null ? 0 : data.length));
+			DataOutputStream recordOut = new DataOutputStream(record);
+			recordOut.writeByte(type);
+			recordOut.writeUTF(uuid);
+			recordOut.writeUTF(gatewayId == null ? "" : gatewayId);
+			recordOut.writeInt(data == null ? 0 : data.length);
+			if (data != null) recordOut.write(data);
+			recordOut.flush();
+			byte[] body = record.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			out.writeInt(body.length);
+			out.writeInt((int) crc.getValue());
+			out.write(body);
+			activeSegment.size += 8 + body.length;
+			dirty = true;
+			if (unwritten.size() >= WRITE_THRESHOLD) writeUnwritten();
+			return true;
+		}
+		catch (IOException e)
+		{
+			Logger.getInstance().logError("Could not append to queue journal " + activeSegment.file.getPath(), e, null);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the buffered records to the segment file. If the file was
+	 * closed under us (an interrupt during a force closes it), it is opened
+	 * again and the write retried.
+	 */
+	private void writeUnwritten() throws IOException
+	{
+		if (unwritten.size() == 0) return;
+		if (!outFile.getChannel().isOpen()) reopenSegment();
+		unwritten.writeTo(outFile);
+		unwritten.reset();
+	}
+
+	private void reopenSegment() throws IOException
+	{
+		Logger.getInstance().logWarn("Queue journal segment " + activeSegment.file.getName() + " was closed, reopening it.", null, null);
+		outFile = new FileOutputStream(activeSegment.file, true);
+	}
+
+	/**
+	 * Writes out the active segment and forces it to disk, if anything was
+	 * appended since the last sync. The force runs outside the manager lock.
+	 */
+	public void sync()
+	{
+		FileChannel channel;
+		synchronized (this)
+		{
+			if (outFile == null || !dirty) return;
+			try
+			{
+				writeUnwritten();
+			}
+			catch (IOException e)
+			{
+				Logger.getInstance().logError("Could not sync queue journal " + activeSegment.file.getPath(), e, null);
+				return;
+			}
+			channel = outFile.getChannel();
+			dirty = false;
+		}
+		boolean interrupted = false;
+		try
+		{
+			for (int attempt = 1;; attempt++)
+			{
+				try
+				{
+					channel.force(false);
+					return;
+				}
+				catch (ClosedChannelException e)
+				{
+					// An interrupt of this thread closes the channel: clear it
+					// for the retry and restore it once done.
+					if (e instanceof ClosedByInterruptException) interrupted |= Thread.interrupted();
+					synchronized (this)
+					{
+						// Rolled over meanwhile: sealing the segment forced it.
+						if (outFile == null || outFile.getChannel() != channel) return;
+						if (attempt >= FORCE_ATTEMPTS) throw e;
+						reopenSegment();
+						channel = outFile.getChannel();
+					}
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			Logger.getInstance().logError("Could not sync queue journal " + activeSegment.file.getPath(), e, null);
+			synchronized (this)
+			{
+				dirty = true;
+			}
+		}
+		finally
+		{
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private void rollIfFull()
+	{
+		if (activeSegment.size < Service.getInstance().getSettings().QUEUE_JOURNAL_SEGMENT_SIZE) return;
+		try
+		{
+			sealSegment();
+			openSegment(activeSegment.id + 1);
+		}
+		catch (IOException e)
+		{
+			Logger.getInstance().logError("Could not roll queue journal segment " + activeSegment.file.getPath(), e, null);
+		}
+	}
+
+	private void openSegment(long id) throws IOException
+	{
+		Segment segment = new Segment(id, new File(journalDir, segmentFileName(id)));
+		outFile = new FileOutputStream(segment.file, true);
+		if (unwritten == null)
+		{
+			unwritten = new ByteArrayOutputStream(WRITE_THRESHOLD * 2);
+			out = new DataOutputStream(unwritten);
+		}
+		segment.size = segment.file.length();
+		segments.put(id, segment);
+		activeSegment = segment;
+	}
+
+	private void sealSegment() throws IOException
+	{
+		dirty = true;
+		sync();
+		outFile.close();
+		outFile = null;
+	}
+
+	/**
+	 * Deletes leading sealed segments which hold no live records, moving the
+	 * live records of a mostly-acknowledged head segment to the active one
+	 * first. Segments are only ever deleted oldest first, so that remove and
+	 * clear records are never dropped before the records they cancel.
+	 */
+	synchronized void compact()
+	{
+		if (journalDir == null) return;
+		while (segments.size() > 1)
+		{
+			Segment head = segments.firstEntry().getValue();
+			if (head == activeSegment) break;
+			if (head.live > 0)
+			{
+				if (head.live * 100 > head.records * COMPACT_LIVE_PERCENT) break;
+				relocate(head);
+				if (head.live > 0) break;
+			}
+			sync();
+			if (!head.file.delete())
+			{
+				Logger.getInstance().logWarn("Could not delete queue journal segment " + head.file.getPath(), null, null);
+				break;
+			}
+			segments.remove(head.id);
+			Logger.getInstance().logDebug("Queue journal segment " + head.file.getName() + " compacted.", null, null);
+		}
+	}
+
+	private void relocate(Segment segment)
+	{
+		List<JournalEntry> moving = new ArrayList<JournalEntry>();
+		for (JournalEntry entry : liveEntries.values())
+			if (entry.segment == segment) moving.add(entry);
+		for (JournalEntry entry : moving)
+			appendEnqueue(entry.delayed ? RECORD_DELAYED : RECORD_PENDING, entry.message);
+	}
+
+	private void recover() throws IOException
+	{
+		File[] files = journalDir.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_EXT);
+			}
+		});
+		if (files == null) return;
+		for (File file : files)
+		{
+			try
+			{
+				long id = Long.parseLong(file.getName().substring(SEGMENT_FILE_PREFIX.length(), file.getName().length() - SEGMENT_FILE_EXT.length()));
+				segments.put(id, new Segment(id, file));
+			}
+			catch (NumberFormatException e)
+			{
+				Logger.getInstance().logWarn("Ignoring unknown file in queue journal " + file.getPath(), null, null);
+			}
+		}
+		Map<String, RecoveredRecord> recovered = new LinkedHashMap<String, RecoveredRecord>();
+		for (Segment segment : segments.values())
+			replaySegment(segment, segment.id == segments.lastKey(), recovered);
+		int pending = 0, delayed = 0;
+		for (RecoveredRecord record : recovered.values())
+		{
+			OutboundMessage message;
+			try
+			{
+				message = getMessageCodec().decode(record.data);
+			}
+			catch (IOException e)
+			{
+				Logger.getInstance().logError("Could not read queued message " + record.uuid + " from queue journal.", e, null);
+				continue;
+			}
+			JournalEntry entry = new JournalEntry(message, record.type == RECORD_DELAYED, record.segment);
+			record.segment.live++;
+			liveEntries.put(message.getUuid(), entry);
+			if (entry.delayed)
+			{
+				addToDelayedQueue(message, false);
+				delayed++;
+			}
+			else
+			{
+				addToGatewayQueue(message, false);
+				pending++;
+			}
+		}
+		Logger.getInstance().logInfo("Queue journal recovered: " + pending + " pending, " + delayed + " delayed messages in " + segments.size() + " segments.", null, null);
+	}
+
+	/**
+	 * Replays the records of a segment up to its end, or up to the first
+	 * record that cannot be read. Only in the newest segment, the one that
+	 * was being appended to, can such a record be the torn tail of an
+	 * interrupted append; it is cut off if nothing but zeros or the end of
+	 * the file follows. Any other unreadable record means the segment is
+	 * damaged: the rest of it is skipped, and a copy is kept next to it, so
+	 * that the records after the damage can still be looked into once
+	 * compaction deletes the segment.
+	 */
+	private void replaySegment(Segment segment, boolean newest, Map<String, RecoveredRecord> recovered) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 8192));
+		long validLength = 0;
+		boolean inRecord = false;
+		try
+		{
+			while (true)
+			{
+				int length;
+				try
+				{
+					length = in.readInt();
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				inRecord = true;
+				int checksum = in.readInt();
+				if (length <= 0) throw new IOException("Invalid record length " + length);
+				if (validLength + 8 + length > segment.file.length()) throw new EOFException("Record of " + length + " bytes runs past the end of the file");
+				byte[] body = new byte[length];
+				in.readFully(body);
+				CRC32 crc = new CRC32();
+				crc.update(body);
+				if ((int) crc.getValue() != checksum) throw new IOException("Record checksum mismatch");
+				inRecord = false;
+				DataInputStream bodyIn = new DataInputStream(new ByteArrayInputStream(body));
+				byte type = bodyIn.readByte();
+				String uuid = bodyIn.readUTF();
+				String gatewayId = bodyIn.readUTF();
+				byte[] data = new byte[bodyIn.readInt()];
+				bodyIn.readFully(data);
+				replayRecord(segment, type, uuid, gatewayId, data, recovered);
+				validLength += 8 + length;
+			}
+		}
+		catch (IOException e)
+		{
+			in.close();
+			if (newest && ((inRecord && (e instanceof EOFException)) || isZeroFilled(segment.file, validLength)))
+			{
+				// A torn tail, from a crash in the middle of an append.
+				// Everything before it is valid; drop the rest.
+				Logger.getInstance().logWarn("Queue journal segment " + segment.file.getName() + " truncated at offset " + validLength + ".", e, null);
+				RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+				try
+				{
+					raf.setLength(validLength);
+				}
+				finally
+				{
+					raf.close();
+				}
+			}
+			else
+			{
+				File copy = new File(segment.file.getPath() + ".corrupt");
+				Logger.getInstance().logError("Queue journal segment " + segment.file.getName() + " is damaged at offset " + validLength + ", ignoring the rest of it. A copy is kept as " + copy.getName() + ".", e, null);
+				if (!copy.exists()) copyFile(segment.file, copy);
+			}
+			return;
+		}
+		in.close();
+	}
+
+	private static boolean isZeroFilled(File file, long offset) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+		try
+		{
+			in.skipBytes((int) offset);
+			int b;
+			while ((b = in.read()) != -1)
+				if (b != 0) return false;
+			return true;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static void copyFile(File from, File to) throws IOException
+	{
+		FileInputStream in = new FileInputStream(from);
+		try
+		{
+			FileOutputStream out = new FileOutputStream(to);
+			try
+			{
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = in.read(buffer)) != -1)
+					out.write(buffer, 0, n);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private void replayRecord(Segment segment, byte type, String uuid, String gatewayId, byte[] data, Map<String, RecoveredRecord> recovered)
+	{
+		switch (type)
+		{
+			case RECORD_PENDING:
+			case RECORD_DELAYED:
+				segment.records++;
+				recovered.remove(uuid);
+				recovered.put(uuid, new RecoveredRecord(type, uuid, gatewayId, data, segment));
+				break;
+			case RECORD_REMOVE:
+				recovered.remove(uuid);
+				break;
+			case RECORD_CLEAR_PENDING:
+			case RECORD_CLEAR_DELAYED:
+				byte cleared = (type == RECORD_CLEAR_PENDING ? RECORD_PENDING : RECORD_DELAYED);
+				Iterator<RecoveredRecord> i = recovered.values().iterator();
+				while (i.hasNext())
+				{
+					RecoveredRecord record = i.next();
+					if (record.type == cleared && (gatewayId.length() == 0 || gatewayId.equals(record.gatewayId))) i.remove();
+				}
+				break;
+			default:
+				Logger.getInstance().logWarn("Unknown queue journal record type " + type + " in " + segment.file.getName(), null, null);
+		}
+	}
+
+	static String segmentFileName(long id)
+	{
+		return SEGMENT_FILE_PREFIX + String.format("%016d", id) + SEGMENT_FILE_EXT;
+	}
+
+	static class Segment
+	{
+		final long id;
+
+		final File file;
+
+		long size;
+
+		int records;
+
+		int live;
+
+		Segment(long id, File file)
+		{
+			this.id = id;
+			this.file = file;
+		}
+	}
+
+	static class JournalEntry
+	{
+		final OutboundMessage message;
+
+		final boolean delayed;
+
+		final Segment segment;
+
+		JournalEntry(OutboundMessage message, boolean delayed, Segment segment)
+		{
+			this.message = message;
+			this.delayed = delayed;
+			this.segment = segment;
+		}
+	}
+
+	static class RecoveredRecord
+	{
+		final byte type;
+
+		final String uuid;
+
+		final String gatewayId;
+
+		final byte[] data;
+
+		final Segment segment;
+
+		RecoveredRecord(byte type, String uuid, String gatewayId, byte[] data, Segment segment)
+		{
+			this.type = type;
+			this.uuid = uuid;
+			this.gatewayId = gatewayId;
+			this.data = data;
+			this.segment = segment;
+		}
+	}
+
+	class JournalSyncer extends AServiceThread
+	{
+		public JournalSyncer(String name, int delay)
+		{
+			super(name, delay, 0, true);
+		}
+
+		@Override
+		public void process() throws Exception
+		{
+			sync();
+		}
+	}
+
+	class JournalCompactor extends AServiceThread
+	{
+		public JournalCompactor(String name, int delay)
+		{
+			super(name, delay, 0, true);
+		}
+
+		@Override
+		public void process() throws Exception
+		{
+			compact();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+// SMSLib for Java v4
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.smslib.queues;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import org.smslib.OutboundMessage;
+
+/**
+ * The pending queue of a single gateway. Messages are kept in priority order
+ * (higher priority first, then older first, then in order of arrival) with a
+ * UUID index alongside, so that a message can be looked up in constant time
+ * and removed in logarithmic time.
+ * <p>
+ * The priority and date of a message are captured when it is added; changing
+ * them while the message is queued does not reorder it.
+ */
+public class PendingMessageQueue
+{
+	private final TreeSet<Entry> order;
+
+	private final Map<String, Entry> index;
+
+	private long sequence;
+
+	public PendingMessageQueue()
+	{
+		this.order = new TreeSet<Entry>();
+		this.index = new HashMap<String, Entry>();
+	}
+
+	/**
+	 * Adds the message to the queue. A message already queued under the same
+	 * UUID is replaced.
+	 */
+	public synchronized boolean add(OutboundMessage message)
+	{
+		Entry previous = this.index.remove(message.getUuid());
+		if (previous != null) this.order.remove(previous);
+		Entry entry = new Entry(message, this.sequence++);
+		this.index.put(message.getUuid(), entry);
+		this.order.add(entry);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Removes and returns the head of the queue, or null if it is empty.
+	 */
+	public synchronized OutboundMessage poll()
+	{
+		Entry entry = this.order.pollFirst();
+		if (entry == null) return null;
+		this.index.remove(entry.message.getUuid());
+		return entry.message;
+	}
+
+	/**
+	 * Removes and returns up to <code>max</code> messages from the head of the
+	 * queue.
+	 */
+	public synchronized List<OutboundMessage> poll(int max)
+	{
+		List<OutboundMessage> messages = new ArrayList<OutboundMessage>(Math.min(max, this.order.size()));
+		while (messages.size() < max)
+		{
+			OutboundMessage message = poll();
+			if (message == null) break;
+			messages.add(message);
+		}
+		return messages;
+	}
+
+	/**
+	 * Removes and returns up to <code>max</code> messages from the head of the
+	 * queue, waiting up to <code>timeout</code> milliseconds for one to arrive
+	 * if the queue is empty.
+	 */
+	public synchronized List<OutboundMessage> poll(int max, long timeout) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (this.order.isEmpty() && remaining > 0)
+		{
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return poll(max);
+	}
+
+	public synchronized OutboundMessage get(String messageUUID)
+	{
+		Entry entry = this.index.get(messageUUID);
+		return (entry == null ? null : entry.message);
+	}
+
+	public synchronized boolean contains(String messageUUID)
+	{
+		return this.index.containsKey(messageUUID);
+	}
+
+	/**
+	 * Removes the message with the given UUID.
+	 *
+	 * @return The removed message, or null if it was not queued.
+	 */
+	public synchronized OutboundMessage remove(String messageUUID)
+	{
+		Entry entry = this.index.remove(messageUUID);
+		if (entry == null) return null;
+		this.order.remove(entry);
+		return entry.message;
+	}
+
+	public synchronized int size()
+	{
+		return this.index.size();
+	}
+
+	public synchronized void clear()
+	{
+		this.order.clear();
+		this.index.clear();
+	}
+
+	/**
+	 * Returns a snapshot of the queued messages, in sending order.
+	 */
+	public synchronized List<OutboundMessage> toList()
+	{
+		List<OutboundMessage> messages = new ArrayList<OutboundMessage>(this.order.size());
+		for (Entry entry : this.order)
+			messages.add(entry.message);
+		return messages;
+	}
+
+	static class Entry implements Comparable<Entry>
+	{
+		final OutboundMessage message;
+
+		final int priority;
+
+		final long date;
+
+		final long sequence;
+
+		Entry(OutboundMessage message, long sequence)
+		{
+			this.message = message;
+			this.priority = message.getPriority();
+			this.date = (message.getDate() == null ? 0 : message.getDate().getTime());
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry other)
+		{
+			if (this.priority != other.priority) return (this.priority > other.priority ? -1 : 1);
+			if (this.date != other.date) return (this.date < other.date ? -1 : 1);
+			if (this.sequence != other.sequence) return (this.sequence < other.sequence ? -1 : 1);
+			return 0;
+		}
+	}
+}
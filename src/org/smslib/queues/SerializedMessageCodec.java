@@ -0,0 +1,64 @@
+// SMSLib for Java v4
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.smslib.queues;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import org.smslib.OutboundMessage;
+
+/**
+ * Codec using plain Java serialization of the whole message object graph.
+ * This is the format queue files were written in before
+ * <code>BinaryMessageCodec</code>.
+ */
+public class SerializedMessageCodec implements MessageCodec
+{
+	@Override
+	public byte[] encode(OutboundMessage message) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(message);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public OutboundMessage decode(byte[] data) throws IOException
+	{
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+		try
+		{
+			return (OutboundMessage) in.readObject();
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new IOException("Unknown message class: " + e.getMessage());
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
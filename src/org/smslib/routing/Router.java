@@ -22,6 +22,7 @@ package org.smslib.routing;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import org.smslib.AGateway;
 import org.smslib.OutboundMessage;
 import org.smslib.AGateway.GatewayStatuses;
@@ -33,31 +34,59 @@ import org.smslib.AGateway.GatewayStatuses;
  * modem to send message. It is responsibility of Router to decide which gateway
  * will send the message. Custom routing rules are possible by creating
  * subclass.
+ * <p>
+ * A Router may be called from many threads at once. The <code>candidates</code>
+ * and <code>allowed</code> lists are kept per thread, so subclasses working on
+ * them in <code>customRouting</code> need no locking of their own.
  * 
  * @author Tomek Cejner
  */
 public class Router
 {
 	/** List of candidate gateways */
-	private ArrayList<AGateway> candidates;
+	private final ThreadLocal<ArrayList<AGateway>> candidates;
 
 	/** List of gateways that are allowed to send message */
-	private ArrayList<AGateway> allowed;
+	private final ThreadLocal<ArrayList<AGateway>> allowed;
+
+	/**
+	 * True if a subclass overrides the routing methods taking a gateway
+	 * collection, which the routing table methods must then go through.
+	 */
+	private final boolean collectionRouting;
 
 	public Router()
 	{
-		this.candidates = new ArrayList<AGateway>();
-		this.allowed = new ArrayList<AGateway>();
+		this.candidates = new GatewayList();
+		this.allowed = new GatewayList();
+		this.collectionRouting = (overrides("route") || overrides("preroute"));
+	}
+
+	private boolean overrides(String methodName)
+	{
+		for (Class<?> c = getClass(); c != Router.class; c = c.getSuperclass())
+		{
+			try
+			{
+				c.getDeclaredMethod(methodName, OutboundMessage.class, Collection.class);
+				return true;
+			}
+			catch (NoSuchMethodException e)
+			{
+				// Not declared here, try the super class.
+			}
+		}
+		return false;
 	}
 
 	protected ArrayList<AGateway> getCandidates()
 	{
-		return this.candidates;
+		return this.candidates.get();
 	}
 
 	protected ArrayList<AGateway> getAllowed()
 	{
-		return this.allowed;
+		return this.allowed.get();
 	}
 
 	/**
@@ -69,37 +98,87 @@ public class Router
 	 */
 	protected void preroute(OutboundMessage msg, Collection<AGateway> gateways)
 	{
+		ArrayList<AGateway> c = getCandidates();
+		boolean any = msg.getGatewayId().equalsIgnoreCase("*");
 		for (AGateway gtw : gateways)
 			if ((gtw.isOutbound()) && (gtw.getStatus() == GatewayStatuses.STARTED))
 			{
-				if (msg.getGatewayId().equalsIgnoreCase("*")) getCandidates().add(gtw);
-				else if (msg.getGatewayId().equalsIgnoreCase(gtw.getGatewayId())) getCandidates().add(gtw);
+				if (any || msg.getGatewayId().equalsIgnoreCase(gtw.getGatewayId())) c.add(gtw);
 			}
 	}
 
+	/**
+	 * Same as <code>preroute(msg, gateways)</code>, but picks the candidates
+	 * from a routing table, which holds only routable gateways.
+	 * 
+	 * @param msg
+	 *            Message to be routed
+	 */
+	protected void preroute(OutboundMessage msg, RoutingTable table)
+	{
+		if (msg.getGatewayId().equalsIgnoreCase("*")) getCandidates().addAll(table.getGateways());
+		else
+		{
+			AGateway gtw = table.getGateway(msg.getGatewayId());
+			if (gtw != null) getCandidates().add(gtw);
+		}
+	}
+
 	/**
 	 * Heart of routing & load balancing mechanism
 	 * 
 	 * @param msg
+	 * @return An unmodifiable snapshot of the gateways allowed to send the
+	 *         message.
 	 */
 	public Collection<AGateway> route(OutboundMessage msg, Collection<AGateway> gateways)
 	{
 		beginRouting();
-		preroute(msg, gateways);
-		customRouting(msg);
-		return getAllowed();
-		/*
-		// check if there are any gateways designated to send?
-		if (getAllowed().size() > 0) gtw = getService().getLoadBalancer().balance(msg, getAllowed());
-		else
+		try
+		{
+			preroute(msg, gateways);
+			customRouting(msg);
+			ArrayList<AGateway> a = getAllowed();
+			if (a.isEmpty()) return Collections.emptyList();
+			if (a.size() == 1) return Collections.singletonList(a.get(0));
+			return Collections.unmodifiableList(new ArrayList<AGateway>(a));
+		}
+		finally
 		{
-			msg.setMessageStatus(MessageStatuses.FAILED);
-			msg.setFailureCause(FailureCauses.NO_ROUTE);
+			finishRouting();
+		}
+	}
+
+	/**
+	 * Routes the message using a routing table of the routable gateways
+	 * instead of scanning every gateway. This is how Service routes messages.
+	 * Subclasses overriding <code>route(msg, gateways)</code> or
+	 * <code>preroute(msg, gateways)</code> are routed through those, with all
+	 * the gateways of the table, as before.
+	 * 
+	 * @param msg
+	 * @return An unmodifiable snapshot of the gateways allowed to send the
+	 *         message.
+	 */
+	public Collection<AGateway> route(OutboundMessage msg, RoutingTable table)
+	{
+		if (this.collectionRouting) return route(msg, table.getAllGateways());
+		beginRouting();
+		try
+		{
+			preroute(msg, table);
+			customRouting(msg);
+			ArrayList<AGateway> a = getAllowed();
+			if (a.isEmpty()) return Collections.emptyList();
+			if (a.size() == 1) return Collections.singletonList(a.get(0));
+			// Usually every routable gateway is allowed; hand out the table's own list then.
+			if (a.equals(table.getGateways())) return table.getGateways();
+			return Collections.unmodifiableList(new ArrayList<AGateway>(a));
+		}
+		finally
+		{
+			finishRouting();
 		}
-		// finish
-		finishRouting();
-		return gtw;
-		*/
 	}
 
 	/**
@@ -136,4 +215,13 @@ public class Router
 		getCandidates().clear();
 		getAllowed().clear();
 	}
+
+	private static class GatewayList extends ThreadLocal<ArrayList<AGateway>>
+	{
+		@Override
+		protected ArrayList<AGateway> initialValue()
+		{
+			return new ArrayList<AGateway>();
+		}
+	}
 }
@@ -0,0 +1,94 @@
+// SMSLib for Java v3
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package org.smslib.routing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.smslib.AGateway;
+import org.smslib.AGateway.GatewayStatuses;
+
+/**
+ * Immutable snapshot of the gateways a message can currently be routed to,
+ * that is the outbound gateways which are started. Service keeps one up to
+ * date as gateways are added, removed or change status, so routing a message
+ * is a lookup rather than a scan of every gateway.
+ */
+public final class RoutingTable
+{
+	private final Collection<AGateway> allGateways;
+
+	private final List<AGateway> gateways;
+
+	private final Map<String, AGateway> gatewayMap;
+
+	public RoutingTable(Collection<AGateway> allGateways)
+	{
+		List<AGateway> list = new ArrayList<AGateway>();
+		Map<String, AGateway> map = new HashMap<String, AGateway>();
+		for (AGateway gtw : allGateways)
+			if ((gtw.isOutbound()) && (gtw.getStatus() == GatewayStatuses.STARTED))
+			{
+				list.add(gtw);
+				String key = key(gtw.getGatewayId());
+				if (!map.containsKey(key)) map.put(key, gtw);
+			}
+		this.allGateways = allGateways;
+		this.gateways = Collections.unmodifiableList(list);
+		this.gatewayMap = map;
+	}
+
+	/**
+	 * Returns the collection of gateways the table was built from, routable
+	 * or not.
+	 */
+	public Collection<AGateway> getAllGateways()
+	{
+		return this.allGateways;
+	}
+
+	/**
+	 * Returns the routable gateways, in the order they were defined.
+	 */
+	public List<AGateway> getGateways()
+	{
+		return this.gateways;
+	}
+
+	/**
+	 * Returns the routable gateway with the given id (case insensitive), or
+	 * null if there is no such gateway or it is not routable right now.
+	 */
+	public AGateway getGateway(String gatewayId)
+	{
+		return this.gatewayMap.get(key(gatewayId));
+	}
+
+	private static String key(String gatewayId)
+	{
+		return gatewayId.toLowerCase(Locale.ENGLISH);
+	}
+}
@@ -0,0 +1,138 @@
+// SMSLib for Java v3
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.smslib.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.smslib.modem.ATResponseParser;
+import org.smslib.modem.ATResponseParser.ResponseTypes;
+
+/**
+ * Microbenchmark of ATResponseParser against the regular expression matching
+ * AModemDriver.getResponse() used to do, replaying captured modem
+ * transcripts. Both must agree on the error code of every transcript.
+ */
+public class ATResponseParserBenchmark
+{
+	static final String[] UNSOLICITED = { "+CMTI", "+CDSI", "RING", "+CLIP", "+CUSD" };
+
+	static final String[] TERMINATORS = { "OK\\s", "\\s*[\\p{ASCII}]*\\s+OK\\s", "(ERROR|NO CARRIER|NO DIALTONE)\\s", "ERROR:\\s*\\d+\\s", "\\+CM[ES]\\s+ERROR:\\s*\\d+\\s", "\\+CPIN:\\s*READY\\s", "\\+CPIN:\\s*SIM\\s*BUSY\\s", "\\+CPIN:\\s*SIM\\s*PIN\\s", "\\+CPIN:\\s*SIM\\s*PIN2\\s", "\\+CUSD:\\s.*\\s", "\\+CMTI:\\s*\\p{Punct}[\\p{ASCII}]+\\p{Punct}\\p{Punct}\\s*\\d+\\s", "\\+CDSI:\\s*\\p{Punct}[\\p{ASCII}]+\\p{Punct}\\p{Punct}\\s*\\d+\\s", "RING\\s", "\\+CLIP:\\s*\\p{Punct}[\\p{ASCII}]*\\p{Punct}\\p{Punct}\\s*\\d+[\\p{ASCII}]*\\s" };
+
+	static final String rxErrorWithCode = "\\s*[\\p{ASCII}]*\\s*\\+(CM[ES])\\s+ERROR: (\\d+)\\s";
+
+	static final String rxPlainError = "\\s*[\\p{ASCII}]*\\s*(ERROR|NO CARRIER|NO DIALTONE)\\s";
+
+	static List<String[]> transcripts()
+	{
+		List<String[]> transcripts = new ArrayList<String[]>();
+		transcripts.add(new String[] { "OK\r" });
+		transcripts.add(new String[] { "+CSQ: 21,99\r", "OK\r" });
+		transcripts.add(new String[] { "+CPIN: READY\r" });
+		transcripts.add(new String[] { "+CMS ERROR: 500\r" });
+		transcripts.add(new String[] { "+CME ERROR: 10\r" });
+		transcripts.add(new String[] { "ERROR\r" });
+		transcripts.add(new String[] { "+CMTI: \"SM\",3\r" });
+		transcripts.add(new String[] { "+CMGS: 112\r", "OK\r" });
+		transcripts.add(new String[] { "+CREG: 0,1\r", "OK\r" });
+		List<String> cmgl = new ArrayList<String>();
+		for (int i = 1; i <= 30; i++)
+		{
+			cmgl.add("+CMGL: " + i + ",1,,24\r");
+			cmgl.add("07911326040000F0040B911346610089F60000208062917314080CC8F71D14969741F977FD07\r");
+		}
+		cmgl.add("OK\r");
+		transcripts.add(cmgl.toArray(new String[0]));
+		return transcripts;
+	}
+
+	/**
+	 * The error code getResponse() used to derive, -2 if it kept waiting.
+	 */
+	static int legacy(String[] lines)
+	{
+		StringBuffer buffer = new StringBuffer(16384);
+		for (String line : lines)
+		{
+			buffer.append(line);
+			if (buffer.charAt(buffer.length() - 1) != 0x0d) buffer.append((char) 0x0d);
+			String response = buffer.toString();
+			boolean terminated = false;
+			for (int i = 0; i < TERMINATORS.length; i++)
+				if (response.matches(TERMINATORS[i]))
+				{
+					terminated = true;
+					if (i >= TERMINATORS.length - 5) return -1;
+					break;
+				}
+			if (!terminated) continue;
+			if (response.matches(rxErrorWithCode))
+			{
+				Matcher m = Pattern.compile(rxErrorWithCode).matcher(response);
+				m.find();
+				return (m.group(1).equals("CME") ? 5000 : 6000) + Integer.parseInt(m.group(2));
+			}
+			else if (response.matches(rxPlainError)) return 9000;
+			else if (response.indexOf("OK") >= 0) return 0;
+			else return 10000;
+		}
+		return -2;
+	}
+
+	static int parse(String[] lines)
+	{
+		ATResponseParser parser = new ATResponseParser(UNSOLICITED);
+		for (String line : lines)
+		{
+			ResponseTypes type = parser.addLine(line);
+			if (type == ResponseTypes.UNSOLICITED) return -1;
+			if (type != ResponseTypes.INCOMPLETE) return parser.getErrorCode();
+		}
+		return -2;
+	}
+
+	public static void main(String[] args)
+	{
+		List<String[]> transcripts = transcripts();
+		for (String[] t : transcripts)
+		{
+			int expected = legacy(t), actual = parse(t);
+			System.out.println((expected == actual ? "same " : "DIFF ") + expected + " / " + actual + " : " + t[0].trim() + (t.length > 1 ? " ... (" + t.length + " lines)" : ""));
+		}
+		int rounds = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+		for (int pass = 0; pass < 3; pass++)
+		{
+			long sink = 0;
+			long start = System.nanoTime();
+			for (int r = 0; r < rounds; r++)
+				for (String[] t : transcripts)
+					sink += legacy(t);
+			long legacyTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int r = 0; r < rounds; r++)
+				for (String[] t : transcripts)
+					sink += parse(t);
+			long parserTime = System.nanoTime() - start;
+			System.out.println("regex: " + (legacyTime / rounds / 1000) + "us/round, parser: " + (parserTime / rounds / 1000) + "us/round (" + sink + ")");
+		}
+	}
+}
@@ -0,0 +1,103 @@
+// SMSLib for Java v3
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.smslib.test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.smslib.OutboundBinaryMessage;
+import org.smslib.OutboundMessage;
+import org.smslib.OutboundWapSIMessage;
+import org.smslib.queues.BinaryMessageCodec;
+import org.smslib.queues.MessageCodec;
+import org.smslib.queues.SerializedMessageCodec;
+
+/**
+ * Microbenchmark of BinaryMessageCodec against the Java serialization queue
+ * files used to be written with (SerializedMessageCodec). Reports the encoded
+ * size and the time of an encode plus decode for a few typical messages, and
+ * checks that every message survives the round trip through either codec.
+ */
+public class MessageCodecBenchmark
+{
+	static List<OutboundMessage> messages() throws IOException
+	{
+		List<OutboundMessage> messages = new ArrayList<OutboundMessage>();
+		OutboundMessage text = new OutboundMessage("+306948494037", "Your verification code is 482913. It expires in 10 minutes.");
+		text.setGatewayId("modem.com1");
+		text.setStatusReport(true);
+		messages.add(text);
+		OutboundMessage ported = new OutboundMessage("+306948494037", "Hello from a port");
+		ported.setGatewayId("modem.com2");
+		ported.setSrcPort(1000);
+		ported.setDstPort(2000);
+		ported.setDeliveryDelay(60000);
+		messages.add(ported);
+		OutboundBinaryMessage binary = new OutboundBinaryMessage("+306948494037", new byte[] { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a });
+		binary.setGatewayId("modem.com1");
+		messages.add(binary);
+		OutboundWapSIMessage wapSI = new OutboundWapSIMessage("+306948494037", new URL("http://www.smslib.org/"), "Visit SMSLib now!", new Date(System.currentTimeMillis() + 86400000), OutboundWapSIMessage.WapSISignals.HIGH);
+		wapSI.setGatewayId("modem.com1");
+		messages.add(wapSI);
+		return messages;
+	}
+
+	/**
+	 * Encodes and decodes each message once, returning the total encoded
+	 * size.
+	 */
+	static long roundTrip(MessageCodec codec, List<OutboundMessage> messages) throws IOException
+	{
+		long bytes = 0;
+		for (OutboundMessage message : messages)
+		{
+			byte[] data = codec.encode(message);
+			bytes += data.length;
+			if (!codec.decode(data).getUuid().equals(message.getUuid())) throw new IOException("Round trip failed for " + message.getClass().getName());
+		}
+		return bytes;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		List<OutboundMessage> messages = messages();
+		MessageCodec binary = new BinaryMessageCodec();
+		MessageCodec serialized = new SerializedMessageCodec();
+		for (OutboundMessage message : messages)
+			System.out.println(message.getClass().getSimpleName() + ": " + binary.encode(message).length + " bytes binary, " + serialized.encode(message).length + " bytes serialized");
+		int rounds = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+		for (int pass = 0; pass < 3; pass++)
+		{
+			long sink = 0;
+			long start = System.nanoTime();
+			for (int r = 0; r < rounds; r++)
+				sink += roundTrip(serialized, messages);
+			long serializedTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int r = 0; r < rounds; r++)
+				sink += roundTrip(binary, messages);
+			long binaryTime = System.nanoTime() - start;
+			System.out.println("serialized: " + (serializedTime / rounds / messages.size()) + "ns/message, binary: " + (binaryTime / rounds / messages.size()) + "ns/message (" + sink + ")");
+		}
+	}
+}
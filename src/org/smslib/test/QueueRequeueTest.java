@@ -0,0 +1,95 @@
+// SMSLib for Java v3
+// A Java API library for sending and receiving SMS via a GSM modem
+// or other supported gateways.
+// Web Site: http://www.smslib.org
+//
+// Copyright (C) 2002-2012, Thanasis Delenikas, Athens/GREECE.
+// SMSLib is distributed under the terms of the Apache License version 2.0
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.smslib.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import org.smslib.OutboundMessage;
+import org.smslib.queues.AbstractQueueManager;
+import org.smslib.queues.DefaultQueueManager;
+import org.smslib.queues.JournalQueueManager;
+
+/**
+ * Checks that queueing a claimed message again replaces its stored copy:
+ * after a claim, a retry and a restart, the message is loaded once, with the
+ * retry count it was queued again with. Runs against a fresh directory under
+ * the one given as argument, or the temporary directory.
+ */
+public class QueueRequeueTest
+{
+	static final String GATEWAY_ID = "modem.com1";
+
+	interface Factory
+	{
+		AbstractQueueManager create(String directory);
+	}
+
+	static void check(String name, Factory factory, File directory) throws Exception
+	{
+		AbstractQueueManager queueManager = factory.create(directory.getPath());
+		queueManager.start();
+		OutboundMessage message = new OutboundMessage("+306948494037", "Hello from SMSLib!");
+		message.setGatewayId(GATEWAY_ID);
+		queueManager.queueMessage(message);
+		OutboundMessage claimed = queueManager.claimPendingMessage(GATEWAY_ID, 0);
+		if (claimed != message) throw new IOException(name + ": claimed " + claimed);
+		claimed.setRetryCount(claimed.getRetryCount() + 1);
+		if (!queueManager.queueMessage(claimed)) throw new IOException(name + ": could not queue the claimed message again");
+		queueManager.stop();
+		// A second manager on the same directory stands in for a restart.
+		queueManager = factory.create(directory.getPath());
+		queueManager.start();
+		Collection<OutboundMessage> reloaded = queueManager.getPendingMessages(GATEWAY_ID);
+		queueManager.stop();
+		if (reloaded.size() != 1) throw new IOException(name + ": " + reloaded.size() + " messages reloaded");
+		OutboundMessage stored = reloaded.iterator().next();
+		if (!stored.getUuid().equals(message.getUuid())) throw new IOException(name + ": another message reloaded");
+		if (stored.getRetryCount() != 1) throw new IOException(name + ": retry count " + stored.getRetryCount() + " reloaded");
+		System.out.println(name + ": OK");
+	}
+
+	static File newDirectory(File base, String name) throws IOException
+	{
+		File directory = new File(base, name + "-" + System.currentTimeMillis());
+		if (!directory.mkdirs()) throw new IOException("Cannot create " + directory);
+		return directory;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		File base = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+		check("DefaultQueueManager", new Factory()
+		{
+			public AbstractQueueManager create(String directory)
+			{
+				return new DefaultQueueManager(directory);
+			}
+		}, newDirectory(base, "default"));
+		check("JournalQueueManager", new Factory()
+		{
+			public AbstractQueueManager create(String directory)
+			{
+				return new JournalQueueManager(directory);
+			}
+		}, newDirectory(base, "journal"));
+	}
+}
@@ -22,12 +22,21 @@ package org.smslib.threading;
 
 import org.smslib.helper.Logger;
 
+/**
+ * Base class of the library's worker threads. The thread repeatedly calls
+ * <code>process()</code> and then idles for <code>getDelay()</code>
+ * milliseconds. Idling is cut short by <code>wakeUp()</code>, so workers fed
+ * by a queue or an event can be woken as soon as there is something to do,
+ * with the delay acting only as the maximum idle period.
+ */
 public abstract class AServiceThread extends Thread
 {
 	private int delay;
 	private int initialDelay;
 	private boolean enabled;
-	private boolean canceled;
+	private volatile boolean canceled;
+	private boolean wokenUp;
+	private final Object idleLock = new Object();
 
 	public AServiceThread(String name, int delay, int initialDelay, boolean enabled)
 	{
@@ -81,9 +90,23 @@ public abstract class AServiceThread extends Thread
 	}
 
 	public void cancel()
+	{
+		cancel(true);
+	}
+
+	/**
+	 * Stops the thread and waits for it to end. Unless <code>interrupt</code>
+	 * is set, a <code>process()</code> call in progress is left to complete
+	 * rather than interrupted, for workers doing interruptible I/O which an
+	 * interrupt would break (it closes NIO channels, for one).
+	 * 
+	 * @param interrupt
+	 */
+	public void cancel(boolean interrupt)
 	{
 		this.canceled = true;
-		interrupt();
+		if (interrupt) interrupt();
+		else wakeUp();
 		try
 		{
 			this.join();
@@ -94,6 +117,41 @@ public abstract class AServiceThread extends Thread
 		}
 	}
 
+	/**
+	 * Ends the current idle period, or skips the next one if the thread is
+	 * busy, so that <code>process()</code> runs again right away.
+	 */
+	public void wakeUp()
+	{
+		synchronized (this.idleLock)
+		{
+			this.wokenUp = true;
+			this.idleLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits up to <code>timeout</code> milliseconds, returning early if
+	 * <code>wakeUp()</code> is called.
+	 * 
+	 * @param timeout
+	 * @throws InterruptedException
+	 */
+	protected void idle(long timeout) throws InterruptedException
+	{
+		synchronized (this.idleLock)
+		{
+			long deadline = System.currentTimeMillis() + timeout;
+			long remaining = timeout;
+			while (!this.wokenUp && remaining > 0)
+			{
+				this.idleLock.wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			this.wokenUp = false;
+		}
+	}
+
 	@Override
 	public void run()
 	{
@@ -103,7 +161,7 @@ public abstract class AServiceThread extends Thread
 			{
 				Logger.getInstance().logDebug((isEnabled() ? "Running..." : "** disabled **"), null, null);
 				if (isEnabled()) process();
-				sleep(getDelay());
+				idle(getDelay());
 			}
 			catch (InterruptedException e)
 			{